@@ -0,0 +1,215 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonParseException;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser.DataListTooLargeException;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base decoder of self-describing binary encodings (CBOR, MessagePack) of the data_list payload.
+ * The payload has the same structure as the JSON one: a map with the "data_list" array of record maps.
+ */
+abstract class BinaryDataListDecoder {
+
+    enum ValueKind {
+        MAP, ARRAY, STRING, LONG, DOUBLE, BOOLEAN, OTHER
+    }
+
+    protected static final int INDEFINITE = -1;
+
+    /**
+     * Deepest nesting of maps and arrays in a skipped value: skipping recurses, so a hostile payload could
+     * otherwise overflow the stack.
+     */
+    protected static final int MAX_SKIP_DEPTH = 64;
+
+    private final DataListRecordAssembler assembler;
+    protected final byte[] data;
+    protected int pos;
+
+    BinaryDataListDecoder(byte[] data, DataListRecordAssembler assembler) {
+        this.data = data;
+        this.assembler = assembler;
+    }
+
+    List<TsKvListProto> decode(long systemTs, int maxRecords) throws JsonParseException {
+        try {
+            List<TsKvListProto> result = null;
+            int size = readMapHeader();
+            for (int i = 0; hasNext(size, i); i++) {
+                if (JsonDataListParser.DATA_LIST.equals(readString())) {
+                    result = readRecords(systemTs, maxRecords);
+                } else {
+                    skipValue();
+                }
+            }
+            if (pos != data.length) {
+                throw new IllegalArgumentException("Did not consume the entire payload.");
+            }
+            if (result == null) {
+                throw new IllegalArgumentException("Missing '" + JsonDataListParser.DATA_LIST + "' array!");
+            }
+            return result;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Unexpected end of payload", e);
+        }
+    }
+
+    private List<TsKvListProto> readRecords(long systemTs, int maxRecords) {
+        List<TsKvListProto> result = new ArrayList<>();
+        int size = readArrayHeader();
+        for (int i = 0; hasNext(size, i); i++) {
+            if (i == maxRecords) {
+                throw new DataListTooLargeException(maxRecords);
+            }
+            TsKvListProto.Builder record = TsKvListProto.newBuilder().setTs(systemTs + i);
+            assembler.reset();
+            int fields = readMapHeader();
+            for (int j = 0; hasNext(fields, j); j++) {
+                String key = readString();
+                if (peek() == ValueKind.ARRAY) {
+                    assembler.beginArray(key);
+                    int values = readArrayHeader();
+                    for (int k = 0; hasNext(values, k); k++) {
+                        readValue(key, k);
+                    }
+                    assembler.endArray();
+                } else {
+                    readValue(key, DataListRecordAssembler.NO_INDEX);
+                }
+            }
+            assembler.addTo(record);
+            result.add(record.build());
+        }
+        return result;
+    }
+
+    private void readValue(String key, int index) {
+        ValueKind kind = peek();
+        switch (kind) {
+            case STRING:
+                assembler.addString(key, index, readString());
+                break;
+            case LONG:
+                assembler.addLong(key, index, readLong());
+                break;
+            case DOUBLE:
+                assembler.addDouble(key, index, readDouble());
+                break;
+            case BOOLEAN:
+                assembler.addBoolean(key, index, readBoolean());
+                break;
+            default:
+                throw new IllegalArgumentException("Can't parse value of key [" + key + "]: " + kind);
+        }
+    }
+
+    private boolean hasNext(int size, int index) {
+        if (size != INDEFINITE) {
+            return index < size;
+        } else if (isBreak()) {
+            pos++;
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * @return kind of the next value without consuming it
+     */
+    abstract ValueKind peek();
+
+    /**
+     * @return number of entries or {@link #INDEFINITE}
+     */
+    abstract int readMapHeader();
+
+    /**
+     * @return number of elements or {@link #INDEFINITE}
+     */
+    abstract int readArrayHeader();
+
+    abstract String readString();
+
+    abstract long readLong();
+
+    abstract double readDouble();
+
+    abstract boolean readBoolean();
+
+    void skipValue() {
+        skipValue(1);
+    }
+
+    /**
+     * @param depth nesting of the value, checked with {@link #checkDepth} before skipping a map or array
+     */
+    abstract void skipValue(int depth);
+
+    /**
+     * @return true if the next byte closes an indefinite-length map or array
+     */
+    boolean isBreak() {
+        return false;
+    }
+
+    protected int readUnsignedByte() {
+        return data[pos++] & 0xff;
+    }
+
+    protected long readUnsigned(int bytes) {
+        long result = 0;
+        for (int i = 0; i < bytes; i++) {
+            result = (result << 8) | (data[pos++] & 0xff);
+        }
+        return result;
+    }
+
+    protected String readUtf8(long length) {
+        if (length < 0 || length > data.length - pos) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String result = new String(data, pos, (int) length, StandardCharsets.UTF_8);
+        pos += (int) length;
+        return result;
+    }
+
+    protected void skipBytes(long length) {
+        if (length < 0 || length > data.length - pos) {
+            throw new IllegalArgumentException("Invalid length: " + length);
+        }
+        pos += (int) length;
+    }
+
+    protected static void checkDepth(int depth) {
+        if (depth > MAX_SKIP_DEPTH) {
+            throw new IllegalArgumentException("Value nested deeper than " + MAX_SKIP_DEPTH + " levels");
+        }
+    }
+
+    protected static long checkedLong(long unsigned) {
+        if (unsigned < 0) {
+            throw new IllegalArgumentException("Big integer values are not supported!");
+        }
+        return unsigned;
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+/**
+ * Decoder of the CBOR (RFC 7049) encoding of the data_list payload.
+ * Definite and indefinite length maps and arrays are supported, tags are ignored.
+ */
+class CborDataListDecoder extends BinaryDataListDecoder {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int MAJOR_SIMPLE = 7;
+
+    private static final int FALSE = 20;
+    private static final int TRUE = 21;
+    private static final int HALF_FLOAT = 25;
+    private static final int SINGLE_FLOAT = 26;
+    private static final int DOUBLE_FLOAT = 27;
+    private static final int INDEFINITE_LENGTH = 31;
+    private static final int BREAK = 0xff;
+
+    CborDataListDecoder(byte[] data, DataListRecordAssembler assembler) {
+        super(data, assembler);
+    }
+
+    @Override
+    ValueKind peek() {
+        skipTags();
+        int initial = data[pos] & 0xff;
+        int info = initial & 0x1f;
+        switch (initial >>> 5) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                return ValueKind.LONG;
+            case MAJOR_TEXT:
+                return ValueKind.STRING;
+            case MAJOR_ARRAY:
+                return ValueKind.ARRAY;
+            case MAJOR_MAP:
+                return ValueKind.MAP;
+            case MAJOR_SIMPLE:
+                if (info == FALSE || info == TRUE) {
+                    return ValueKind.BOOLEAN;
+                } else if (info == HALF_FLOAT || info == SINGLE_FLOAT || info == DOUBLE_FLOAT) {
+                    return ValueKind.DOUBLE;
+                }
+                return ValueKind.OTHER;
+            default:
+                return ValueKind.OTHER;
+        }
+    }
+
+    @Override
+    int readMapHeader() {
+        return readContainerHeader(MAJOR_MAP);
+    }
+
+    @Override
+    int readArrayHeader() {
+        return readContainerHeader(MAJOR_ARRAY);
+    }
+
+    @Override
+    String readString() {
+        skipTags();
+        int initial = readUnsignedByte();
+        if (initial >>> 5 != MAJOR_TEXT) {
+            throw new IllegalArgumentException("Expected text string but was major type " + (initial >>> 5));
+        }
+        if ((initial & 0x1f) == INDEFINITE_LENGTH) {
+            StringBuilder result = new StringBuilder();
+            while (!isBreak()) {
+                result.append(readUtf8(readChunkLength(MAJOR_TEXT)));
+            }
+            pos++;
+            return result.toString();
+        }
+        return readUtf8(readArgument(initial & 0x1f));
+    }
+
+    @Override
+    long readLong() {
+        skipTags();
+        int initial = readUnsignedByte();
+        long value = checkedLong(readArgument(initial & 0x1f));
+        return initial >>> 5 == MAJOR_NEGATIVE ? -1 - value : value;
+    }
+
+    @Override
+    double readDouble() {
+        skipTags();
+        int info = readUnsignedByte() & 0x1f;
+        switch (info) {
+            case HALF_FLOAT:
+                return halfToDouble((int) readUnsigned(2));
+            case SINGLE_FLOAT:
+                return Float.intBitsToFloat((int) readUnsigned(4));
+            default:
+                return Double.longBitsToDouble(readUnsigned(8));
+        }
+    }
+
+    @Override
+    boolean readBoolean() {
+        skipTags();
+        return (readUnsignedByte() & 0x1f) == TRUE;
+    }
+
+    @Override
+    void skipValue(int depth) {
+        skipTags();
+        int initial = readUnsignedByte();
+        int info = initial & 0x1f;
+        switch (initial >>> 5) {
+            case MAJOR_UNSIGNED:
+            case MAJOR_NEGATIVE:
+                readArgument(info);
+                break;
+            case MAJOR_BYTES:
+            case MAJOR_TEXT:
+                if (info == INDEFINITE_LENGTH) {
+                    while (!isBreak()) {
+                        skipBytes(readChunkLength(initial >>> 5));
+                    }
+                    pos++;
+                } else {
+                    skipBytes(readArgument(info));
+                }
+                break;
+            case MAJOR_ARRAY:
+            case MAJOR_MAP:
+                checkDepth(depth);
+                int itemsPerEntry = initial >>> 5 == MAJOR_MAP ? 2 : 1;
+                if (info == INDEFINITE_LENGTH) {
+                    skipUntilBreak(itemsPerEntry, depth + 1);
+                } else {
+                    long size = readArgument(info);
+                    for (long i = 0; i < size * itemsPerEntry; i++) {
+                        skipValue(depth + 1);
+                    }
+                }
+                break;
+            default:
+                if (info >= 24 && info <= DOUBLE_FLOAT) {
+                    skipBytes(1 << (info - 24));
+                }
+        }
+    }
+
+    @Override
+    boolean isBreak() {
+        return (data[pos] & 0xff) == BREAK;
+    }
+
+    private int readContainerHeader(int majorType) {
+        skipTags();
+        int initial = readUnsignedByte();
+        if (initial >>> 5 != majorType) {
+            throw new IllegalArgumentException("Expected major type " + majorType + " but was " + (initial >>> 5));
+        }
+        int info = initial & 0x1f;
+        if (info == INDEFINITE_LENGTH) {
+            return INDEFINITE;
+        }
+        long size = readArgument(info);
+        if (size < 0 || size > data.length - pos) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        return (int) size;
+    }
+
+    private long readArgument(int info) {
+        if (info < 24) {
+            return info;
+        } else if (info <= 27) {
+            return readUnsigned(1 << (info - 24));
+        } else {
+            throw new IllegalArgumentException("Unsupported additional information: " + info);
+        }
+    }
+
+    /**
+     * @return the length of the next chunk of an indefinite length string, a definite length string of the same type
+     */
+    private long readChunkLength(int majorType) {
+        int chunk = readUnsignedByte();
+        if (chunk >>> 5 != majorType || (chunk & 0x1f) == INDEFINITE_LENGTH) {
+            throw new IllegalArgumentException("Invalid string chunk: 0x" + Integer.toHexString(chunk));
+        }
+        return readArgument(chunk & 0x1f);
+    }
+
+    private void skipUntilBreak(int itemsPerEntry, int depth) {
+        while (!isBreak()) {
+            for (int i = 0; i < itemsPerEntry; i++) {
+                skipValue(depth);
+            }
+        }
+        pos++;
+    }
+
+    private void skipTags() {
+        while ((data[pos] & 0xff) >>> 5 == MAJOR_TAG) {
+            readArgument(readUnsignedByte() & 0x1f);
+        }
+    }
+
+    private static double halfToDouble(int half) {
+        int exponent = (half >> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent != 31) {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.thingsboard.server.gen.transport.TransportProtos.PostAttributeMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.PostTelemetryMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The telemetry ingestion path stage by stage, for data_list payloads of the README battery record
+ * with 1, 5 and 10 records:
+ * <ul>
+ * <li>dataList*: data_list body to records (generic, compiled schema, packed arrays, values sent as strings)</li>
+ * <li>convertToTelemetryProto: the flattened records through {@link JsonConverter}, i.e. the parseProtoValues path</li>
+ * <li>serialize: the records as the PostTelemetryMsg queued to the core</li>
+ * <li>attributes: an attributes body through {@link JsonConverter#convertToAttributesProto}</li>
+ * </ul>
+ * Reports throughput and the latency distribution; run {@link #main} for the allocation rates of the gc profiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataListBenchmark {
+
+    private static final long TS = 1588245321000L;
+    private static final int MAX_RECORDS = 1000;
+
+    @Param({"1", "5", "10"})
+    private int records;
+
+    private String dataList;
+    private String stringDataList;
+    private JsonElement flattened;
+    private List<TsKvListProto> parsed;
+    private String attributes;
+    private DataListSchema schema;
+    private DataListOptions packed;
+
+    @Setup
+    public void setup() {
+        dataList = dataList(records, false);
+        stringDataList = dataList(records, true);
+        flattened = flatten(new JsonParser().parse(dataList).getAsJsonObject().getAsJsonArray("data_list"));
+        parsed = JsonDataListParser.parseDataList(new StringReader(dataList), TS, MAX_RECORDS);
+        attributes = attributesJson();
+        schema = DataListSchema.compile(new JsonParser().parse(SCHEMA).getAsJsonObject());
+        packed = DataListOptions.of(true, "");
+    }
+
+    @Benchmark
+    public List<TsKvListProto> dataList() {
+        return JsonDataListParser.parseDataList(new StringReader(dataList), TS, MAX_RECORDS);
+    }
+
+    @Benchmark
+    public List<TsKvListProto> dataListSchema() {
+        return schema.parseDataList(new StringReader(dataList), TS, MAX_RECORDS);
+    }
+
+    @Benchmark
+    public List<TsKvListProto> dataListPacked() {
+        return JsonDataListParser.parseDataList(new StringReader(dataList), TS, MAX_RECORDS, null, packed);
+    }
+
+    @Benchmark
+    public List<TsKvListProto> dataListStringCast() {
+        return JsonDataListParser.parseDataList(new StringReader(stringDataList), TS, MAX_RECORDS);
+    }
+
+    @Benchmark
+    public PostTelemetryMsg convertToTelemetryProto() {
+        return JsonConverter.convertToTelemetryProto(TS, flattened);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return PostTelemetryMsg.newBuilder().addAllTsKvList(parsed).build().toByteArray();
+    }
+
+    @Benchmark
+    public PostAttributeMsg attributes() {
+        return JsonConverter.convertToAttributesProto(new JsonParser().parse(attributes));
+    }
+
+    private static final String SCHEMA = "{\"id\": \"long\", \"v\": \"long\", \"s\": \"long\", \"err\": \"long[2]\", \"vlt\": \"long\"," +
+            " \"cur\": \"long[5]\", \"bat_tmp\": \"long[6]\", \"cell_vlt\": \"long[23]\", \"blc_s\": \"long\", \"so\": \"long[2]\"," +
+            " \"rem\": \"long[2]\", \"chg\": \"long[2]\", \"od\": \"long\", \"spd\": \"long[2]\", \"tmp\": \"long[3]\", \"loc\": \"long[2]\"," +
+            " \"sim\": \"long[3]\", \"cns\": \"long\", \"t\": \"long\"}";
+
+    /**
+     * The README battery record with values varying by record; with {@code strings} every value is sent quoted
+     * and has to be cast, as some firmwares do.
+     */
+    public static String dataList(int records, boolean strings) {
+        StringBuilder json = new StringBuilder("{\"data_list\":[");
+        for (int i = 0; i < records; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append('{');
+            field(json, "id", 1000 + i, 1, strings).append(',');
+            field(json, "v", 3, 1, strings).append(',');
+            field(json, "s", i % 4, 1, strings).append(',');
+            field(json, "err", 0, 2, strings).append(',');
+            field(json, "vlt", 5120 + i, 1, strings).append(',');
+            field(json, "cur", 1250 + i, 5, strings).append(',');
+            field(json, "bat_tmp", 27, 6, strings).append(',');
+            field(json, "cell_vlt", 3300 + i, 23, strings).append(',');
+            field(json, "blc_s", 0, 1, strings).append(',');
+            field(json, "so", 87, 2, strings).append(',');
+            field(json, "rem", 4200, 2, strings).append(',');
+            field(json, "chg", 1, 2, strings).append(',');
+            field(json, "od", 12345 + i, 1, strings).append(',');
+            field(json, "spd", 35, 2, strings).append(',');
+            field(json, "tmp", 31, 3, strings).append(',');
+            field(json, "loc", 51165700 + i, 2, strings).append(',');
+            field(json, "sim", 7, 3, strings).append(',');
+            field(json, "cns", 4, 1, strings).append(',');
+            field(json, "t", 1588245321 + i, 1, true);
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static StringBuilder field(StringBuilder json, String key, long value, int length, boolean quoted) {
+        json.append('"').append(key).append("\":");
+        if (length > 1) {
+            json.append('[');
+        }
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            if (quoted) {
+                json.append('"').append(value + i % 3).append('"');
+            } else {
+                json.append(value + i % 3);
+            }
+        }
+        if (length > 1) {
+            json.append(']');
+        }
+        return json;
+    }
+
+    /**
+     * Client attributes as a device posts them on boot.
+     */
+    public static String attributesJson() {
+        return "{\"fw_version\":\"2.4.1\",\"fw_build\":\"20200412-1830\",\"hw_rev\":\"C\",\"serial\":\"BT-0012-4471\"," +
+                "\"imei\":\"356938035643809\",\"iccid\":\"8944500102198304826\",\"cells\":23,\"capacity_ah\":60.5," +
+                "\"nominal_v\":\"72\",\"max_charge_a\":30,\"report_interval\":\"10\",\"gps\":true,\"can_bus\":false," +
+                "\"lat\":51.1657,\"lon\":10.4515,\"boot_count\":\"118\",\"tz\":\"Europe/Berlin\",\"apn\":\"iot.1nce.net\"}";
+    }
+
+    /**
+     * The records with their arrays flattened to indexed keys, as stored.
+     */
+    private static JsonArray flatten(JsonArray records) {
+        JsonArray result = new JsonArray();
+        for (JsonElement record : records) {
+            JsonObject flat = new JsonObject();
+            for (Map.Entry<String, JsonElement> field : record.getAsJsonObject().entrySet()) {
+                if (field.getValue().isJsonArray()) {
+                    JsonArray array = field.getValue().getAsJsonArray();
+                    for (int i = 0; i < array.size(); i++) {
+                        flat.add(field.getKey() + i, array.get(i));
+                    }
+                } else {
+                    flat.add(field.getKey(), field.getValue());
+                }
+            }
+            result.add(flat);
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DataListBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class).build()).run();
+    }
+}
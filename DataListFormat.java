@@ -0,0 +1,75 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonParseException;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Encodings of the data_list telemetry payload, selected by the request Content-Type.
+ * Binary encodings are decoded straight into {@link TsKvListProto} by the same rules as JSON.
+ */
+public enum DataListFormat {
+
+    JSON,
+    PROTOBUF,
+    CBOR,
+    MSGPACK;
+
+    public static DataListFormat fromContentType(String contentType) {
+        if (contentType == null) {
+            return JSON;
+        }
+        int paramsStart = contentType.indexOf(';');
+        String mimeType = (paramsStart < 0 ? contentType : contentType.substring(0, paramsStart)).trim().toLowerCase(Locale.ROOT);
+        switch (mimeType) {
+            case "application/x-protobuf":
+            case "application/protobuf":
+                return PROTOBUF;
+            case "application/cbor":
+                return CBOR;
+            case "application/msgpack":
+            case "application/x-msgpack":
+                return MSGPACK;
+            default:
+                return JSON;
+        }
+    }
+
+    /**
+     * Decodes a binary payload.
+     *
+     * @throws IllegalArgumentException if the payload is malformed
+     * @param keyTypes learned types of the device type's keys, may be {@code null}
+     * @throws JsonParseException if the list contains more than {@code maxRecords} records or a value can't be converted
+     */
+    public List<TsKvListProto> decode(byte[] payload, long systemTs, int maxRecords, LearnedKeyTypes keyTypes, DataListOptions options) {
+        DataListRecordAssembler assembler = new DataListRecordAssembler(keyTypes, options);
+        switch (this) {
+            case PROTOBUF:
+                return new ProtoDataListDecoder(payload, assembler).decode(systemTs, maxRecords);
+            case CBOR:
+                return new CborDataListDecoder(payload, assembler).decode(systemTs, maxRecords);
+            case MSGPACK:
+                return new MsgPackDataListDecoder(payload, assembler).decode(systemTs, maxRecords);
+            default:
+                throw new IllegalStateException(this + " is a text format");
+        }
+    }
+}
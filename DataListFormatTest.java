@@ -0,0 +1,409 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.protobuf.CodedOutputStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that the binary encodings of a data_list decode to the telemetry of the original DeviceApiController
+ * for the same payload in json, see {@link JsonDataListParserTest#baseline}.
+ */
+public class DataListFormatTest {
+
+    private static final long TS = JsonDataListParserTest.TS;
+
+    @Test
+    public void testReadmePayload() {
+        assertDecoded(JsonDataListParserTest.README_PAYLOAD);
+    }
+
+    @Test
+    public void testMixedPayload() {
+        assertDecoded(JsonDataListParserTest.MIXED_PAYLOAD);
+    }
+
+    @Test
+    public void testLearnedKeyTypes() {
+        LearnedKeyTypes keyTypes = new LearnedKeyTypes(100, new LongAdder(), new LongAdder());
+        String json = JsonDataListParserTest.README_PAYLOAD;
+        for (DataListFormat format : Arrays.asList(DataListFormat.CBOR, DataListFormat.MSGPACK, DataListFormat.PROTOBUF, DataListFormat.CBOR)) {
+            Assert.assertEquals(format.name(), JsonDataListParserTest.baseline(json),
+                    format.decode(encode(format, json), TS, 10, keyTypes, DataListOptions.DEFAULT));
+        }
+    }
+
+    @Test(expected = JsonDataListParser.DataListTooLargeException.class)
+    public void testTooManyRecords() {
+        decode(DataListFormat.CBOR, encode(DataListFormat.CBOR, JsonDataListParserTest.README_PAYLOAD), 1);
+    }
+
+    @Test
+    public void testTruncatedPayloads() {
+        for (DataListFormat format : Arrays.asList(DataListFormat.CBOR, DataListFormat.MSGPACK, DataListFormat.PROTOBUF)) {
+            byte[] payload = encode(format, JsonDataListParserTest.README_PAYLOAD);
+            // half of the payload is a whole record in protobuf, so it is cut within the second one
+            for (int length : new int[]{1, 2, payload.length / 2 + 3, payload.length - 1}) {
+                assertRejected(format, Arrays.copyOf(payload, length));
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedCbor() {
+        assertRejected(DataListFormat.CBOR, new byte[0]);
+        // not a map
+        assertRejected(DataListFormat.CBOR, cbor(new JsonParser().parse("[1]")));
+        assertRejected(DataListFormat.CBOR, cbor(new JsonParser().parse("{}")));
+        assertRejected(DataListFormat.CBOR, cbor(new JsonParser().parse("{\"data_list\":[3]}")));
+        assertRejected(DataListFormat.CBOR, cbor(new JsonParser().parse("{\"data_list\":[{\"id\":{\"a\":1}}]}")));
+        // trailing bytes
+        byte[] payload = cbor(new JsonParser().parse("{\"data_list\":[]}"));
+        assertRejected(DataListFormat.CBOR, Arrays.copyOf(payload, payload.length + 1));
+        // an unknown key holding indefinite arrays nested deeper than the decoder skips, a stack overflow without the cap
+        ByteArrayOutputStream deep = new ByteArrayOutputStream();
+        deep.write(0xa1);
+        writeCborString(deep, "x");
+        for (int i = 0; i < 100000; i++) {
+            deep.write(0x9f);
+        }
+        for (int i = 0; i < 100000; i++) {
+            deep.write(0xff);
+        }
+        assertRejected(DataListFormat.CBOR, deep.toByteArray());
+    }
+
+    @Test
+    public void testMalformedMsgPack() {
+        assertRejected(DataListFormat.MSGPACK, new byte[0]);
+        assertRejected(DataListFormat.MSGPACK, msgPack(new JsonParser().parse("[1]")));
+        assertRejected(DataListFormat.MSGPACK, msgPack(new JsonParser().parse("{}")));
+        assertRejected(DataListFormat.MSGPACK, msgPack(new JsonParser().parse("{\"data_list\":[3]}")));
+        assertRejected(DataListFormat.MSGPACK, msgPack(new JsonParser().parse("{\"data_list\":[{\"id\":{\"a\":1}}]}")));
+        // nil value
+        assertRejected(DataListFormat.MSGPACK, new byte[]{(byte) 0x81, (byte) 0xa9, 'd', 'a', 't', 'a', '_', 'l', 'i', 's', 't',
+                (byte) 0x91, (byte) 0x81, (byte) 0xa2, 'i', 'd', (byte) 0xc0});
+        ByteArrayOutputStream deep = new ByteArrayOutputStream();
+        deep.write(0x81);
+        writeMsgPackString(deep, "x");
+        for (int i = 0; i < 100000; i++) {
+            deep.write(0x91);
+        }
+        deep.write(0x01);
+        assertRejected(DataListFormat.MSGPACK, deep.toByteArray());
+    }
+
+    @Test
+    public void testMalformedProto() throws IOException {
+        // a field without a key
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(field);
+        output.writeByteArray(2, protoValue(new JsonPrimitive(3)));
+        output.flush();
+        assertRejected(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, field.toByteArray())));
+        // a group
+        assertRejected(DataListFormat.PROTOBUF, new byte[]{0x0b, 0x0c});
+        // a record length past the end
+        assertRejected(DataListFormat.PROTOBUF, new byte[]{0x0a, 0x7f, 0x0a});
+        // no records: an empty list can't be told from a missing one
+        assertRejected(DataListFormat.PROTOBUF, new byte[0]);
+        assertRejected(DataListFormat.PROTOBUF, new byte[]{0x10, 0x01});
+    }
+
+    @Test
+    public void testProtoWireTypeMismatch() throws IOException {
+        // each of these would be read with the field's expected wire type and misparsed instead of rejected:
+        // a record as the varint 0 (an empty record)
+        assertRejected(DataListFormat.PROTOBUF, new byte[]{0x08, 0x00});
+        // a key as the varint 1 followed by "k"
+        assertRejected(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, new byte[]{0x08, 0x01, 'k', 0x12, 0x02, 0x10, 0x05})));
+        // a double as a varint followed by the 8 bytes of 1.0
+        assertRejected(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, protoField(protoMessage(2, new byte[]{0x18, 0, 0, 0, 0, 0, 0, (byte) 0xf0, 0x3f})))));
+        // a string as the varint 1 followed by "x"
+        assertRejected(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, protoField(protoMessage(2, new byte[]{0x20, 0x01, 'x'})))));
+        // a long as fixed64
+        assertRejected(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, protoField(protoMessage(2, new byte[]{0x11, 1, 2, 3, 4, 5, 6, 7, 8})))));
+        // an array as a varint
+        assertRejected(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, protoField(new byte[]{0x18, 0x00}))));
+        // the same value with the right wire type is accepted
+        Assert.assertEquals(1, decode(DataListFormat.PROTOBUF, protoMessage(1, protoMessage(1, protoField(protoMessage(2, new byte[]{0x10, 0x05})))), 10).size());
+    }
+
+    private static void assertDecoded(String json) {
+        for (DataListFormat format : Arrays.asList(DataListFormat.CBOR, DataListFormat.MSGPACK, DataListFormat.PROTOBUF)) {
+            Assert.assertEquals(format.name(), JsonDataListParserTest.baseline(json), decode(format, encode(format, json), 10));
+        }
+    }
+
+    private static void assertRejected(DataListFormat format, byte[] payload) {
+        try {
+            decode(format, payload, 10);
+            Assert.fail(format + " payload accepted: " + Arrays.toString(payload));
+        } catch (IllegalArgumentException e) {
+            // answered with 400
+        }
+    }
+
+    private static List<TsKvListProto> decode(DataListFormat format, byte[] payload, int maxRecords) {
+        return format.decode(payload, TS, maxRecords, null, DataListOptions.DEFAULT);
+    }
+
+    private static byte[] encode(DataListFormat format, String json) {
+        JsonElement element = new JsonParser().parse(json);
+        switch (format) {
+            case CBOR:
+                return cbor(element);
+            case MSGPACK:
+                return msgPack(element);
+            case PROTOBUF:
+                return proto(element.getAsJsonObject());
+            default:
+                throw new IllegalArgumentException(format.name());
+        }
+    }
+
+    /**
+     * Numbers with a decimal point or an exponent are encoded as doubles, the others as integers.
+     */
+    private static boolean isDouble(JsonPrimitive primitive) {
+        String text = primitive.getAsString();
+        return text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0;
+    }
+
+    private static byte[] cbor(JsonElement element) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeCbor(out, element);
+        return out.toByteArray();
+    }
+
+    private static void writeCbor(ByteArrayOutputStream out, JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            writeCborHead(out, 5, object.size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeCborString(out, entry.getKey());
+                writeCbor(out, entry.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeCborHead(out, 4, array.size());
+            for (JsonElement item : array) {
+                writeCbor(out, item);
+            }
+        } else if (element.isJsonNull()) {
+            out.write(0xf6);
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.write(primitive.getAsBoolean() ? 0xf5 : 0xf4);
+            } else if (primitive.isString()) {
+                writeCborString(out, primitive.getAsString());
+            } else if (isDouble(primitive)) {
+                out.write(0xfb);
+                writeBigEndian(out, Double.doubleToLongBits(primitive.getAsDouble()), 8);
+            } else {
+                long value = primitive.getAsLong();
+                writeCborHead(out, value < 0 ? 1 : 0, value < 0 ? -1 - value : value);
+            }
+        }
+    }
+
+    private static void writeCborString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeCborHead(out, 3, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeCborHead(ByteArrayOutputStream out, int majorType, long argument) {
+        int major = majorType << 5;
+        if (argument < 24) {
+            out.write(major | (int) argument);
+        } else if (argument < 0x100) {
+            out.write(major | 24);
+            writeBigEndian(out, argument, 1);
+        } else if (argument < 0x10000) {
+            out.write(major | 25);
+            writeBigEndian(out, argument, 2);
+        } else if (argument < 0x100000000L) {
+            out.write(major | 26);
+            writeBigEndian(out, argument, 4);
+        } else {
+            out.write(major | 27);
+            writeBigEndian(out, argument, 8);
+        }
+    }
+
+    private static byte[] msgPack(JsonElement element) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeMsgPack(out, element);
+        return out.toByteArray();
+    }
+
+    private static void writeMsgPack(ByteArrayOutputStream out, JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            writeMsgPackHead(out, 0x80, 0xde, object.size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeMsgPackString(out, entry.getKey());
+                writeMsgPack(out, entry.getValue());
+            }
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeMsgPackHead(out, 0x90, 0xdc, array.size());
+            for (JsonElement item : array) {
+                writeMsgPack(out, item);
+            }
+        } else if (element.isJsonNull()) {
+            out.write(0xc0);
+        } else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                out.write(primitive.getAsBoolean() ? 0xc3 : 0xc2);
+            } else if (primitive.isString()) {
+                writeMsgPackString(out, primitive.getAsString());
+            } else if (isDouble(primitive)) {
+                out.write(0xcb);
+                writeBigEndian(out, Double.doubleToLongBits(primitive.getAsDouble()), 8);
+            } else {
+                long value = primitive.getAsLong();
+                if (value >= -32 && value <= 0x7f) {
+                    out.write((int) value & 0xff);
+                } else {
+                    out.write(0xd3);
+                    writeBigEndian(out, value, 8);
+                }
+            }
+        }
+    }
+
+    private static void writeMsgPackHead(ByteArrayOutputStream out, int fixPrefix, int prefix16, int size) {
+        if (size < 16) {
+            out.write(fixPrefix | size);
+        } else {
+            out.write(prefix16);
+            writeBigEndian(out, size, 2);
+        }
+    }
+
+    private static void writeMsgPackString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 32) {
+            out.write(0xa0 | bytes.length);
+        } else if (bytes.length < 0x100) {
+            out.write(0xd9);
+            writeBigEndian(out, bytes.length, 1);
+        } else {
+            out.write(0xda);
+            writeBigEndian(out, bytes.length, 2);
+        }
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeBigEndian(ByteArrayOutputStream out, long value, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift) & 0xff);
+        }
+    }
+
+    /**
+     * DataList of data_list.proto; other keys of the json object have no counterpart and are left out.
+     */
+    private static byte[] proto(JsonObject payload) {
+        try {
+            ByteArrayOutputStream dataList = new ByteArrayOutputStream();
+            CodedOutputStream output = CodedOutputStream.newInstance(dataList);
+            for (JsonElement record : payload.getAsJsonArray(JsonDataListParser.DATA_LIST)) {
+                ByteArrayOutputStream fields = new ByteArrayOutputStream();
+                CodedOutputStream recordOutput = CodedOutputStream.newInstance(fields);
+                for (Map.Entry<String, JsonElement> entry : record.getAsJsonObject().entrySet()) {
+                    ByteArrayOutputStream field = new ByteArrayOutputStream();
+                    CodedOutputStream fieldOutput = CodedOutputStream.newInstance(field);
+                    fieldOutput.writeString(1, entry.getKey());
+                    if (entry.getValue().isJsonArray()) {
+                        ByteArrayOutputStream values = new ByteArrayOutputStream();
+                        CodedOutputStream valuesOutput = CodedOutputStream.newInstance(values);
+                        for (JsonElement value : entry.getValue().getAsJsonArray()) {
+                            valuesOutput.writeByteArray(1, protoValue(value.getAsJsonPrimitive()));
+                        }
+                        valuesOutput.flush();
+                        fieldOutput.writeByteArray(3, values.toByteArray());
+                    } else {
+                        fieldOutput.writeByteArray(2, protoValue(entry.getValue().getAsJsonPrimitive()));
+                    }
+                    fieldOutput.flush();
+                    recordOutput.writeByteArray(1, field.toByteArray());
+                }
+                recordOutput.flush();
+                output.writeByteArray(1, fields.toByteArray());
+            }
+            output.flush();
+            return dataList.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] protoValue(JsonPrimitive primitive) throws IOException {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(value);
+        if (primitive.isBoolean()) {
+            output.writeBool(1, primitive.getAsBoolean());
+        } else if (primitive.isString()) {
+            output.writeString(4, primitive.getAsString());
+        } else if (isDouble(primitive)) {
+            output.writeDouble(3, primitive.getAsDouble());
+        } else {
+            output.writeSInt64(2, primitive.getAsLong());
+        }
+        output.flush();
+        return value.toByteArray();
+    }
+
+    /**
+     * Field {"k": ...} of data_list.proto with the given encoded fields after its key.
+     */
+    private static byte[] protoField(byte[] rest) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        output.writeString(1, "k");
+        output.flush();
+        out.write(rest);
+        return out.toByteArray();
+    }
+
+    private static byte[] protoMessage(int fieldNumber, byte[] message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CodedOutputStream output = CodedOutputStream.newInstance(out);
+        output.writeByteArray(fieldNumber, message);
+        output.flush();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import org.springframework.util.StringUtils;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * How array fields of data_list records are stored.
+ * <ul>
+ * <li>packed arrays: the whole array as one value instead of a key per element, see {@link DataListRecordAssembler}</li>
+ * <li>aggregates: extra keys computed from the numeric elements of an array, e.g. "cell_vlt_max".
+ * Configured as {@code array:aggregate,...;array:aggregate,...}, e.g. {@code cell_vlt:min,max,spread;bat_tmp:max}</li>
+ * </ul>
+ */
+public class DataListOptions {
+
+    public static final DataListOptions DEFAULT = new DataListOptions(false, Collections.emptyMap());
+
+    public enum Aggregate {
+        /** smallest element, a long if all elements are integers */
+        MIN,
+        /** largest element, a long if all elements are integers */
+        MAX,
+        /** average of the elements, always a double */
+        MEAN,
+        /** largest minus smallest element, e.g. the cell imbalance */
+        SPREAD;
+
+        private final String suffix = "_" + name().toLowerCase(Locale.ROOT);
+
+        String key(String arrayKey) {
+            return arrayKey + suffix;
+        }
+    }
+
+    private final boolean packArrays;
+    private final Map<String, Set<Aggregate>> aggregates;
+
+    private DataListOptions(boolean packArrays, Map<String, Set<Aggregate>> aggregates) {
+        this.packArrays = packArrays;
+        this.aggregates = aggregates;
+    }
+
+    /**
+     * @param aggregates e.g. {@code cell_vlt:min,max,spread;bat_tmp:max}, may be empty
+     * @throws IllegalArgumentException if the aggregates can't be parsed
+     */
+    public static DataListOptions of(boolean packArrays, String aggregates) {
+        Map<String, Set<Aggregate>> result = new HashMap<>();
+        if (!StringUtils.isEmpty(aggregates)) {
+            for (String array : aggregates.split(";")) {
+                if (array.trim().isEmpty()) {
+                    continue;
+                }
+                int colon = array.indexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Invalid array aggregates [" + array + "], expected array:aggregate,...");
+                }
+                Set<Aggregate> arrayAggregates = EnumSet.noneOf(Aggregate.class);
+                for (String aggregate : array.substring(colon + 1).split(",")) {
+                    try {
+                        arrayAggregates.add(Aggregate.valueOf(aggregate.trim().toUpperCase(Locale.ROOT)));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown aggregate [" + aggregate.trim() + "] of array [" + array + "]");
+                    }
+                }
+                result.put(array.substring(0, colon).trim(), arrayAggregates);
+            }
+        }
+        return new DataListOptions(packArrays, result);
+    }
+
+    public boolean isPackArrays() {
+        return packArrays;
+    }
+
+    /**
+     * @return whether arrays are stored other than flattened into indexed keys
+     */
+    public boolean hasArrayProcessing() {
+        return packArrays || !aggregates.isEmpty();
+    }
+
+    /**
+     * @return aggregates of the array or {@code null}
+     */
+    Set<Aggregate> getAggregates(String arrayKey) {
+        return aggregates.get(arrayKey);
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonSyntaxException;
+import org.thingsboard.server.common.transport.adaptor.DataListOptions.Aggregate;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProtoOrBuilder;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the values of one data_list record, whatever the payload format.
+ * Values are typed by the {@link JsonConverter} rules and a repeated key keeps its first position
+ * with the last value, like a Gson object does.
+ * <p>
+ * Array elements are added between {@link #beginArray} and {@link #endArray} with their index.
+ * By default every element becomes a key of its own ("cur0", "cur1", ...); with packed arrays the whole array
+ * is stored under its key as a single {@link KeyValueType#STRING_V STRING_V} value holding a JSON array
+ * of the typed elements, e.g. {@code "cur":"[1,2,3.5]"}.
+ * Configured {@link Aggregate aggregates} of the numeric elements are computed on the way and added as extra keys;
+ * a value of the record under the same key takes precedence over an aggregate, wherever it is in the record.
+ */
+class DataListRecordAssembler {
+
+    static final int NO_INDEX = -1;
+
+    private final Map<String, KeyValueProto> kvs = new LinkedHashMap<>();
+    // keys of kvs that hold an aggregate rather than a value of the record
+    private final Set<String> aggregateKeys = new HashSet<>();
+    private final LearnedKeyTypes keyTypes;
+    private final DataListOptions options;
+    private final boolean packArrays;
+    private final StringBuilder vector = new StringBuilder();
+    private final KeyValueProto.Builder element = KeyValueProto.newBuilder();
+    private String arrayKey;
+
+    // aggregates of the current array
+    private Set<Aggregate> aggregates;
+    private int count;
+    private boolean integers;
+    private long longMin;
+    private long longMax;
+    private double min;
+    private double max;
+    private double sum;
+
+    /**
+     * @param keyTypes learned types of the device type's keys, may be {@code null}
+     */
+    DataListRecordAssembler(LearnedKeyTypes keyTypes, DataListOptions options) {
+        this.keyTypes = keyTypes;
+        this.options = options;
+        this.packArrays = options.isPackArrays();
+    }
+
+    void reset() {
+        kvs.clear();
+        aggregateKeys.clear();
+    }
+
+    void beginArray(String key) {
+        arrayKey = key;
+        vector.setLength(0);
+        aggregates = options.getAggregates(key);
+        count = 0;
+        integers = true;
+        longMin = Long.MAX_VALUE;
+        longMax = Long.MIN_VALUE;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        sum = 0;
+    }
+
+    void endArray() {
+        if (packArrays && vector.length() > 0) {
+            vector.append(']');
+            checkLength(vector.length());
+            put(arrayKey, KeyValueProto.newBuilder().setKey(arrayKey).setType(KeyValueType.STRING_V).setStringV(vector.toString()).build());
+        }
+        if (aggregates != null && count > 0) {
+            for (Aggregate aggregate : aggregates) {
+                String key = aggregate.key(arrayKey);
+                if (kvs.containsKey(key) && !aggregateKeys.contains(key)) {
+                    continue;
+                }
+                KeyValueProto.Builder kv = KeyValueProto.newBuilder().setKey(key);
+                switch (aggregate) {
+                    case MIN:
+                        setNumber(kv, longMin, min);
+                        break;
+                    case MAX:
+                        setNumber(kv, longMax, max);
+                        break;
+                    case MEAN:
+                        kv.setType(KeyValueType.DOUBLE_V).setDoubleV(sum / count);
+                        break;
+                    case SPREAD:
+                        setSpread(kv);
+                        break;
+                }
+                kvs.put(key, kv.build());
+                aggregateKeys.add(key);
+            }
+        }
+        arrayKey = null;
+        aggregates = null;
+    }
+
+    void addString(String key, String value) {
+        addString(key, NO_INDEX, value);
+    }
+
+    void addString(String key, int index, String value) {
+        if (index != NO_INDEX && packArrays) {
+            appendString(value);
+        } else {
+            key = elementKey(key, index);
+            KeyValueProto kv = keyTypes != null ? keyTypes.buildStringKeyValueProto(key, value) : JsonConverter.buildStringKeyValueProto(key, value);
+            put(key, kv);
+            if (index != NO_INDEX) {
+                aggregate(kv);
+            }
+        }
+    }
+
+    void addNumber(String key, String value) {
+        addNumber(key, NO_INDEX, value);
+    }
+
+    void addNumber(String key, int index, String value) {
+        if (index != NO_INDEX && packArrays) {
+            JsonConverter.parseNumber(value, false, element.clear());
+            appendElement();
+        } else {
+            key = elementKey(key, index);
+            KeyValueProto kv = JsonConverter.buildNumericKeyValueProto(key, value);
+            put(key, kv);
+            if (index != NO_INDEX) {
+                aggregate(kv);
+            }
+        }
+    }
+
+    void addLong(String key, long value) {
+        addLong(key, NO_INDEX, value);
+    }
+
+    void addLong(String key, int index, long value) {
+        if (index != NO_INDEX) {
+            aggregate(value);
+        }
+        if (index != NO_INDEX && packArrays) {
+            appendSeparator().append(value);
+        } else {
+            key = elementKey(key, index);
+            put(key, KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.LONG_V).setLongV(value).build());
+        }
+    }
+
+    void addDouble(String key, double value) {
+        addDouble(key, NO_INDEX, value);
+    }
+
+    void addDouble(String key, int index, double value) {
+        if (index != NO_INDEX) {
+            aggregate(value);
+        }
+        if (index != NO_INDEX && packArrays) {
+            appendDouble(value);
+        } else {
+            key = elementKey(key, index);
+            put(key, KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.DOUBLE_V).setDoubleV(value).build());
+        }
+    }
+
+    void addBoolean(String key, boolean value) {
+        addBoolean(key, NO_INDEX, value);
+    }
+
+    void addBoolean(String key, int index, boolean value) {
+        if (index != NO_INDEX && packArrays) {
+            appendSeparator().append(value);
+        } else {
+            key = elementKey(key, index);
+            put(key, JsonConverter.buildBooleanKeyValueProto(key, value));
+        }
+    }
+
+    void addTo(TsKvListProto.Builder record) {
+        if (kvs.containsKey("ts") && kvs.containsKey("values")) {
+            throw new JsonSyntaxException("Record with 'ts' must contain 'values' object!");
+        }
+        record.addAllKv(kvs.values());
+    }
+
+    /**
+     * Adds a value of the record, replacing an aggregate of the same key.
+     */
+    private void put(String key, KeyValueProto kv) {
+        kvs.put(key, kv);
+        if (!aggregateKeys.isEmpty()) {
+            aggregateKeys.remove(key);
+        }
+    }
+
+    private void aggregate(KeyValueProtoOrBuilder kv) {
+        if (kv.getType() == KeyValueType.LONG_V) {
+            aggregate(kv.getLongV());
+        } else if (kv.getType() == KeyValueType.DOUBLE_V) {
+            aggregate(kv.getDoubleV());
+        }
+    }
+
+    private void aggregate(long value) {
+        if (aggregates != null) {
+            longMin = Math.min(longMin, value);
+            longMax = Math.max(longMax, value);
+            add((double) value);
+        }
+    }
+
+    private void aggregate(double value) {
+        if (aggregates != null && !Double.isNaN(value)) {
+            integers = false;
+            add(value);
+        }
+    }
+
+    private void add(double value) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        count++;
+    }
+
+    private void setNumber(KeyValueProto.Builder kv, long longValue, double doubleValue) {
+        if (integers) {
+            kv.setType(KeyValueType.LONG_V).setLongV(longValue);
+        } else {
+            kv.setType(KeyValueType.DOUBLE_V).setDoubleV(doubleValue);
+        }
+    }
+
+    private void setSpread(KeyValueProto.Builder kv) {
+        long spread;
+        try {
+            spread = Math.subtractExact(longMax, longMin);
+        } catch (ArithmeticException e) {
+            // wider than a long
+            kv.setType(KeyValueType.DOUBLE_V).setDoubleV(max - min);
+            return;
+        }
+        setNumber(kv, spread, max - min);
+    }
+
+    private static String elementKey(String key, int index) {
+        return index == NO_INDEX ? key : key + index;
+    }
+
+    private StringBuilder appendSeparator() {
+        return vector.append(vector.length() == 0 ? '[' : ',');
+    }
+
+    private void appendString(String value) {
+        checkLength(value.length());
+        if (JsonConverter.isTypeCastEnabled() && JsonConverter.parseNumber(value, true, element.clear())) {
+            appendElement();
+        } else {
+            appendQuoted(value);
+        }
+    }
+
+    /**
+     * Checks the length of a string element, and of the packed array, which is stored as a string value itself.
+     */
+    private void checkLength(int length) {
+        int maxStringValueLength = JsonConverter.getMaxStringValueLength();
+        if (maxStringValueLength > 0 && length > maxStringValueLength) {
+            String message = String.format("String value length [%d] for key [%s] is greater than maximum allowed [%d]", length, arrayKey, maxStringValueLength);
+            throw new JsonSyntaxException(message);
+        }
+    }
+
+    private void appendElement() {
+        aggregate(element);
+        if (element.getType() == KeyValueType.LONG_V) {
+            appendSeparator().append(element.getLongV());
+        } else {
+            appendDouble(element.getDoubleV());
+        }
+    }
+
+    private void appendDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            // not representable as a JSON number
+            appendQuoted(Double.toString(value));
+        } else {
+            appendSeparator().append(value);
+        }
+    }
+
+    private void appendQuoted(String value) {
+        appendSeparator().append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                vector.append('\\').append(c);
+            } else if (c < 0x20) {
+                vector.append(String.format("\\u%04x", (int) c));
+            } else {
+                vector.append(c);
+            }
+        }
+        vector.append('"');
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Array aggregates computed by {@link DataListRecordAssembler}.
+ */
+public class DataListRecordAssemblerTest {
+
+    private static final DataListOptions AGGREGATES = DataListOptions.of(false, "cell_vlt:min,max,mean,spread");
+
+    @Test
+    public void testAggregatesOfIntegers() {
+        Map<String, KeyValueProto> kvs = parse("{\"cell_vlt\":[3,4,3,4]}", AGGREGATES);
+        assertLong(3, kvs.get("cell_vlt_min"));
+        assertLong(4, kvs.get("cell_vlt_max"));
+        Assert.assertEquals(3.5, kvs.get("cell_vlt_mean").getDoubleV(), 0);
+        assertLong(1, kvs.get("cell_vlt_spread"));
+        assertLong(3, kvs.get("cell_vlt0"));
+    }
+
+    @Test
+    public void testAggregatesOfDoublesAndText() {
+        Map<String, KeyValueProto> kvs = parse("{\"cell_vlt\":[3.25,\"4.5\",\"x\",true]}", AGGREGATES);
+        Assert.assertEquals(KeyValueType.DOUBLE_V, kvs.get("cell_vlt_min").getType());
+        Assert.assertEquals(3.25, kvs.get("cell_vlt_min").getDoubleV(), 0);
+        Assert.assertEquals(4.5, kvs.get("cell_vlt_max").getDoubleV(), 0);
+        Assert.assertEquals(1.25, kvs.get("cell_vlt_spread").getDoubleV(), 0);
+        Assert.assertNull(parse("{\"cell_vlt\":[\"x\",false]}", AGGREGATES).get("cell_vlt_max"));
+    }
+
+    @Test
+    public void testSpreadWiderThanLong() {
+        Map<String, KeyValueProto> kvs = parse("{\"cell_vlt\":[-9223372036854775808,9223372036854775807]}", AGGREGATES);
+        Assert.assertEquals(KeyValueType.DOUBLE_V, kvs.get("cell_vlt_spread").getType());
+        Assert.assertEquals(1.8446744073709552E19, kvs.get("cell_vlt_spread").getDoubleV(), 0);
+    }
+
+    @Test
+    public void testPackedArrayWithAggregates() {
+        Map<String, KeyValueProto> kvs = parse("{\"cell_vlt\":[3,\"4\",4.5]}", DataListOptions.of(true, "cell_vlt:max"));
+        Assert.assertEquals("[3,4,4.5]", kvs.get("cell_vlt").getStringV());
+        Assert.assertEquals(4.5, kvs.get("cell_vlt_max").getDoubleV(), 0);
+    }
+
+    @Test
+    public void testRecordKeyWinsOverAggregate() {
+        // before and after the array
+        assertLong(7, parse("{\"cell_vlt_max\":7,\"cell_vlt\":[3,4]}", AGGREGATES).get("cell_vlt_max"));
+        assertLong(7, parse("{\"cell_vlt\":[3,4],\"cell_vlt_max\":7}", AGGREGATES).get("cell_vlt_max"));
+        // a repeated array replaces its aggregates
+        assertLong(9, parse("{\"cell_vlt\":[3,4],\"cell_vlt\":[9]}", AGGREGATES).get("cell_vlt_max"));
+        // but not a record value
+        assertLong(7, parse("{\"cell_vlt\":[3,4],\"cell_vlt_max\":7,\"cell_vlt\":[9]}", AGGREGATES).get("cell_vlt_max"));
+    }
+
+    @Test
+    public void testWithoutOptionsSameAsOriginalConversion() {
+        String json = "{\"data_list\":[{\"cell_vlt\":[3,4],\"cell_vlt_max\":7}]}";
+        Assert.assertEquals(JsonDataListParserTest.baseline(json),
+                JsonDataListParser.parseDataList(new StringReader(json), JsonDataListParserTest.TS, 10, null, DataListOptions.DEFAULT));
+    }
+
+    private static Map<String, KeyValueProto> parse(String record, DataListOptions options) {
+        List<TsKvListProto> records = JsonDataListParser.parseDataList(new StringReader("{\"data_list\":[" + record + "]}"), 0, 10, null, options);
+        Map<String, KeyValueProto> kvs = new LinkedHashMap<>();
+        records.get(0).getKvList().forEach(kv -> Assert.assertNull("Repeated key " + kv.getKey(), kvs.put(kv.getKey(), kv)));
+        return kvs;
+    }
+
+    private static void assertLong(long expected, KeyValueProto kv) {
+        Assert.assertEquals(KeyValueType.LONG_V, kv.getType());
+        Assert.assertEquals(expected, kv.getLongV());
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fixed layout of a data_list record, compiled into a converter with precomputed keys and value types.
+ * The layout maps every record field to a value type, arrays declare their maximum length:
+ * <pre>{"id": "long", "v": "double", "err": "long[2]", "blc_s": "boolean", "t": "long"}</pre>
+ * The type is the {@link KeyValueType} the generic {@link JsonDataListParser} would produce for the value,
+ * e.g. "long" for {@code "t":"3"} when type cast is enabled. A payload that does not fit the layout
+ * makes {@link #parseDataList} return {@code null}, so the caller can fall back to the generic parser.
+ */
+public class DataListSchema {
+
+    private static final Pattern FIELD_TYPE = Pattern.compile("(boolean|long|double|string)(?:\\[(\\d+)])?");
+
+    private final Map<String, Field> fields;
+    private final int kvCount;
+
+    private DataListSchema(Map<String, Field> fields, int kvCount) {
+        this.fields = fields;
+        this.kvCount = kvCount;
+    }
+
+    public static DataListSchema compile(JsonObject layout) {
+        Map<String, Field> fields = new HashMap<>();
+        Set<String> keys = new HashSet<>();
+        int kvCount = 0;
+        for (Entry<String, JsonElement> entry : layout.entrySet()) {
+            String name = entry.getKey();
+            Matcher matcher = FIELD_TYPE.matcher(entry.getValue().getAsString().trim().toLowerCase(Locale.ROOT));
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Unsupported type [" + entry.getValue() + "] of field [" + name + "]");
+            }
+            KeyValueType type = KeyValueType.valueOf(matcher.group(1).toUpperCase(Locale.ROOT) + "_V");
+            String[] indexedKeys = null;
+            if (matcher.group(2) != null) {
+                indexedKeys = new String[Integer.parseInt(matcher.group(2))];
+                for (int i = 0; i < indexedKeys.length; i++) {
+                    indexedKeys[i] = (name + i).intern();
+                }
+            }
+            for (String key : indexedKeys != null ? indexedKeys : new String[]{name}) {
+                if (!keys.add(key)) {
+                    throw new IllegalArgumentException("Field [" + name + "] produces duplicate key [" + key + "]");
+                }
+            }
+            fields.put(name, new Field(fields.size(), name.intern(), type, indexedKeys));
+            kvCount += indexedKeys != null ? indexedKeys.length : 1;
+        }
+        if (keys.contains("ts") && keys.contains("values")) {
+            throw new IllegalArgumentException("Fields [ts] and [values] can't be used together");
+        }
+        return new DataListSchema(fields, kvCount);
+    }
+
+    /**
+     * @return records of the payload or {@code null} if the payload does not fit the layout
+     */
+    public List<TsKvListProto> parseDataList(Reader json, long systemTs, int maxRecords) throws JsonParseException {
+        try {
+            return JsonDataListParser.parseDataList(json, systemTs, maxRecords, new CompiledRecordReader());
+        } catch (LayoutMismatchException e) {
+            return null;
+        }
+    }
+
+    private static class Field {
+        private final int index;
+        private final String key;
+        private final KeyValueType type;
+        private final String[] indexedKeys;
+
+        Field(int index, String key, KeyValueType type, String[] indexedKeys) {
+            this.index = index;
+            this.key = key;
+            this.type = type;
+            this.indexedKeys = indexedKeys;
+        }
+    }
+
+    private class CompiledRecordReader implements JsonDataListParser.RecordReader {
+
+        private final KeyValueProto.Builder kv = KeyValueProto.newBuilder();
+        private final List<KeyValueProto> kvs = new ArrayList<>(kvCount);
+        private final boolean[] present = new boolean[fields.size()];
+        private final boolean typeCastEnabled = JsonConverter.isTypeCastEnabled();
+        private final int maxStringValueLength = JsonConverter.getMaxStringValueLength();
+
+        @Override
+        public void readRecord(JsonReader reader, TsKvListProto.Builder record) throws IOException {
+            Arrays.fill(present, false);
+            kvs.clear();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                Field field = fields.get(reader.nextName());
+                if (field == null || present[field.index]) {
+                    throw LayoutMismatchException.INSTANCE;
+                }
+                present[field.index] = true;
+                if (field.indexedKeys == null) {
+                    kvs.add(readValue(reader, field.key, field.type));
+                } else {
+                    if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        throw LayoutMismatchException.INSTANCE;
+                    }
+                    reader.beginArray();
+                    for (int i = 0; reader.hasNext(); i++) {
+                        if (i == field.indexedKeys.length) {
+                            throw LayoutMismatchException.INSTANCE;
+                        }
+                        kvs.add(readValue(reader, field.indexedKeys[i], field.type));
+                    }
+                    reader.endArray();
+                }
+            }
+            reader.endObject();
+            // addAllKv sizes the builder's list once for the whole record
+            record.addAllKv(kvs);
+        }
+
+        private KeyValueProto readValue(JsonReader reader, String key, KeyValueType type) throws IOException {
+            JsonToken token = reader.peek();
+            kv.clear().setKey(key).setType(type);
+            switch (type) {
+                case BOOLEAN_V:
+                    if (token != JsonToken.BOOLEAN) {
+                        throw LayoutMismatchException.INSTANCE;
+                    }
+                    return kv.setBoolV(reader.nextBoolean()).build();
+                case LONG_V:
+                case DOUBLE_V:
+                    if (!readNumber(reader, token) || kv.getType() != type) {
+                        throw LayoutMismatchException.INSTANCE;
+                    }
+                    return kv.build();
+                default:
+                    if (token != JsonToken.STRING) {
+                        throw LayoutMismatchException.INSTANCE;
+                    }
+                    String value = reader.nextString();
+                    if (isTooLong(value) || (typeCastEnabled && NumberUtils.isParsable(value))) {
+                        throw LayoutMismatchException.INSTANCE;
+                    }
+                    return kv.setStringV(value).build();
+            }
+        }
+
+        /**
+         * @return whether the number was set on {@code kv}; if not, the generic parser has to decide (e.g. exponents, big integers)
+         */
+        private boolean readNumber(JsonReader reader, JsonToken token) throws IOException {
+            if (token == JsonToken.NUMBER) {
+                return JsonConverter.parseNumber(reader.nextString(), true, kv);
+            } else if (token == JsonToken.STRING && typeCastEnabled) {
+                String value = reader.nextString();
+                return !isTooLong(value) && JsonConverter.parseNumber(value, true, kv);
+            } else {
+                throw LayoutMismatchException.INSTANCE;
+            }
+        }
+
+        private boolean isTooLong(String value) {
+            return maxStringValueLength > 0 && value.length() > maxStringValueLength;
+        }
+    }
+
+    private static class LayoutMismatchException extends RuntimeException {
+
+        private static final LayoutMismatchException INSTANCE = new LayoutMismatchException();
+
+        private LayoutMismatchException() {
+            super("Payload does not match the layout", null, false, false);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Locale;
+
+/**
+ * Checks that a compiled layout parses a data_list to the telemetry of the original conversion,
+ * see {@link JsonDataListParserTest#baseline}.
+ */
+public class DataListSchemaTest {
+
+    private static final String README_LAYOUT = "{\"id\":\"long\",\"v\":\"long\",\"s\":\"long\",\"err\":\"long[2]\",\"vlt\":\"long\"," +
+            "\"cur\":\"long[5]\",\"bat_tmp\":\"long[6]\",\"cell_vlt\":\"long[23]\",\"blc_s\":\"long\",\"so\":\"long[2]\",\"rem\":\"long[2]\"," +
+            "\"chg\":\"long[2]\",\"od\":\"long\",\"spd\":\"long[2]\",\"tmp\":\"long[3]\",\"loc\":\"long[2]\",\"sim\":\"long[3]\",\"cns\":\"long\",\"t\":\"long\"}";
+
+    @Test
+    public void testReadmePayload() {
+        DataListSchema schema = DataListSchema.compile(new JsonParser().parse(README_LAYOUT).getAsJsonObject());
+        Assert.assertEquals(JsonDataListParserTest.baseline(JsonDataListParserTest.README_PAYLOAD),
+                schema.parseDataList(new StringReader(JsonDataListParserTest.README_PAYLOAD), JsonDataListParserTest.TS, 10));
+    }
+
+    @Test
+    public void testLayoutMismatch() {
+        DataListSchema schema = DataListSchema.compile(new JsonParser().parse(README_LAYOUT).getAsJsonObject());
+        Assert.assertNull(schema.parseDataList(new StringReader("{\"data_list\":[{\"id\":3,\"extra\":1}]}"), JsonDataListParserTest.TS, 10));
+        Assert.assertNull(schema.parseDataList(new StringReader("{\"data_list\":[{\"id\":\"x\"}]}"), JsonDataListParserTest.TS, 10));
+    }
+
+    @Test
+    public void testCompileUnderTurkishLocale() {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            DataListSchema schema = DataListSchema.compile(new JsonParser().parse("{\"name\":\"STRING\",\"ok\":\"Boolean\",\"v\":\"double\"}").getAsJsonObject());
+            String json = "{\"data_list\":[{\"name\":\"bms\",\"ok\":true,\"v\":1.5}]}";
+            Assert.assertEquals(JsonDataListParserTest.baseline(json), schema.parseDataList(new StringReader(json), JsonDataListParserTest.TS, 10));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() {
+        DataListSchema.compile(new JsonParser().parse("{\"v\":\"float\"}").getAsJsonObject());
+    }
+}
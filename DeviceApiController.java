@@ -3,52 +3,77 @@
  */
 package org.thingsboard.server.transport.http;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
-import com.google.gson.JsonElement;
-import java.awt.event.ItemEvent;
-import java.util.Map.Entry;
-import com.google.gson.Gson; 
-import com.google.gson.JsonArray;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.thingsboard.server.common.data.id.DeviceId;
 import org.thingsboard.server.common.transport.SessionMsgListener;
-import org.thingsboard.server.common.transport.TransportContext;
 import org.thingsboard.server.common.transport.TransportService;
 import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.common.transport.adaptor.DataListFormat;
 import org.thingsboard.server.common.transport.adaptor.JsonConverter;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser.DataListTooLargeException;
 import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ClaimDeviceMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
 import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeRequestMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.PostAttributeMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
 import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
-import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
-import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToRPCMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcResponseMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcRequestMsg;
 import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.Endpoint;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.TypedResult;
+import org.thingsboard.server.transport.http.DeviceAttributeCache.AttributesRead;
+import org.thingsboard.server.transport.http.DeviceAttributeCache.AttributesResponse;
+import org.thingsboard.server.transport.http.DeviceBatchSplitter.TooManyDevicesException;
+import org.thingsboard.server.transport.http.DeviceRecordDeduplicator.FilteredRecords;
+import org.thingsboard.server.transport.http.HttpRequestDecompressor.BodyRejectedException;
+import org.thingsboard.server.transport.http.HttpRequestDecompressor.BodyTooLargeException;
+import org.thingsboard.server.transport.http.HttpRequestDecompressor.DecodedBody;
+import org.thingsboard.server.transport.http.IngestionExecutor.Admission;
+import org.thingsboard.server.transport.http.LongPollRegistry.Kind;
+import org.thingsboard.server.transport.http.TelemetrySchemaRegistry.ReaderSupplier;
 import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceCredentialsResponseMsg;
-import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * @author Andrew Shvayka
@@ -62,14 +87,73 @@ public class DeviceApiController {
     @Autowired
     private HttpTransportContext transportContext;
 
+    @Autowired
+    private HttpTransportSettings settings;
+
+    @Autowired
+    private DeviceTokenCache tokenCache;
+
+    @Autowired
+    private DeviceRecordDeduplicator deduplicator;
+
+    @Autowired
+    private TelemetrySchemaRegistry schemaRegistry;
+
+    @Autowired
+    private HttpRequestDecompressor decompressor;
+
+    @Autowired
+    private TelemetryKeyTypeCache keyTypeCache;
+
+    @Autowired
+    private TelemetryDeadbandFilter deadbandFilter;
+
+    @Autowired
+    private DeviceApiMetrics metrics;
+
+    @Autowired
+    private RequestBodyReader bodyReader;
+
+    @Autowired
+    private IngestionExecutor ingestionExecutor;
+
+    @Autowired
+    private DeviceRateLimiter rateLimiter;
+
+    @Autowired
+    private TelemetryBatcher telemetryBatcher;
+
+    @Autowired
+    private LongPollRegistry longPollRegistry;
+
+    @Autowired
+    private DeviceEventStreams eventStreams;
+
+    @Autowired
+    private DeviceSessionCache sessionCache;
+
+    @Autowired
+    private DeviceAttributeCache attributeCache;
+
     @RequestMapping(value = "/{deviceToken}/attributes", method = RequestMethod.GET, produces = "application/json")
     public DeferredResult<ResponseEntity> getDeviceAttributes(@PathVariable("deviceToken") String deviceToken,
                                                               @RequestParam(value = "clientKeys", required = false, defaultValue = "") String clientKeys,
                                                               @RequestParam(value = "sharedKeys", required = false, defaultValue = "") String sharedKeys,
                                                               HttpServletRequest httpRequest) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.GET_ATTRIBUTES);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        String ifNoneMatch = httpRequest.getHeader(HttpHeaders.IF_NONE_MATCH);
+        validateToken(deviceToken,
+                new DeviceAuthCallback(null, responseWriter, (noSession, deviceInfo) -> {
+                    AttributesResponse cached = attributeCache.get(deviceInfo, clientKeys, sharedKeys);
+                    if (cached != null) {
+                        responseWriter.setResult(attributesResponse(cached, ifNoneMatch));
+                        return;
+                    }
+                    AttributesRead read = attributeCache.startRead(deviceInfo, clientKeys, sharedKeys);
+                    SessionInfoProto sessionInfo = sessionCache.create(deviceInfo);
                     GetAttributeRequestMsg.Builder request = GetAttributeRequestMsg.newBuilder().setRequestId(0);
                     List<String> clientKeySet = !StringUtils.isEmpty(clientKeys) ? Arrays.asList(clientKeys.split(",")) : null;
                     List<String> sharedKeySet = !StringUtils.isEmpty(sharedKeys) ? Arrays.asList(sharedKeys.split(",")) : null;
@@ -80,416 +164,220 @@ public class DeviceApiController {
                         request.addAllSharedAttributeNames(sharedKeySet);
                     }
                     TransportService transportService = transportContext.getTransportService();
-                    transportService.registerSyncSession(sessionInfo, new HttpSessionListener(responseWriter), transportContext.getDefaultTimeout());
-                    transportService.process(sessionInfo, request.build(), new SessionCloseOnErrorCallback(transportService, sessionInfo));
+                    transportService.registerSyncSession(sessionInfo, new HttpSessionListener(responseWriter, sessionCache, sessionInfo) {
+                        @Override
+                        public void onGetAttributesResponse(GetAttributeResponseMsg msg) {
+                            responseWriter.setResult(attributesResponse(read.complete(msg), ifNoneMatch));
+                        }
+                    }, transportContext.getDefaultTimeout());
+                    transportService.process(sessionInfo, request.build(), new SessionCloseOnErrorCallback(transportService, sessionInfo, responseWriter));
                 }));
         return responseWriter;
     }
 
     @RequestMapping(value = "/{deviceToken}/attributes", method = RequestMethod.POST)
     public DeferredResult<ResponseEntity> postDeviceAttributes(@PathVariable("deviceToken") String deviceToken,
-                                                               @RequestBody String json, HttpServletRequest request) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-                    TransportService transportService = transportContext.getTransportService();
-                    transportService.process(sessionInfo, JsonConverter.convertToAttributesProto(new JsonParser().parse(json)),
-                            new HttpOkCallback(responseWriter));
-                }));
+                                                               HttpServletRequest request) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.ATTRIBUTES);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        Admission admission = ingestionExecutor.admit(responseWriter, request.getContentLengthLong());
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (admission == null || !checkEncoding(contentEncoding, responseWriter)) {
+            return responseWriter;
+        }
+        Charset charset = getCharset(request);
+        bodyReader.read(request, responseWriter, body -> {
+            if (!admission.reserve(responseWriter, body.length())) {
+                return;
+            }
+            DecodedBody decodedBody = decompressor.decode(contentEncoding, body, bytes -> admission.reserve(responseWriter, bytes));
+            validateToken(deviceToken,
+                    new DeviceAuthCallback(sessionCache::get, responseWriter, sessionInfo -> ingestionExecutor.execute(responseWriter, () -> {
+                        if (!decodedBody.retain()) {
+                            return;
+                        }
+                        PostAttributeMsg attributes;
+                        long parseStart = System.nanoTime();
+                        try (Reader reader = new InputStreamReader(decodedBody.openStream(), charset)) {
+                            attributes = JsonConverter.convertToAttributesProto(new JsonParser().parse(reader));
+                        } catch (BodyRejectedException e) {
+                            return;
+                        } catch (BodyTooLargeException e) {
+                            responseWriter.setResult(new ResponseEntity<>(HttpStatus.PAYLOAD_TOO_LARGE));
+                            return;
+                        } catch (JsonParseException | IOException e) {
+                            log.debug("[{}] Failed to parse attributes: {}", deviceToken, e.getMessage());
+                            responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+                            return;
+                        } finally {
+                            decodedBody.release();
+                        }
+                        responseWriter.recordParse(parseStart, decodedBody.length());
+                        TransportService transportService = transportContext.getTransportService();
+                        HttpOkCallback callback = new HttpOkCallback(responseWriter);
+                        transportService.process(sessionInfo, attributes, new TransportServiceCallback<Void>() {
+                            @Override
+                            public void onSuccess(Void msg) {
+                                // client attributes don't notify of their updates
+                                attributeCache.invalidate(new UUID(sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB()));
+                                callback.onSuccess(msg);
+                            }
+
+                            @Override
+                            public void onError(Throwable e) {
+                                callback.onError(e);
+                            }
+                        });
+                    })));
+        });
         return responseWriter;
     }
-public static JsonObject getJsonObjectFromArray(JsonObject data){
-		JsonObject jobj = new JsonObject();
-		for (Entry<String, JsonElement> valueEntry : data.entrySet()) {
-            JsonElement element = valueEntry.getValue();         
-            if (element.isJsonPrimitive()) {
-            	jobj.add(valueEntry.getKey(),element);
-            	
-            } else {
-            	JsonArray arr = new JsonArray();
-            	arr = element.getAsJsonArray();
-            	for(int i=0 ; i<arr.size();i++){
-            		jobj.add(valueEntry.getKey() + i , arr.get(i) );
-            	}
-            }
-		}
-		return jobj;
-		}
+
     @RequestMapping(value = "/{deviceToken}/telemetry", method = RequestMethod.POST)
     public DeferredResult<ResponseEntity> postTelemetry(@PathVariable("deviceToken") String deviceToken,
-                                                        @RequestBody String json, HttpServletRequest request) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<ResponseEntity>();
-		JsonElement jelem = new JsonParser().parse(json);
-		JsonObject jsobj = jelem.getAsJsonObject();
-		JsonArray arr = jsobj.get("data_list").getAsJsonArray();
-		int len = arr.size();
-		long start=System.currentTimeMillis();
-		switch (len){
-			case 1:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				break;
-			case 2:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 3:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 4:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 5:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+4,getJsonObjectFromArray(arr.get(4).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 6:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+5,getJsonObjectFromArray(arr.get(5).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+4,getJsonObjectFromArray(arr.get(4).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 7:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+6,getJsonObjectFromArray(arr.get(6).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+5,getJsonObjectFromArray(arr.get(5).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+4,getJsonObjectFromArray(arr.get(4).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 8:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+7,getJsonObjectFromArray(arr.get(7).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+6,getJsonObjectFromArray(arr.get(6).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+5,getJsonObjectFromArray(arr.get(5).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+4,getJsonObjectFromArray(arr.get(4).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 9:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+8,getJsonObjectFromArray(arr.get(8).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+7,getJsonObjectFromArray(arr.get(7).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+6,getJsonObjectFromArray(arr.get(6).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+5,getJsonObjectFromArray(arr.get(5).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+4,getJsonObjectFromArray(arr.get(4).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-			case 10:
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+9,getJsonObjectFromArray(arr.get(9).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+8,getJsonObjectFromArray(arr.get(8).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+7,getJsonObjectFromArray(arr.get(7).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+6,getJsonObjectFromArray(arr.get(6).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+5,getJsonObjectFromArray(arr.get(5).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+4,getJsonObjectFromArray(arr.get(4).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+3,getJsonObjectFromArray(arr.get(3).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+2,getJsonObjectFromArray(arr.get(2).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-						new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-							TransportService transportService = transportContext.getTransportService();
-							transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start+1,getJsonObjectFromArray(arr.get(1).getAsJsonObject())),
-									new HttpOkCallback(responseWriter));
-						}));
-				transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-					new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-						TransportService transportService = transportContext.getTransportService();
-						transportService.process(sessionInfo, JsonConverter.convertToTelemetryProto(start,getJsonObjectFromArray(arr.get(0).getAsJsonObject())),
-								new HttpOkCallback(responseWriter));
-					}));
-				break;
-		}
+                                                        HttpServletRequest request) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.TELEMETRY);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        Admission admission = ingestionExecutor.admit(responseWriter, request.getContentLengthLong());
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (admission == null || !checkEncoding(contentEncoding, responseWriter)) {
+            return responseWriter;
+        }
+        DataListFormat format = DataListFormat.fromContentType(request.getContentType());
+        Charset charset = getCharset(request);
+        long ts = System.currentTimeMillis();
+        int chunkSize = settings.isTelemetryBatchEnabled() ? settings.getTelemetryChunkSize() : 1;
+        bodyReader.read(request, responseWriter, body -> {
+            if (!admission.reserve(responseWriter, body.length())) {
+                return;
+            }
+            DecodedBody decodedBody = decompressor.decode(contentEncoding, body, bytes -> admission.reserve(responseWriter, bytes));
+            validateToken(deviceToken,
+                    new DeviceAuthCallback(sessionCache::get, responseWriter, (sessionInfo, deviceInfo) -> ingestionExecutor.execute(responseWriter, () -> {
+                        if (!decodedBody.retain()) {
+                            return;
+                        }
+                        List<TsKvListProto> records;
+                        long parseStart = System.nanoTime();
+                        try {
+                            records = parseTelemetry(deviceInfo, format, decodedBody, charset, ts);
+                        } catch (BodyRejectedException e) {
+                            return;
+                        } catch (DataListTooLargeException | BodyTooLargeException e) {
+                            responseWriter.setResult(new ResponseEntity<>(HttpStatus.PAYLOAD_TOO_LARGE));
+                            return;
+                        } catch (JsonParseException | IllegalArgumentException | IOException e) {
+                            log.debug("[{}] Failed to parse telemetry: {}", deviceToken, e.getMessage());
+                            responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+                            return;
+                        } finally {
+                            decodedBody.release();
+                        }
+                        responseWriter.recordParse(parseStart, decodedBody.length());
+                        metrics.recordRecords(records);
+                        UUID deviceId = new UUID(sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB());
+                        FilteredRecords filtered = deduplicator.filter(deviceId, records);
+                        records = deadbandFilter.filter(deviceId, filtered.getRecords());
+                        new HttpChunkedTelemetryCallback(telemetryBatcher, sessionInfo, records, chunkSize, () -> {
+                            filtered.rollback();
+                            deadbandFilter.invalidate(deviceId);
+                        }, new HttpOkCallback(responseWriter)).start(settings.getTelemetryMaxConcurrentChunks());
+                    })));
+        });
+        return responseWriter;
+    }
+
+    /**
+     * Telemetry of many devices in one request, e.g. from an edge concentrator: a json object of data_list payloads
+     * keyed by device token. Every device is rate limited, validated, parsed and submitted as if it had posted its
+     * own payload; the response maps every token to the status that request would have got.
+     */
+    @RequestMapping(value = "/telemetry/batch", method = RequestMethod.POST, produces = "application/json")
+    public DeferredResult<ResponseEntity> postTelemetryBatch(HttpServletRequest request) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.TELEMETRY_BATCH);
+        Admission admission = ingestionExecutor.admit(responseWriter, request.getContentLengthLong());
+        String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+        if (admission == null || !checkEncoding(contentEncoding, responseWriter)) {
+            return responseWriter;
+        }
+        if (DataListFormat.fromContentType(request.getContentType()) != DataListFormat.JSON) {
+            responseWriter.setResult(new ResponseEntity<>(HttpStatus.UNSUPPORTED_MEDIA_TYPE));
+            return responseWriter;
+        }
+        Charset charset = getCharset(request);
+        long ts = System.currentTimeMillis();
+        bodyReader.read(request, responseWriter, body -> {
+            if (!admission.reserve(responseWriter, body.length())) {
+                return;
+            }
+            DecodedBody decodedBody = decompressor.decode(contentEncoding, body, bytes -> admission.reserve(responseWriter, bytes));
+            ingestionExecutor.execute(responseWriter, () -> {
+                if (!decodedBody.retain()) {
+                    return;
+                }
+                Map<String, List<ReaderSupplier>> payloads;
+                long splitStart = System.nanoTime();
+                try {
+                    byte[] json = decodedBody.toByteArray();
+                    if (!StandardCharsets.UTF_8.equals(charset)) {
+                        json = new String(json, charset).getBytes(StandardCharsets.UTF_8);
+                    }
+                    payloads = DeviceBatchSplitter.split(json, settings.getTelemetryMaxDevices());
+                } catch (BodyRejectedException e) {
+                    return;
+                } catch (TooManyDevicesException | BodyTooLargeException e) {
+                    responseWriter.setResult(new ResponseEntity<>(HttpStatus.PAYLOAD_TOO_LARGE));
+                    return;
+                } catch (JsonParseException | IOException e) {
+                    log.debug("Failed to parse telemetry batch: {}", e.getMessage());
+                    responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+                    return;
+                } finally {
+                    decodedBody.release();
+                }
+                new DeviceBatch(responseWriter, payloads, ts, System.nanoTime() - splitStart, decodedBody.length()).start();
+            });
+        });
         return responseWriter;
     }
 
     @RequestMapping(value = "/{deviceToken}/claim", method = RequestMethod.POST)
     public DeferredResult<ResponseEntity> claimDevice(@PathVariable("deviceToken") String deviceToken,
-                                                      @RequestBody(required = false) String json, HttpServletRequest request) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-                    TransportService transportService = transportContext.getTransportService();
-                    DeviceId deviceId = new DeviceId(new UUID(sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB()));
-                    transportService.process(sessionInfo, JsonConverter.convertToClaimDeviceProto(deviceId, json),
-                            new HttpOkCallback(responseWriter));
-                }));
+                                                      HttpServletRequest request) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.CLAIM);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        Admission admission = ingestionExecutor.admit(responseWriter, request.getContentLengthLong());
+        if (admission == null) {
+            return responseWriter;
+        }
+        Charset charset = getCharset(request);
+        bodyReader.read(request, responseWriter, body -> {
+            if (!admission.reserve(responseWriter, body.length())) {
+                return;
+            }
+            ClaimDeviceMsg claim;
+            try {
+                // the device id is set once the token is validated
+                claim = JsonConverter.convertToClaimDeviceProto(new DeviceId(new UUID(0, 0)), body.toString(charset));
+            } catch (JsonParseException | IllegalStateException | UnsupportedOperationException | NumberFormatException e) {
+                log.debug("[{}] Failed to parse claim request: {}", deviceToken, e.getMessage());
+                responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+                return;
+            }
+            validateToken(deviceToken,
+                    new DeviceAuthCallback(sessionCache::get, responseWriter, sessionInfo -> {
+                        TransportService transportService = transportContext.getTransportService();
+                        transportService.process(sessionInfo, claim.toBuilder()
+                                        .setDeviceIdMSB(sessionInfo.getDeviceIdMSB()).setDeviceIdLSB(sessionInfo.getDeviceIdLSB()).build(),
+                                new HttpOkCallback(responseWriter));
+                    }));
+        });
         return responseWriter;
     }
 
@@ -497,46 +385,83 @@ public static JsonObject getJsonObjectFromArray(JsonObject data){
     public DeferredResult<ResponseEntity> subscribeToCommands(@PathVariable("deviceToken") String deviceToken,
                                                               @RequestParam(value = "timeout", required = false, defaultValue = "0") long timeout,
                                                               HttpServletRequest httpRequest) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-                    TransportService transportService = transportContext.getTransportService();
-                    transportService.registerSyncSession(sessionInfo, new HttpSessionListener(responseWriter),
-                            timeout == 0 ? transportContext.getDefaultTimeout() : timeout);
-                    transportService.process(sessionInfo, SubscribeToRPCMsg.getDefaultInstance(),
-                            new SessionCloseOnErrorCallback(transportService, sessionInfo));
-
-                }));
+        MeteredResult responseWriter = metrics.newResult(Endpoint.RPC_SUBSCRIBE);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        validateToken(deviceToken,
+                new DeviceAuthCallback(sessionCache::get, responseWriter, sessionInfo ->
+                        longPollRegistry.register(Kind.RPC, sessionInfo, responseWriter,
+                                timeout == 0 ? transportContext.getDefaultTimeout() : timeout)));
         return responseWriter;
     }
 
     @RequestMapping(value = "/{deviceToken}/rpc/{requestId}", method = RequestMethod.POST)
     public DeferredResult<ResponseEntity> replyToCommand(@PathVariable("deviceToken") String deviceToken,
                                                          @PathVariable("requestId") Integer requestId,
-                                                         @RequestBody String json, HttpServletRequest request) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<ResponseEntity>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-                    TransportService transportService = transportContext.getTransportService();
-                    transportService.process(sessionInfo, ToDeviceRpcResponseMsg.newBuilder().setRequestId(requestId).setPayload(json).build(), new HttpOkCallback(responseWriter));
-                }));
+                                                         HttpServletRequest request) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.RPC_REPLY);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        Admission admission = ingestionExecutor.admit(responseWriter, request.getContentLengthLong());
+        if (admission == null) {
+            return responseWriter;
+        }
+        Charset charset = getCharset(request);
+        bodyReader.read(request, responseWriter, body -> {
+            if (!admission.reserve(responseWriter, body.length())) {
+                return;
+            }
+            String json = body.toString(charset);
+            try {
+                new JsonParser().parse(json);
+            } catch (JsonParseException e) {
+                log.debug("[{}] Failed to parse RPC response: {}", deviceToken, e.getMessage());
+                responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+                return;
+            }
+            ToDeviceRpcResponseMsg response = ToDeviceRpcResponseMsg.newBuilder().setRequestId(requestId).setPayload(json).build();
+            validateToken(deviceToken,
+                    new DeviceAuthCallback(sessionCache::get, responseWriter, sessionInfo -> {
+                        TransportService transportService = transportContext.getTransportService();
+                        transportService.process(sessionInfo, response, new HttpOkCallback(responseWriter));
+                    }));
+        });
         return responseWriter;
     }
 
     @RequestMapping(value = "/{deviceToken}/rpc", method = RequestMethod.POST)
     public DeferredResult<ResponseEntity> postRpcRequest(@PathVariable("deviceToken") String deviceToken,
-                                                         @RequestBody String json, HttpServletRequest httpRequest) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<ResponseEntity>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-                    JsonObject request = new JsonParser().parse(json).getAsJsonObject();
-                    TransportService transportService = transportContext.getTransportService();
-                    transportService.registerSyncSession(sessionInfo, new HttpSessionListener(responseWriter), transportContext.getDefaultTimeout());
-                    transportService.process(sessionInfo, ToServerRpcRequestMsg.newBuilder().setRequestId(0)
-                                    .setMethodName(request.get("method").getAsString())
-                                    .setParams(request.get("params").toString()).build(),
-                            new SessionCloseOnErrorCallback(transportService, sessionInfo));
-                }));
+                                                         HttpServletRequest httpRequest) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.RPC_REQUEST);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        Admission admission = ingestionExecutor.admit(responseWriter, httpRequest.getContentLengthLong());
+        if (admission == null) {
+            return responseWriter;
+        }
+        Charset charset = getCharset(httpRequest);
+        bodyReader.read(httpRequest, responseWriter, body -> {
+            if (!admission.reserve(responseWriter, body.length())) {
+                return;
+            }
+            ToServerRpcRequestMsg request;
+            try {
+                request = parseRpcRequest(body.toString(charset));
+            } catch (JsonParseException e) {
+                log.debug("[{}] Failed to parse RPC request: {}", deviceToken, e.getMessage());
+                responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+                return;
+            }
+            validateToken(deviceToken,
+                    new DeviceAuthCallback(sessionCache::create, responseWriter, sessionInfo -> {
+                        TransportService transportService = transportContext.getTransportService();
+                        transportService.registerSyncSession(sessionInfo, new HttpSessionListener(responseWriter, sessionCache, sessionInfo), transportContext.getDefaultTimeout());
+                        transportService.process(sessionInfo, request, new SessionCloseOnErrorCallback(transportService, sessionInfo, responseWriter));
+                    }));
+        });
         return responseWriter;
     }
 
@@ -544,45 +469,286 @@ public static JsonObject getJsonObjectFromArray(JsonObject data){
     public DeferredResult<ResponseEntity> subscribeToAttributes(@PathVariable("deviceToken") String deviceToken,
                                                                 @RequestParam(value = "timeout", required = false, defaultValue = "0") long timeout,
                                                                 HttpServletRequest httpRequest) {
-        DeferredResult<ResponseEntity> responseWriter = new DeferredResult<>();
-        transportContext.getTransportService().process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(deviceToken).build(),
-                new DeviceAuthCallback(transportContext, responseWriter, sessionInfo -> {
-                    TransportService transportService = transportContext.getTransportService();
-                    transportService.registerSyncSession(sessionInfo, new HttpSessionListener(responseWriter),
-                            timeout == 0 ? transportContext.getDefaultTimeout() : timeout);
-                    transportService.process(sessionInfo, SubscribeToAttributeUpdatesMsg.getDefaultInstance(),
-                            new SessionCloseOnErrorCallback(transportService, sessionInfo));
+        MeteredResult responseWriter = metrics.newResult(Endpoint.ATTRIBUTE_UPDATES);
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return responseWriter;
+        }
+        validateToken(deviceToken,
+                new DeviceAuthCallback(sessionCache::get, responseWriter, sessionInfo ->
+                        longPollRegistry.register(Kind.ATTRIBUTE_UPDATES, sessionInfo, responseWriter,
+                                timeout == 0 ? transportContext.getDefaultTimeout() : timeout)));
+        return responseWriter;
+    }
 
+    /**
+     * Streams the RPC commands and attribute updates of the device as Server-Sent Events. The declared result type
+     * tells Spring MVC that the body of the response is an emitter; errors are answered without a body.
+     */
+    @RequestMapping(value = "/{deviceToken}/events", method = RequestMethod.GET, produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public DeferredResult<ResponseEntity<SseEmitter>> streamEvents(@PathVariable("deviceToken") String deviceToken) {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.EVENTS);
+        TypedResult<SseEmitter> result = responseWriter.typed();
+        if (!checkRateLimit(deviceToken, responseWriter)) {
+            return result;
+        }
+        validateToken(deviceToken,
+                new DeviceAuthCallback(sessionCache::create, responseWriter, sessionInfo -> eventStreams.open(sessionInfo, result)));
+        return result;
+    }
+
+    /**
+     * @return the request of a json object with a string "method" and any "params"
+     * @throws JsonParseException if the body is not such an object
+     */
+    private static ToServerRpcRequestMsg parseRpcRequest(String json) {
+        JsonElement element = new JsonParser().parse(json);
+        if (!element.isJsonObject()) {
+            throw new JsonParseException("RPC request is not a json object");
+        }
+        JsonObject request = element.getAsJsonObject();
+        JsonElement method = request.get("method");
+        JsonElement params = request.get("params");
+        if (method == null || !method.isJsonPrimitive() || params == null) {
+            throw new JsonParseException("RPC request without 'method' or 'params'");
+        }
+        return ToServerRpcRequestMsg.newBuilder().setRequestId(0)
+                .setMethodName(method.getAsString())
+                .setParams(params.toString()).build();
+    }
+
+    /**
+     * Answers 304 without a body to a device that has the attributes already.
+     */
+    private static ResponseEntity attributesResponse(AttributesResponse attributes, String ifNoneMatch) {
+        if (attributes.matches(ifNoneMatch)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(attributes.getEtag()).build();
+        }
+        return ResponseEntity.ok().eTag(attributes.getEtag()).body(attributes.getBody());
+    }
+
+    private List<TsKvListProto> parseTelemetry(DeviceInfoProto deviceInfo, DataListFormat format, DecodedBody body, Charset charset, long ts) throws IOException {
+        if (format == DataListFormat.JSON) {
+            return schemaRegistry.parseDataList(deviceInfo.getDeviceType(),
+                    () -> new InputStreamReader(body.openStream(), charset), ts, settings.getTelemetryMaxRecords());
+        } else {
+            return format.decode(body.toByteArray(), ts, settings.getTelemetryMaxRecords(),
+                    keyTypeCache.get(deviceInfo.getDeviceType()), settings.getDataListOptions());
+        }
+    }
+
+    /**
+     * Answers 415 to an unsupported Content-Encoding before its body is read.
+     */
+    private boolean checkEncoding(String contentEncoding, DeferredResult<ResponseEntity> responseWriter) {
+        if (!decompressor.isSupported(contentEncoding)) {
+            responseWriter.setResult(new ResponseEntity<>(HttpStatus.UNSUPPORTED_MEDIA_TYPE));
+            return false;
+        }
+        return true;
+    }
+
+    private static Charset getCharset(HttpServletRequest request) {
+        return request.getCharacterEncoding() != null ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Answers 429 to a device over its rate limit, before its token is validated or its body read.
+     */
+    private boolean checkRateLimit(String deviceToken, DeferredResult<ResponseEntity> responseWriter) {
+        long waitNanos = rateLimiter.tryAcquireDevice(deviceToken);
+        if (waitNanos > 0) {
+            responseWriter.setResult(tooManyRequests(waitNanos));
+            return false;
+        }
+        return true;
+    }
+
+    private void validateToken(String deviceToken, DeviceAuthCallback callback) {
+        tokenCache.validate(transportContext.getTransportService(), deviceToken,
+                rateLimiter.isTenantLimited() ? new TenantRateLimitCallback(callback) : callback);
+    }
+
+    private static ResponseEntity tooManyRequests(long waitNanos) {
+        long retryAfterSec = Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSec)).build();
+    }
+
+    /**
+     * Checks the rate limit of the device's tenant once the token is validated, before the device callback runs.
+     */
+    private class TenantRateLimitCallback implements TransportServiceCallback<ValidateDeviceCredentialsResponseMsg> {
+        private final DeviceAuthCallback callback;
+
+        TenantRateLimitCallback(DeviceAuthCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess(ValidateDeviceCredentialsResponseMsg msg) {
+            if (msg.hasDeviceInfo()) {
+                DeviceInfoProto deviceInfo = msg.getDeviceInfo();
+                long waitNanos = rateLimiter.tryAcquireTenant(new UUID(deviceInfo.getTenantIdMSB(), deviceInfo.getTenantIdLSB()));
+                if (waitNanos > 0) {
+                    callback.responseWriter.recordAuth(callback.startNanos);
+                    callback.responseWriter.setResult(tooManyRequests(waitNanos));
+                    return;
+                }
+            }
+            callback.onSuccess(msg);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            callback.onError(e);
+        }
+    }
+
+    /**
+     * The devices of a multi-device telemetry request: each goes the way of its own telemetry request,
+     * and the request is answered with the status of every device once all of them have one.
+     */
+    private class DeviceBatch {
+        private final MeteredResult responseWriter;
+        private final Map<String, List<ReaderSupplier>> payloads;
+        private final long ts;
+        private final long splitNanos;
+        private final int bodyLength;
+        private final Map<String, HttpStatus> statuses = new ConcurrentHashMap<>();
+        private AtomicInteger pending;
+        private long processStart;
+
+        DeviceBatch(MeteredResult responseWriter, Map<String, List<ReaderSupplier>> payloads, long ts, long splitNanos, int bodyLength) {
+            this.responseWriter = responseWriter;
+            this.payloads = payloads;
+            this.ts = ts;
+            this.splitNanos = splitNanos;
+            this.bodyLength = bodyLength;
+        }
+
+        void start() {
+            List<String> tokens = new ArrayList<>(payloads.size());
+            for (String token : payloads.keySet()) {
+                if (rateLimiter.tryAcquireDevice(token) > 0) {
+                    statuses.put(token, HttpStatus.TOO_MANY_REQUESTS);
+                } else {
+                    tokens.add(token);
+                }
+            }
+            long authStart = System.nanoTime();
+            tokenCache.validateAll(transportContext.getTransportService(), tokens, responses -> {
+                responseWriter.recordAuth(authStart);
+                ingestionExecutor.execute(responseWriter, () -> submit(tokens, responses));
+            });
+        }
+
+        private void submit(List<String> tokens, Map<String, ValidateDeviceCredentialsResponseMsg> responses) {
+            long parseStart = System.nanoTime();
+            List<HttpChunkedTelemetryCallback> submissions = new ArrayList<>(tokens.size());
+            for (String token : tokens) {
+                ValidateDeviceCredentialsResponseMsg msg = responses.get(token);
+                if (msg == null) {
+                    statuses.put(token, HttpStatus.INTERNAL_SERVER_ERROR);
+                    continue;
+                }
+                if (!msg.hasDeviceInfo()) {
+                    statuses.put(token, HttpStatus.UNAUTHORIZED);
+                    continue;
+                }
+                DeviceInfoProto deviceInfo = msg.getDeviceInfo();
+                if (rateLimiter.isTenantLimited()
+                        && rateLimiter.tryAcquireTenant(new UUID(deviceInfo.getTenantIdMSB(), deviceInfo.getTenantIdLSB())) > 0) {
+                    statuses.put(token, HttpStatus.TOO_MANY_REQUESTS);
+                    continue;
+                }
+                List<TsKvListProto> records;
+                try {
+                    records = parse(deviceInfo, payloads.get(token));
+                } catch (DataListTooLargeException e) {
+                    statuses.put(token, HttpStatus.PAYLOAD_TOO_LARGE);
+                    continue;
+                } catch (JsonParseException | IllegalArgumentException e) {
+                    log.debug("[{}] Failed to parse telemetry: {}", token, e.getMessage());
+                    statuses.put(token, HttpStatus.BAD_REQUEST);
+                    continue;
+                }
+                metrics.recordRecords(records);
+                SessionInfoProto sessionInfo = sessionCache.get(deviceInfo);
+                UUID deviceId = new UUID(deviceInfo.getDeviceIdMSB(), deviceInfo.getDeviceIdLSB());
+                FilteredRecords filtered = deduplicator.filter(deviceId, records);
+                submissions.add(new HttpChunkedTelemetryCallback(telemetryBatcher, sessionInfo,
+                        deadbandFilter.filter(deviceId, filtered.getRecords()), settings.getTelemetryChunkSize(), () -> {
+                    filtered.rollback();
+                    deadbandFilter.invalidate(deviceId);
+                }, new TransportServiceCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        complete(token, HttpStatus.OK);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        complete(token, HttpStatus.INTERNAL_SERVER_ERROR);
+                    }
                 }));
-        return responseWriter;
+            }
+            responseWriter.recordParse(parseStart - splitNanos, bodyLength);
+            // the devices are submitted concurrently, each with at most max_concurrent_chunks messages in flight
+            pending = new AtomicInteger(submissions.size() + 1);
+            processStart = System.nanoTime();
+            submissions.forEach(submission -> submission.start(settings.getTelemetryMaxConcurrentChunks()));
+            complete(null, null);
+        }
+
+        private List<TsKvListProto> parse(DeviceInfoProto deviceInfo, List<ReaderSupplier> devicePayloads) {
+            int maxRecords = settings.getTelemetryMaxRecords();
+            List<TsKvListProto> records = new ArrayList<>();
+            for (ReaderSupplier payload : devicePayloads) {
+                records.addAll(schemaRegistry.parseDataList(deviceInfo.getDeviceType(), payload, ts + records.size(), maxRecords - records.size()));
+            }
+            return records;
+        }
+
+        private void complete(String token, HttpStatus status) {
+            if (token != null) {
+                statuses.put(token, status);
+            }
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            responseWriter.recordProcess(processStart);
+            metrics.recordDeviceBatch(statuses.values());
+            JsonObject response = new JsonObject();
+            payloads.keySet().forEach(deviceToken -> response.addProperty(deviceToken, statuses.get(deviceToken).value()));
+            responseWriter.setResult(new ResponseEntity<>(response.toString(), HttpStatus.OK));
+        }
     }
 
     private static class DeviceAuthCallback implements TransportServiceCallback<ValidateDeviceCredentialsResponseMsg> {
-        private final TransportContext transportContext;
-        private final DeferredResult<ResponseEntity> responseWriter;
-        private final Consumer<SessionInfoProto> onSuccess;
+        private final Function<DeviceInfoProto, SessionInfoProto> sessions;
+        private final MeteredResult responseWriter;
+        private final BiConsumer<SessionInfoProto, DeviceInfoProto> onSuccess;
+        private final long startNanos = System.nanoTime();
+
+        /**
+         * @param sessions the session of the request, {@link DeviceSessionCache#get} unless it registers a session listener;
+         *                 null if the request creates its session itself
+         */
+        DeviceAuthCallback(Function<DeviceInfoProto, SessionInfoProto> sessions, MeteredResult responseWriter, Consumer<SessionInfoProto> onSuccess) {
+            this(sessions, responseWriter, (sessionInfo, deviceInfo) -> onSuccess.accept(sessionInfo));
+        }
 
-        DeviceAuthCallback(TransportContext transportContext, DeferredResult<ResponseEntity> responseWriter, Consumer<SessionInfoProto> onSuccess) {
-            this.transportContext = transportContext;
+        DeviceAuthCallback(Function<DeviceInfoProto, SessionInfoProto> sessions, MeteredResult responseWriter, BiConsumer<SessionInfoProto, DeviceInfoProto> onSuccess) {
+            this.sessions = sessions;
             this.responseWriter = responseWriter;
             this.onSuccess = onSuccess;
         }
 
         @Override
         public void onSuccess(ValidateDeviceCredentialsResponseMsg msg) {
+            responseWriter.recordAuth(startNanos);
             if (msg.hasDeviceInfo()) {
-                UUID sessionId = UUID.randomUUID();
                 DeviceInfoProto deviceInfoProto = msg.getDeviceInfo();
-                SessionInfoProto sessionInfo = SessionInfoProto.newBuilder()
-                        .setNodeId(transportContext.getNodeId())
-                        .setTenantIdMSB(deviceInfoProto.getTenantIdMSB())
-                        .setTenantIdLSB(deviceInfoProto.getTenantIdLSB())
-                        .setDeviceIdMSB(deviceInfoProto.getDeviceIdMSB())
-                        .setDeviceIdLSB(deviceInfoProto.getDeviceIdLSB())
-                        .setSessionIdMSB(sessionId.getMostSignificantBits())
-                        .setSessionIdLSB(sessionId.getLeastSignificantBits())
-                        .build();
-                onSuccess.accept(sessionInfo);
+                onSuccess.accept(sessions != null ? sessions.apply(deviceInfoProto) : null, deviceInfoProto);
             } else {
                 responseWriter.setResult(new ResponseEntity<>(HttpStatus.UNAUTHORIZED));
             }
@@ -590,6 +756,7 @@ public static JsonObject getJsonObjectFromArray(JsonObject data){
 
         @Override
         public void onError(Throwable e) {
+            responseWriter.recordAuth(startNanos);
             log.warn("Failed to process request", e);
             responseWriter.setResult(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
         }
@@ -598,10 +765,12 @@ public static JsonObject getJsonObjectFromArray(JsonObject data){
     private static class SessionCloseOnErrorCallback implements TransportServiceCallback<Void> {
         private final TransportService transportService;
         private final SessionInfoProto sessionInfo;
+        private final DeferredResult<ResponseEntity> responseWriter;
 
-        SessionCloseOnErrorCallback(TransportService transportService, SessionInfoProto sessionInfo) {
+        SessionCloseOnErrorCallback(TransportService transportService, SessionInfoProto sessionInfo, DeferredResult<ResponseEntity> responseWriter) {
             this.transportService = transportService;
             this.sessionInfo = sessionInfo;
+            this.responseWriter = responseWriter;
         }
 
         @Override
@@ -611,34 +780,110 @@ public static JsonObject getJsonObjectFromArray(JsonObject data){
         @Override
         public void onError(Throwable e) {
             transportService.deregisterSession(sessionInfo);
+            // the session listener won't answer any more
+            responseWriter.setResult(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
         }
     }
 
     private static class HttpOkCallback implements TransportServiceCallback<Void> {
-        private final DeferredResult<ResponseEntity> responseWriter;
+        private final MeteredResult responseWriter;
+        private final long startNanos = System.nanoTime();
 
-        public HttpOkCallback(DeferredResult<ResponseEntity> responseWriter) {
+        public HttpOkCallback(MeteredResult responseWriter) {
             this.responseWriter = responseWriter;
         }
 
         @Override
         public void onSuccess(Void msg) {
+            responseWriter.recordProcess(startNanos);
             responseWriter.setResult(new ResponseEntity<>(HttpStatus.OK));
         }
 
         @Override
         public void onError(Throwable e) {
+            responseWriter.recordProcess(startNanos);
             responseWriter.setResult(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
         }
     }
 
+    /**
+     * Submits telemetry records in chunks of {@code chunkSize} records, keeping at most
+     * {@code maxConcurrentChunks} chunks in flight, and answers once every chunk is acknowledged.
+     */
+    private static class HttpChunkedTelemetryCallback implements TransportServiceCallback<Void> {
+        private final TelemetryBatcher telemetryBatcher;
+        private final SessionInfoProto sessionInfo;
+        private final List<TsKvListProto> records;
+        private final int chunkSize;
+        private final Runnable onFailure;
+        private final TransportServiceCallback<Void> callback;
+        private final int chunkCount;
+        private final AtomicInteger nextChunk = new AtomicInteger();
+        private final AtomicInteger pending;
+
+        /**
+         * @param callback answered once every chunk is acknowledged, or on the first failure
+         */
+        HttpChunkedTelemetryCallback(TelemetryBatcher telemetryBatcher, SessionInfoProto sessionInfo, List<TsKvListProto> records,
+                                     int chunkSize, Runnable onFailure, TransportServiceCallback<Void> callback) {
+            this.telemetryBatcher = telemetryBatcher;
+            this.sessionInfo = sessionInfo;
+            this.records = records;
+            this.chunkSize = chunkSize;
+            this.onFailure = onFailure;
+            this.callback = callback;
+            this.chunkCount = (records.size() + chunkSize - 1) / chunkSize;
+            this.pending = new AtomicInteger(chunkCount);
+        }
+
+        void start(int maxConcurrentChunks) {
+            if (chunkCount == 0) {
+                callback.onSuccess(null);
+                return;
+            }
+            for (int i = 0; i < Math.min(maxConcurrentChunks, chunkCount); i++) {
+                submitNextChunk();
+            }
+        }
+
+        @Override
+        public void onSuccess(Void msg) {
+            int left = pending.decrementAndGet();
+            if (left == 0) {
+                callback.onSuccess(null);
+            } else if (left > 0) {
+                submitNextChunk();
+            }
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (pending.getAndSet(-1) > 0) {
+                onFailure.run();
+                callback.onError(e);
+            }
+        }
+
+        private void submitNextChunk() {
+            int chunk = nextChunk.getAndIncrement();
+            if (chunk < chunkCount) {
+                int from = chunk * chunkSize;
+                List<TsKvListProto> chunkRecords = records.subList(from, Math.min(from + chunkSize, records.size()));
+                telemetryBatcher.submit(sessionInfo, chunkRecords, this);
+            }
+        }
+    }
 
     private static class HttpSessionListener implements SessionMsgListener {
 
         private final DeferredResult<ResponseEntity> responseWriter;
+        private final DeviceSessionCache sessionCache;
+        private final SessionInfoProto sessionInfo;
 
-        HttpSessionListener(DeferredResult<ResponseEntity> responseWriter) {
+        HttpSessionListener(DeferredResult<ResponseEntity> responseWriter, DeviceSessionCache sessionCache, SessionInfoProto sessionInfo) {
             this.responseWriter = responseWriter;
+            this.sessionCache = sessionCache;
+            this.sessionInfo = sessionInfo;
         }
 
         @Override
@@ -653,6 +898,7 @@ public static JsonObject getJsonObjectFromArray(JsonObject data){
 
         @Override
         public void onRemoteSessionCloseCommand(SessionCloseNotificationProto sessionCloseNotification) {
+            sessionCache.onRemoteClose(sessionInfo, sessionCloseNotification);
             responseWriter.setResult(new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT));
         }
 
@@ -0,0 +1,109 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.thingsboard.server.gen.transport.TransportProtos.ClaimDeviceMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * Requests to {@link DeviceApiController} answered by a {@link RecordingTransportService}.
+ */
+public class DeviceApiControllerTest {
+
+    private RecordingTransportService transportService;
+    private AnnotationConfigApplicationContext context;
+    private DeviceApiController controller;
+
+    @Before
+    public void setUp() {
+        transportService = new RecordingTransportService(true);
+        context = HttpTransportLoadHarness.createContext(transportService.getService(), Collections.emptyMap());
+        controller = context.getBean(DeviceApiController.class);
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testRpcRequest() {
+        MockHttpServletRequest request = request("{\"method\":\"getTime\",\"params\":{\"tz\":\"UTC\"}}");
+        controller.postRpcRequest("dev-1", request);
+        ToServerRpcRequestMsg msg = transportService.getLastCall(ToServerRpcRequestMsg.class).getMsg();
+        Assert.assertEquals("getTime", msg.getMethodName());
+        Assert.assertEquals("{\"tz\":\"UTC\"}", msg.getParams());
+        Assert.assertEquals(1, transportService.getRegisteredSessionsCount());
+    }
+
+    @Test
+    public void testMalformedRpcRequests() {
+        for (String body : new String[]{"", "{\"method\":", "[1]", "{\"params\":{}}", "{\"method\":{},\"params\":{}}", "{\"method\":\"getTime\"}"}) {
+            Assert.assertEquals(body, HttpStatus.BAD_REQUEST,
+                    RecordingTransportService.await(controller.postRpcRequest("dev-1", request(body))).getStatusCode());
+        }
+        // answered before the token is validated and a session is created
+        Assert.assertTrue(transportService.getCalls(ValidateDeviceTokenRequestMsg.class).isEmpty());
+        Assert.assertEquals(0, transportService.getRegisteredSessionsCount());
+        Assert.assertEquals(0, context.getBean(DeviceSessionCache.class).getCreatedSessionsCount());
+    }
+
+    @Test
+    public void testRpcResponse() {
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.replyToCommand("dev-1", 7, request("{\"result\":\"ok\"}"))).getStatusCode());
+        ToDeviceRpcResponseMsg msg = transportService.getLastCall(ToDeviceRpcResponseMsg.class).getMsg();
+        Assert.assertEquals(7, msg.getRequestId());
+        Assert.assertEquals("{\"result\":\"ok\"}", msg.getPayload());
+
+        Assert.assertEquals(HttpStatus.BAD_REQUEST, RecordingTransportService.await(controller.replyToCommand("dev-1", 8, request("{\"result\":"))).getStatusCode());
+        Assert.assertEquals(1, transportService.getCalls(ToDeviceRpcResponseMsg.class).size());
+    }
+
+    @Test
+    public void testClaim() {
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.claimDevice("dev-3", request("{\"secretKey\":\"s3cr3t\",\"durationMs\":60000}"))).getStatusCode());
+        ClaimDeviceMsg msg = transportService.getLastCall(ClaimDeviceMsg.class).getMsg();
+        Assert.assertEquals(2, msg.getDeviceIdMSB());
+        Assert.assertEquals(3, msg.getDeviceIdLSB());
+        Assert.assertEquals("s3cr3t", msg.getSecretKey());
+        Assert.assertEquals(60000, msg.getDurationMs());
+
+        for (String body : new String[]{"{\"secretKey\":", "[1]", "{\"durationMs\":\"soon\"}", "{\"secretKey\":{}}"}) {
+            Assert.assertEquals(body, HttpStatus.BAD_REQUEST,
+                    RecordingTransportService.await(controller.claimDevice("dev-3", request(body))).getStatusCode());
+        }
+        Assert.assertEquals(1, transportService.getCalls(ClaimDeviceMsg.class).size());
+    }
+
+    private static MockHttpServletRequest request(String body) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent(body.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Micrometer metrics of the device API, tagged by endpoint:
+ * <ul>
+ * <li>transport.http.requests: timer from the request to its response</li>
+ * <li>transport.http.auth / parse / process: timers of the token validation, of the body parsing
+ * and of the core acknowledging the submitted messages</li>
+ * <li>transport.http.responses: counter by outcome (ok, unauthorized, timeout, throttled, error, rejected)</li>
+ * <li>transport.http.in_flight: gauge of the requests not answered yet</li>
+ * <li>transport.http.body.bytes, transport.http.data_list.records, transport.http.data_list.keys: distribution summaries</li>
+ * <li>transport.http.batch.requests / records / wait / flushes: fill, wait and trigger of the telemetry batches</li>
+ * <li>transport.http.device_batch.devices / responses: devices per multi-device telemetry request and their outcomes</li>
+ * </ul>
+ * The counters of the token cache, attribute cache, deduplicator, decompressor, schema registry, key type cache, deadband filter,
+ * body reader, ingestion executor and rate limiter are bound as well. Without a MeterRegistry bean, or with {@code transport.http.metrics.enabled=false},
+ * nothing is recorded.
+ */
+@TbHttpTransportComponent
+public class DeviceApiMetrics {
+
+    public enum Endpoint {
+        TELEMETRY, TELEMETRY_BATCH, ATTRIBUTES, GET_ATTRIBUTES, ATTRIBUTE_UPDATES, RPC_SUBSCRIBE, RPC_REPLY, RPC_REQUEST, CLAIM, EVENTS;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    private enum Outcome {
+        OK, UNAUTHORIZED, TIMEOUT, THROTTLED, ERROR, REJECTED;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+
+        static Outcome of(int status) {
+            if (status == HttpStatus.UNAUTHORIZED.value()) {
+                return UNAUTHORIZED;
+            } else if (status == HttpStatus.REQUEST_TIMEOUT.value()) {
+                return TIMEOUT;
+            } else if (status == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                return THROTTLED;
+            } else if (status >= 500) {
+                return ERROR;
+            } else if (status >= 400) {
+                return REJECTED;
+            }
+            return OK;
+        }
+    }
+
+    @Value("${transport.http.metrics.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transport.http.metrics.histograms:true}")
+    private boolean histograms;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private DeviceTokenCache tokenCache;
+
+    @Autowired
+    private DeviceRecordDeduplicator deduplicator;
+
+    @Autowired
+    private HttpRequestDecompressor decompressor;
+
+    @Autowired
+    private TelemetrySchemaRegistry schemaRegistry;
+
+    @Autowired
+    private TelemetryKeyTypeCache keyTypeCache;
+
+    @Autowired
+    private TelemetryDeadbandFilter deadbandFilter;
+
+    @Autowired
+    private RequestBodyReader bodyReader;
+
+    @Autowired
+    private IngestionExecutor ingestionExecutor;
+
+    @Autowired
+    private DeviceRateLimiter rateLimiter;
+
+    @Autowired
+    private DeviceSessionCache sessionCache;
+
+    @Autowired
+    private DeviceAttributeCache attributeCache;
+
+    private MeterRegistry registry;
+    private final Map<Endpoint, EndpointMetrics> endpoints = new EnumMap<>(Endpoint.class);
+    private DistributionSummary records;
+    private DistributionSummary keys;
+    private DistributionSummary batchRequests;
+    private DistributionSummary batchRecords;
+    private Timer batchWait;
+    private Counter fullBatches;
+    private Counter windowBatches;
+    private Timer longPollTimerLag;
+    private DistributionSummary deviceBatchDevices;
+    private final Map<Outcome, Counter> deviceBatchResponses = new EnumMap<>(Outcome.class);
+
+    @PostConstruct
+    public void init() {
+        registry = enabled && meterRegistry != null ? meterRegistry : new CompositeMeterRegistry();
+        for (Endpoint endpoint : Endpoint.values()) {
+            endpoints.put(endpoint, new EndpointMetrics(endpoint));
+        }
+        records = DistributionSummary.builder("transport.http.data_list.records")
+                .description("records per data_list").publishPercentileHistogram(histograms).register(registry);
+        keys = DistributionSummary.builder("transport.http.data_list.keys")
+                .description("keys per data_list record").publishPercentileHistogram(histograms).register(registry);
+        batchRequests = DistributionSummary.builder("transport.http.batch.requests")
+                .description("requests per telemetry batch").publishPercentileHistogram(histograms).register(registry);
+        batchRecords = DistributionSummary.builder("transport.http.batch.records")
+                .description("records per telemetry batch").publishPercentileHistogram(histograms).register(registry);
+        batchWait = Timer.builder("transport.http.batch.wait")
+                .description("telemetry waiting for its batch to be submitted").publishPercentileHistogram(histograms).register(registry);
+        fullBatches = Counter.builder("transport.http.batch.flushes").tag("trigger", "size").register(registry);
+        windowBatches = Counter.builder("transport.http.batch.flushes").tag("trigger", "window").register(registry);
+        longPollTimerLag = Timer.builder("transport.http.long_poll.timer_lag")
+                .description("delay of long poll timer ticks").publishPercentileHistogram(histograms).register(registry);
+        deviceBatchDevices = DistributionSummary.builder("transport.http.device_batch.devices")
+                .description("devices per multi-device telemetry request").publishPercentileHistogram(histograms).register(registry);
+        for (Outcome outcome : Outcome.values()) {
+            deviceBatchResponses.put(outcome, Counter.builder("transport.http.device_batch.responses")
+                    .tag("outcome", outcome.tag).register(registry));
+        }
+
+        bind("transport.http.token_cache.hits", tokenCache, DeviceTokenCache::getHitCount);
+        bind("transport.http.token_cache.negative_hits", tokenCache, DeviceTokenCache::getNegativeHitCount);
+        bind("transport.http.token_cache.misses", tokenCache, DeviceTokenCache::getMissCount);
+        Gauge.builder("transport.http.token_cache.size", tokenCache, DeviceTokenCache::getSize).register(registry);
+        bind("transport.http.dedup.checked_records", deduplicator, DeviceRecordDeduplicator::getCheckedRecordsCount);
+        bind("transport.http.dedup.suppressed_records", deduplicator, DeviceRecordDeduplicator::getSuppressedRecordsCount);
+        bind("transport.http.compression.requests", decompressor, HttpRequestDecompressor::getCompressedRequestsCount);
+        bind("transport.http.compression.compressed_bytes", decompressor, HttpRequestDecompressor::getCompressedBytesCount);
+        bind("transport.http.compression.decompressed_bytes", decompressor, HttpRequestDecompressor::getDecompressedBytesCount);
+        bind("transport.http.compression.rejected_requests", decompressor, HttpRequestDecompressor::getRejectedRequestsCount);
+        Gauge.builder("transport.http.compression.ratio", decompressor, HttpRequestDecompressor::getCompressionRatio).register(registry);
+        bind("transport.http.schema.compiled_requests", schemaRegistry, TelemetrySchemaRegistry::getCompiledRequestsCount);
+        bind("transport.http.schema.fallback_requests", schemaRegistry, TelemetrySchemaRegistry::getFallbackRequestsCount);
+        bind("transport.http.type_cache.hits", keyTypeCache, TelemetryKeyTypeCache::getHitCount);
+        bind("transport.http.type_cache.type_changes", keyTypeCache, TelemetryKeyTypeCache::getTypeChangeCount);
+        Gauge.builder("transport.http.type_cache.size", keyTypeCache, TelemetryKeyTypeCache::getSize).register(registry);
+        bind("transport.http.deadband.forwarded_values", deadbandFilter, TelemetryDeadbandFilter::getForwardedValuesCount);
+        bind("transport.http.deadband.suppressed_values", deadbandFilter, TelemetryDeadbandFilter::getSuppressedValuesCount);
+        Gauge.builder("transport.http.deadband.devices", deadbandFilter, TelemetryDeadbandFilter::getDevicesCount).register(registry);
+        bind("transport.http.body.async_reads", bodyReader, RequestBodyReader::getAsyncReadsCount);
+        bind("transport.http.body.blocking_reads", bodyReader, RequestBodyReader::getBlockingReadsCount);
+        bind("transport.http.body.allocated_buffers", bodyReader, RequestBodyReader::getAllocatedBuffersCount);
+        bind("transport.http.body.rejected", bodyReader, RequestBodyReader::getRejectedBodiesCount);
+        Gauge.builder("transport.http.body.pooled_buffers", bodyReader, RequestBodyReader::getPooledBuffersCount).register(registry);
+        Gauge.builder("transport.http.ingestion.in_flight_requests", ingestionExecutor, IngestionExecutor::getInFlightRequests).register(registry);
+        Gauge.builder("transport.http.ingestion.in_flight_bytes", ingestionExecutor, IngestionExecutor::getInFlightBytes)
+                .baseUnit("bytes").register(registry);
+        Gauge.builder("transport.http.ingestion.queue_size", ingestionExecutor, IngestionExecutor::getQueueSize).register(registry);
+        Gauge.builder("transport.http.ingestion.active_threads", ingestionExecutor, IngestionExecutor::getActiveThreads).register(registry);
+        bind("transport.http.ingestion.request_limit_rejections", ingestionExecutor, IngestionExecutor::getRequestLimitRejectionsCount);
+        bind("transport.http.ingestion.byte_limit_rejections", ingestionExecutor, IngestionExecutor::getByteLimitRejectionsCount);
+        bind("transport.http.ingestion.queue_full_rejections", ingestionExecutor, IngestionExecutor::getQueueFullRejectionsCount);
+        bind("transport.http.rate_limit.device_rejections", rateLimiter, DeviceRateLimiter::getDeviceRejectionsCount);
+        bind("transport.http.rate_limit.tenant_rejections", rateLimiter, DeviceRateLimiter::getTenantRejectionsCount);
+        Gauge.builder("transport.http.rate_limit.buckets", rateLimiter, DeviceRateLimiter::getBucketsCount).register(registry);
+        bind("transport.http.sessions.created", sessionCache, DeviceSessionCache::getCreatedSessionsCount);
+        bind("transport.http.sessions.reused", sessionCache, DeviceSessionCache::getReusedSessionsCount);
+        Gauge.builder("transport.http.sessions.reuse_ratio", sessionCache, DeviceSessionCache::getReuseRatio).register(registry);
+        Gauge.builder("transport.http.sessions.cached", sessionCache, DeviceSessionCache::getSize).register(registry);
+        bind("transport.http.attribute_cache.hits", attributeCache, DeviceAttributeCache::getHitCount);
+        bind("transport.http.attribute_cache.misses", attributeCache, DeviceAttributeCache::getMissCount);
+        bind("transport.http.attribute_cache.invalidations", attributeCache, DeviceAttributeCache::getInvalidationCount);
+        Gauge.builder("transport.http.attribute_cache.devices", attributeCache, DeviceAttributeCache::getSize).register(registry);
+    }
+
+    /**
+     * @return the response writer of a new request to the endpoint
+     */
+    public MeteredResult newResult(Endpoint endpoint) {
+        return new MeteredResult(endpoints.get(endpoint));
+    }
+
+    void recordRecords(List<TsKvListProto> dataList) {
+        records.record(dataList.size());
+        for (TsKvListProto record : dataList) {
+            keys.record(record.getKvCount());
+        }
+    }
+
+    void recordBatch(int requests, int records, boolean full) {
+        batchRequests.record(requests);
+        batchRecords.record(records);
+        (full ? fullBatches : windowBatches).increment();
+    }
+
+    void recordBatchWait(long nanos) {
+        batchWait.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordDeviceBatch(Collection<HttpStatus> statuses) {
+        deviceBatchDevices.record(statuses.size());
+        for (HttpStatus status : statuses) {
+            deviceBatchResponses.get(Outcome.of(status.value())).increment();
+        }
+    }
+
+    void bindLongPolls(LongPollRegistry longPolls) {
+        for (LongPollRegistry.Kind kind : LongPollRegistry.Kind.values()) {
+            Gauge.builder("transport.http.long_poll.waiters", longPolls, polls -> polls.getWaitersCount(kind))
+                    .tag("kind", kind.name().toLowerCase(Locale.ROOT)).register(registry);
+        }
+        Gauge.builder("transport.http.long_poll.sessions", longPolls, LongPollRegistry::getSessionsCount).register(registry);
+        bind("transport.http.long_poll.registrations", longPolls, LongPollRegistry::getRegistrationsCount);
+        bind("transport.http.long_poll.coalesced_registrations", longPolls, LongPollRegistry::getCoalescedRegistrationsCount);
+        bind("transport.http.long_poll.expirations", longPolls, LongPollRegistry::getExpirationsCount);
+    }
+
+    void bindEventStreams(DeviceEventStreams eventStreams) {
+        Gauge.builder("transport.http.events.streams", eventStreams, DeviceEventStreams::getStreamsCount).register(registry);
+        bind("transport.http.events.sent", eventStreams, DeviceEventStreams::getSentEventsCount);
+        bind("transport.http.events.keep_alives", eventStreams, DeviceEventStreams::getKeepAlivesCount);
+        bind("transport.http.events.overflowed_streams", eventStreams, DeviceEventStreams::getOverflowedStreamsCount);
+    }
+
+    void recordLongPollTimerLag(long nanos) {
+        longPollTimerLag.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private <T> void bind(String name, T component, ToDoubleFunction<T> count) {
+        FunctionCounter.builder(name, component, count).register(registry);
+    }
+
+    private class EndpointMetrics {
+        private final Timer requests;
+        private final Timer auth;
+        private final Timer parse;
+        private final Timer process;
+        private final DistributionSummary bodyBytes;
+        private final Map<Outcome, Counter> responses = new EnumMap<>(Outcome.class);
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        EndpointMetrics(Endpoint endpoint) {
+            requests = timer("transport.http.requests", "request to response", endpoint);
+            auth = timer("transport.http.auth", "device token validation", endpoint);
+            parse = timer("transport.http.parse", "request body parsing", endpoint);
+            process = timer("transport.http.process", "submitted messages acknowledged by the core", endpoint);
+            bodyBytes = DistributionSummary.builder("transport.http.body.bytes").baseUnit("bytes")
+                    .tag("endpoint", endpoint.tag).publishPercentileHistogram(histograms).register(registry);
+            for (Outcome outcome : Outcome.values()) {
+                responses.put(outcome, Counter.builder("transport.http.responses")
+                        .tag("endpoint", endpoint.tag).tag("outcome", outcome.tag).register(registry));
+            }
+            Gauge.builder("transport.http.in_flight", inFlight, AtomicInteger::get).tag("endpoint", endpoint.tag).register(registry);
+        }
+
+        private Timer timer(String name, String description, Endpoint endpoint) {
+            return Timer.builder(name).description(description).tag("endpoint", endpoint.tag)
+                    .publishPercentileHistogram(histograms).register(registry);
+        }
+    }
+
+    /**
+     * DeferredResult that records the request when it is answered or times out.
+     */
+    public static class MeteredResult extends DeferredResult<ResponseEntity> {
+        private final EndpointMetrics metrics;
+        private final long startNanos = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private final List<Runnable> finishTasks = new ArrayList<>(1);
+        private TypedResult<?> typed;
+
+        private MeteredResult(EndpointMetrics metrics) {
+            this.metrics = metrics;
+            metrics.inFlight.incrementAndGet();
+            onTimeout(() -> finish(Outcome.TIMEOUT));
+            onError(e -> finish(Outcome.ERROR));
+        }
+
+        @Override
+        public boolean setResult(ResponseEntity result) {
+            boolean set = typed != null ? typed.setStatus(result) : super.setResult(result);
+            if (set) {
+                finish(Outcome.of(result.getStatusCodeValue()));
+            }
+            return set;
+        }
+
+        @Override
+        public boolean setErrorResult(Object result) {
+            boolean set = typed != null ? typed.setErrorResult(result) : super.setErrorResult(result);
+            if (set) {
+                finish(result instanceof ResponseEntity ? Outcome.of(((ResponseEntity) result).getStatusCodeValue()) : Outcome.ERROR);
+            }
+            return set;
+        }
+
+        /**
+         * Answers the request through the returned result instead of this one, for endpoints whose declared body type
+         * Spring MVC dispatches on, such as an emitter. Must be called before the request is answered.
+         */
+        <B> TypedResult<B> typed() {
+            TypedResult<B> result = new TypedResult<>(this);
+            typed = result;
+            return result;
+        }
+
+        /**
+         * Runs the task once the request is answered or timed out, or right away if it already is.
+         */
+        void whenFinished(Runnable task) {
+            synchronized (finishTasks) {
+                if (!finished.get()) {
+                    finishTasks.add(task);
+                    return;
+                }
+            }
+            task.run();
+        }
+
+        void recordAuth(long fromNanos) {
+            metrics.auth.record(System.nanoTime() - fromNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void recordParse(long fromNanos, int bodyBytes) {
+            metrics.parse.record(System.nanoTime() - fromNanos, TimeUnit.NANOSECONDS);
+            metrics.bodyBytes.record(bodyBytes);
+        }
+
+        void recordProcess(long fromNanos) {
+            metrics.process.record(System.nanoTime() - fromNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void finish(Outcome outcome) {
+            if (finished.compareAndSet(false, true)) {
+                List<Runnable> tasks;
+                metrics.inFlight.decrementAndGet();
+                metrics.requests.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+                metrics.responses.get(outcome).increment();
+                synchronized (finishTasks) {
+                    tasks = new ArrayList<>(finishTasks);
+                }
+                tasks.forEach(Runnable::run);
+            }
+        }
+    }
+
+    /**
+     * The result of a request with a body of type {@code B}, recorded by the MeteredResult it was created from.
+     * Answers set on the MeteredResult are passed on without a body.
+     */
+    public static class TypedResult<B> extends DeferredResult<ResponseEntity<B>> {
+        private final MeteredResult metered;
+
+        private TypedResult(MeteredResult metered) {
+            this.metered = metered;
+            onTimeout(() -> metered.finish(Outcome.TIMEOUT));
+            onError(e -> metered.finish(Outcome.ERROR));
+        }
+
+        @Override
+        public boolean setResult(ResponseEntity<B> result) {
+            boolean set = super.setResult(result);
+            if (set) {
+                metered.finish(Outcome.of(result.getStatusCodeValue()));
+            }
+            return set;
+        }
+
+        private boolean setStatus(ResponseEntity<?> result) {
+            return super.setResult(ResponseEntity.status(result.getStatusCode()).headers(result.getHeaders()).build());
+        }
+    }
+
+}
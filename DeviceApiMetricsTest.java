@@ -0,0 +1,100 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParserTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Meters recorded by {@link DeviceApiMetrics} for requests to the controller.
+ */
+public class DeviceApiMetricsTest {
+
+    @Test
+    public void testResponsesByOutcome() {
+        try (AnnotationConfigApplicationContext context = createContext()) {
+            DeviceApiController controller = context.getBean(DeviceApiController.class);
+            MeterRegistry registry = context.getBean(MeterRegistry.class);
+            Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postTelemetry("dev-1", telemetry())).getStatusCode());
+            Assert.assertEquals(HttpStatus.UNAUTHORIZED, RecordingTransportService.await(controller.postTelemetry("unknown", telemetry())).getStatusCode());
+
+            Assert.assertEquals(1.0, registry.get("transport.http.responses").tag("endpoint", "telemetry").tag("outcome", "ok").counter().count(), 0.0);
+            Assert.assertEquals(1.0, registry.get("transport.http.responses").tag("endpoint", "telemetry").tag("outcome", "unauthorized").counter().count(), 0.0);
+            Assert.assertEquals(2, registry.get("transport.http.requests").tag("endpoint", "telemetry").timer().count());
+            Assert.assertEquals(1, registry.get("transport.http.parse").tag("endpoint", "telemetry").timer().count());
+            Assert.assertEquals(2.0, registry.get("transport.http.data_list.records").summary().totalAmount(), 0.0);
+            Assert.assertEquals(0.0, registry.get("transport.http.in_flight").tag("endpoint", "telemetry").gauge().value(), 0.0);
+        }
+    }
+
+    @Test
+    public void testCompressionRatio() throws IOException {
+        try (AnnotationConfigApplicationContext context = createContext()) {
+            DeviceApiController controller = context.getBean(DeviceApiController.class);
+            MeterRegistry registry = context.getBean(MeterRegistry.class);
+            Assert.assertEquals(0.0, registry.get("transport.http.compression.ratio").gauge().value(), 0.0);
+
+            MockHttpServletRequest request = telemetry();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(request.getContentAsByteArray());
+            }
+            int decompressedLength = request.getContentLength();
+            request.setContent(compressed.toByteArray());
+            request.addHeader("Content-Encoding", "gzip");
+            Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postTelemetry("dev-1", request)).getStatusCode());
+
+            Assert.assertEquals((double) decompressedLength / compressed.size(),
+                    registry.get("transport.http.compression.ratio").gauge().value(), 1e-9);
+        }
+    }
+
+    @Test
+    public void testTagsDontDependOnTheDefaultLocale() {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try (AnnotationConfigApplicationContext context = createContext()) {
+            MeterRegistry registry = context.getBean(MeterRegistry.class);
+            Assert.assertNotNull(registry.find("transport.http.long_poll.waiters").tag("kind", "attribute_updates").gauge());
+            Assert.assertNotNull(registry.find("transport.http.requests").tag("endpoint", "attribute_updates").timer());
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    private static AnnotationConfigApplicationContext createContext() {
+        return HttpTransportLoadHarness.createContext(new RecordingTransportService(true).getService(), Collections.emptyMap());
+    }
+
+    private static MockHttpServletRequest telemetry() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent(JsonDataListParserTest.README_PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
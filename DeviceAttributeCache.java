@@ -0,0 +1,291 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.common.transport.adaptor.JsonConverter;
+import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcResponseMsg;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Responses of GET attributes by device and requested keys, so that a device polling attributes that didn't change
+ * is answered without a round-trip to the core; every response carries an ETag for conditional requests.
+ * <p>
+ * While a device has cached responses, the cache holds a session of the device subscribed to its shared attribute
+ * updates. The first update drops the device's responses and its session; the next read subscribes again. Reads
+ * that were in flight meanwhile aren't cached. Client attributes don't notify, so the responses of a device are
+ * also dropped when it posts attributes, and all of them after {@code ttl_sec}: client attributes changed
+ * on the server side may be read stale for that long.
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class DeviceAttributeCache {
+
+    @Value("${transport.http.attribute_cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transport.http.attribute_cache.max_devices:100000}")
+    private long maxDevices;
+
+    @Value("${transport.http.attribute_cache.ttl_sec:60}")
+    private long ttlSec;
+
+    @Autowired
+    private HttpTransportContext transportContext;
+
+    @Autowired
+    private DeviceSessionCache sessionCache;
+
+    private Cache<UUID, DeviceAttributes> devices;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        devices = CacheBuilder.newBuilder().maximumSize(maxDevices).expireAfterWrite(ttlSec, TimeUnit.SECONDS)
+                .removalListener((RemovalListener<UUID, DeviceAttributes>) notification -> notification.getValue().close())
+                .build();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        devices.invalidateAll();
+    }
+
+    /**
+     * @return the cached response to the keys, null if there is none
+     */
+    public AttributesResponse get(DeviceInfoProto deviceInfo, String clientKeys, String sharedKeys) {
+        if (!enabled) {
+            return null;
+        }
+        DeviceAttributes attributes = devices.getIfPresent(deviceId(deviceInfo));
+        AttributesResponse response = attributes != null ? attributes.responses.get(keys(clientKeys, sharedKeys)) : null;
+        (response != null ? hits : misses).increment();
+        return response;
+    }
+
+    /**
+     * Starts a read of the keys from the core: subscribes the device to attribute updates, if it isn't yet,
+     * before the request is sent, so that no update between the read and the caching of its response is missed.
+     */
+    public AttributesRead startRead(DeviceInfoProto deviceInfo, String clientKeys, String sharedKeys) {
+        if (!enabled) {
+            return new AttributesRead(null, null);
+        }
+        UUID deviceId = deviceId(deviceInfo);
+        DeviceAttributes attributes = devices.asMap().get(deviceId);
+        if (attributes == null) {
+            // subscribed before it is shared, so that no read of another request overtakes the subscription
+            DeviceAttributes created = new DeviceAttributes(deviceId, sessionCache.create(deviceInfo));
+            created.subscribe();
+            attributes = devices.asMap().putIfAbsent(deviceId, created);
+            if (attributes == null) {
+                attributes = created;
+            } else {
+                created.close();
+            }
+        }
+        return new AttributesRead(attributes, keys(clientKeys, sharedKeys));
+    }
+
+    /**
+     * Drops the cached responses of the device, e.g. once it posted client attributes.
+     */
+    public void invalidate(UUID deviceId) {
+        if (enabled && devices.asMap().remove(deviceId) != null) {
+            invalidations.increment();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.sum();
+    }
+
+    public long getSize() {
+        return devices.size();
+    }
+
+    private void invalidate(DeviceAttributes attributes) {
+        if (devices.asMap().remove(attributes.deviceId, attributes)) {
+            invalidations.increment();
+        }
+    }
+
+    private static UUID deviceId(DeviceInfoProto deviceInfo) {
+        return new UUID(deviceInfo.getDeviceIdMSB(), deviceInfo.getDeviceIdLSB());
+    }
+
+    private static String keys(String clientKeys, String sharedKeys) {
+        return clientKeys + '|' + sharedKeys;
+    }
+
+    /**
+     * Body of a GET attributes response and its ETag, a hash of the body.
+     */
+    public static class AttributesResponse {
+        private final String body;
+        private final String etag;
+
+        AttributesResponse(GetAttributeResponseMsg msg) {
+            this.body = JsonConverter.toJson(msg).toString();
+            this.etag = '"' + Hashing.murmur3_128().hashString(body, StandardCharsets.UTF_8).toString() + '"';
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @param ifNoneMatch the If-None-Match header of the request, may be {@code null}
+         * @return true if the client has this response already
+         */
+        public boolean matches(String ifNoneMatch) {
+            if (StringUtils.isEmpty(ifNoneMatch)) {
+                return false;
+            }
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A read of attributes from the core, cached when it completes unless the device's attributes changed meanwhile.
+     */
+    public class AttributesRead {
+        private final DeviceAttributes attributes;
+        private final String keys;
+
+        private AttributesRead(DeviceAttributes attributes, String keys) {
+            this.attributes = attributes;
+            this.keys = keys;
+        }
+
+        public AttributesResponse complete(GetAttributeResponseMsg msg) {
+            AttributesResponse response = new AttributesResponse(msg);
+            if (attributes != null && StringUtils.isEmpty(msg.getError())) {
+                // once invalidated, the responses of the device are out of the cache and this one with them
+                attributes.responses.put(keys, response);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * The cached responses of a device and the session that drops them on the next attribute update.
+     */
+    private class DeviceAttributes implements SessionMsgListener, TransportServiceCallback<Void> {
+        private final UUID deviceId;
+        private final SessionInfoProto sessionInfo;
+        private final ConcurrentMap<String, AttributesResponse> responses = new ConcurrentHashMap<>();
+
+        DeviceAttributes(UUID deviceId, SessionInfoProto sessionInfo) {
+            this.deviceId = deviceId;
+            this.sessionInfo = sessionInfo;
+        }
+
+        void subscribe() {
+            TransportService transportService = transportContext.getTransportService();
+            transportService.registerAsyncSession(sessionInfo, this);
+            transportService.process(sessionInfo, SubscribeToAttributeUpdatesMsg.getDefaultInstance(), this);
+        }
+
+        void close() {
+            responses.clear();
+            sessionCache.close(sessionInfo);
+        }
+
+        @Override
+        public void onSuccess(Void msg) {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            log.debug("[{}] Failed to subscribe to attribute updates: {}", deviceId, e.getMessage());
+            invalidate(this);
+        }
+
+        @Override
+        public void onAttributeUpdate(AttributeUpdateNotificationMsg msg) {
+            invalidate(this);
+        }
+
+        @Override
+        public void onRemoteSessionCloseCommand(SessionCloseNotificationProto sessionCloseNotification) {
+            sessionCache.onRemoteClose(sessionInfo, sessionCloseNotification);
+            invalidate(this);
+        }
+
+        @Override
+        public void onGetAttributesResponse(GetAttributeResponseMsg msg) {
+            // not requested on this session
+        }
+
+        @Override
+        public void onToDeviceRpcRequest(ToDeviceRpcRequestMsg msg) {
+            // not subscribed
+        }
+
+        @Override
+        public void onToServerRpcResponse(ToServerRpcResponseMsg msg) {
+            // not requested on this session
+        }
+    }
+}
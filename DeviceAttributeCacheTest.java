@@ -0,0 +1,215 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvProto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Cached GET attributes responses of {@link DeviceAttributeCache} through the controller, answered and updated
+ * from a {@link RecordingTransportService}.
+ */
+public class DeviceAttributeCacheTest {
+
+    private RecordingTransportService transportService;
+    private AnnotationConfigApplicationContext context;
+    private DeviceApiController controller;
+    private DeviceAttributeCache cache;
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testCachedResponse() {
+        start(new HashMap<>());
+        ResponseEntity<?> first = read("fw", null, "v1");
+        Assert.assertEquals(HttpStatus.OK, first.getStatusCode());
+        Assert.assertEquals("{\"shared\":{\"fw\":\"v1\"}}", first.getBody());
+        String etag = first.getHeaders().getETag();
+        Assert.assertNotNull(etag);
+
+        ResponseEntity<?> second = cachedRead("fw", null);
+        Assert.assertEquals(HttpStatus.OK, second.getStatusCode());
+        Assert.assertEquals(first.getBody(), second.getBody());
+        Assert.assertEquals(etag, second.getHeaders().getETag());
+        Assert.assertEquals(1, transportService.getCalls(GetAttributeRequestMsg.class).size());
+        Assert.assertEquals(1, transportService.getCalls(SubscribeToAttributeUpdatesMsg.class).size());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getSize());
+
+        // other keys are another response
+        read("hw", null, "v2");
+        Assert.assertEquals(2, transportService.getCalls(GetAttributeRequestMsg.class).size());
+        Assert.assertEquals(1, transportService.getCalls(SubscribeToAttributeUpdatesMsg.class).size());
+    }
+
+    @Test
+    public void testNotModified() {
+        start(new HashMap<>());
+        String etag = read("fw", null, "v1").getHeaders().getETag();
+
+        ResponseEntity<?> cached = cachedRead("fw", etag);
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, cached.getStatusCode());
+        Assert.assertNull(cached.getBody());
+        Assert.assertEquals(etag, cached.getHeaders().getETag());
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, cachedRead("fw", "\"other\", W/" + etag).getStatusCode());
+        Assert.assertEquals(HttpStatus.OK, cachedRead("fw", "\"other\"").getStatusCode());
+
+        // a response read from the core is compared as well
+        cache.invalidate(new UUID(2, 1));
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, read("fw", etag, "v1").getStatusCode());
+        Assert.assertEquals(HttpStatus.OK, read("hw", etag, "v1").getStatusCode());
+    }
+
+    @Test
+    public void testSharedAttributeUpdateInvalidates() {
+        start(new HashMap<>());
+        String etag = read("fw", null, "v1").getHeaders().getETag();
+        SessionInfoProto subscription = transportService.getLastCall(SubscribeToAttributeUpdatesMsg.class).getSessionInfo();
+        transportService.getListener(subscription)
+                .onAttributeUpdate(AttributeUpdateNotificationMsg.newBuilder().addSharedUpdated(kv("fw", "v2")).build());
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(1, cache.getInvalidationCount());
+        // the subscription went with the responses
+        Assert.assertNull(transportService.getListener(subscription));
+
+        ResponseEntity<?> updated = read("fw", etag, "v2");
+        Assert.assertEquals(HttpStatus.OK, updated.getStatusCode());
+        Assert.assertEquals("{\"shared\":{\"fw\":\"v2\"}}", updated.getBody());
+        Assert.assertNotEquals(etag, updated.getHeaders().getETag());
+        Assert.assertEquals(2, transportService.getCalls(SubscribeToAttributeUpdatesMsg.class).size());
+    }
+
+    @Test
+    public void testPostedAttributesInvalidate() {
+        start(new HashMap<>());
+        read("fw", null, "v1");
+        MockHttpServletRequest post = new MockHttpServletRequest();
+        post.setContentType("application/json");
+        post.setContent("{\"fw\":\"v2\"}".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postDeviceAttributes("dev-1", post)).getStatusCode());
+        Assert.assertEquals(0, cache.getSize());
+
+        read("fw", null, "v2");
+        Assert.assertEquals(2, transportService.getCalls(GetAttributeRequestMsg.class).size());
+    }
+
+    @Test
+    public void testRemoteCloseInvalidates() {
+        start(new HashMap<>());
+        read("fw", null, "v1");
+        transportService.getListener(transportService.getLastCall(SubscribeToAttributeUpdatesMsg.class).getSessionInfo())
+                .onRemoteSessionCloseCommand(SessionCloseNotificationProto.newBuilder().setMessage("Device deleted!").build());
+        Assert.assertEquals(0, cache.getSize());
+        read("fw", null, "v1");
+        Assert.assertEquals(2, transportService.getCalls(GetAttributeRequestMsg.class).size());
+    }
+
+    @Test
+    public void testErrorIsNotCached() {
+        start(new HashMap<>());
+        DeferredResult<ResponseEntity> result = controller.getDeviceAttributes("dev-1", "", "fw", new MockHttpServletRequest());
+        answer(GetAttributeResponseMsg.newBuilder().setError("timeout").build());
+        RecordingTransportService.await(result);
+        read("fw", null, "v1");
+        Assert.assertEquals(2, transportService.getCalls(GetAttributeRequestMsg.class).size());
+    }
+
+    @Test
+    public void testDisabled() {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.attribute_cache.enabled", "false");
+        start(options);
+        String etag = read("fw", null, "v1").getHeaders().getETag();
+        Assert.assertEquals(HttpStatus.NOT_MODIFIED, read("fw", etag, "v1").getStatusCode());
+        Assert.assertEquals(2, transportService.getCalls(GetAttributeRequestMsg.class).size());
+        Assert.assertEquals(0, transportService.getCalls(SubscribeToAttributeUpdatesMsg.class).size());
+        Assert.assertEquals(0, cache.getSize());
+    }
+
+    private void start(Map<String, String> options) {
+        transportService = new RecordingTransportService(true);
+        context = HttpTransportLoadHarness.createContext(transportService.getService(), options);
+        controller = context.getBean(DeviceApiController.class);
+        cache = context.getBean(DeviceAttributeCache.class);
+    }
+
+    /**
+     * Reads the shared attribute of device 1, answered by the core with the value.
+     */
+    private ResponseEntity<?> read(String key, String ifNoneMatch, String value) {
+        int requests = transportService.getCalls(GetAttributeRequestMsg.class).size();
+        DeferredResult<ResponseEntity> result = controller.getDeviceAttributes("dev-1", "", key, request(ifNoneMatch));
+        Assert.assertEquals(requests + 1, transportService.getCalls(GetAttributeRequestMsg.class).size());
+        Assert.assertFalse(result.hasResult());
+        answer(GetAttributeResponseMsg.newBuilder().addSharedAttributeList(kv(key, value)).build());
+        return RecordingTransportService.await(result);
+    }
+
+    /**
+     * Reads the shared attribute of device 1, expecting it to be answered from the cache.
+     */
+    private ResponseEntity<?> cachedRead(String key, String ifNoneMatch) {
+        int requests = transportService.getCalls(GetAttributeRequestMsg.class).size();
+        ResponseEntity<?> response = RecordingTransportService.await(controller.getDeviceAttributes("dev-1", "", key, request(ifNoneMatch)));
+        Assert.assertEquals(requests, transportService.getCalls(GetAttributeRequestMsg.class).size());
+        return response;
+    }
+
+    private void answer(GetAttributeResponseMsg response) {
+        transportService.getListener(transportService.getLastCall(GetAttributeRequestMsg.class).getSessionInfo())
+                .onGetAttributesResponse(response);
+    }
+
+    private static MockHttpServletRequest request(String ifNoneMatch) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return request;
+    }
+
+    private static TsKvProto kv(String key, String value) {
+        return TsKvProto.newBuilder().setTs(1)
+                .setKv(KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.STRING_V).setStringV(value)).build();
+    }
+}
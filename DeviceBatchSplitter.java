@@ -0,0 +1,164 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import org.thingsboard.server.transport.http.TelemetrySchemaRegistry.ReaderSupplier;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the body of a multi-device telemetry request, a json object keyed by device access token,
+ * <pre>{"token1": {"data_list": [...]}, "token2": {"data_list": [...]}}</pre>
+ * into the payloads of its devices, in one pass over the UTF-8 bytes and without parsing the payloads:
+ * they can only be parsed once the token is validated and the device type known. A token given more than once
+ * gets all its payloads, in order. A payload that isn't valid json fails when it is parsed, for its device only.
+ */
+public class DeviceBatchSplitter {
+
+    private DeviceBatchSplitter() {
+    }
+
+    /**
+     * @return the payloads by token, in the order of the body
+     * @throws TooManyDevicesException as soon as the body holds more than {@code maxDevices} tokens
+     */
+    public static Map<String, List<ReaderSupplier>> split(byte[] json, int maxDevices) throws JsonParseException {
+        Map<String, List<ReaderSupplier>> payloads = new LinkedHashMap<>();
+        int pos = expect(json, skipWhitespace(json, 0), '{');
+        pos = skipWhitespace(json, pos);
+        if (pos < json.length && json[pos] == '}') {
+            return checkEnd(json, pos + 1, payloads);
+        }
+        while (true) {
+            int keyStart = expect(json, pos, '"');
+            int keyEnd = skipString(json, keyStart);
+            String token = decodeKey(json, keyStart, keyEnd);
+            int valueStart = skipWhitespace(json, expect(json, skipWhitespace(json, keyEnd + 1), ':'));
+            int valueEnd = skipValue(json, valueStart);
+            if (valueEnd == valueStart) {
+                throw new JsonSyntaxException("Expected a value at " + valueStart);
+            }
+            List<ReaderSupplier> devicePayloads = payloads.get(token);
+            if (devicePayloads == null) {
+                if (payloads.size() == maxDevices) {
+                    throw new TooManyDevicesException(maxDevices);
+                }
+                devicePayloads = new ArrayList<>(1);
+                payloads.put(token, devicePayloads);
+            }
+            devicePayloads.add(() -> new InputStreamReader(new ByteArrayInputStream(json, valueStart, valueEnd - valueStart), StandardCharsets.UTF_8));
+            pos = skipWhitespace(json, valueEnd);
+            if (pos < json.length && json[pos] == ',') {
+                pos = skipWhitespace(json, pos + 1);
+            } else {
+                return checkEnd(json, expect(json, pos, '}'), payloads);
+            }
+        }
+    }
+
+    private static Map<String, List<ReaderSupplier>> checkEnd(byte[] json, int pos, Map<String, List<ReaderSupplier>> payloads) {
+        if (skipWhitespace(json, pos) != json.length) {
+            throw new JsonSyntaxException("Did not consume the entire document.");
+        }
+        return payloads;
+    }
+
+    private static int expect(byte[] json, int pos, char c) {
+        if (pos >= json.length || json[pos] != c) {
+            throw new JsonSyntaxException("Expected '" + c + "' at " + pos);
+        }
+        return pos + 1;
+    }
+
+    private static int skipWhitespace(byte[] json, int pos) {
+        while (pos < json.length && (json[pos] == ' ' || json[pos] == '\n' || json[pos] == '\r' || json[pos] == '\t')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @param pos the first byte after the opening quote
+     * @return the position of the closing quote
+     */
+    private static int skipString(byte[] json, int pos) {
+        while (pos < json.length) {
+            byte b = json[pos];
+            if (b == '"') {
+                return pos;
+            }
+            pos += b == '\\' ? 2 : 1;
+        }
+        throw new JsonSyntaxException("Unterminated string");
+    }
+
+    /**
+     * @return the position after the value: the end of an object, array or string, or the byte ending a literal
+     */
+    private static int skipValue(byte[] json, int pos) {
+        int depth = 0;
+        while (pos < json.length) {
+            byte b = json[pos];
+            if (b == '"') {
+                pos = skipString(json, pos + 1);
+                if (depth == 0) {
+                    return pos + 1;
+                }
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']' || b == ',') {
+                if (depth == 0) {
+                    return pos;
+                }
+                if (b != ',' && --depth == 0) {
+                    return pos + 1;
+                }
+            } else if (depth == 0 && (b == ' ' || b == '\n' || b == '\r' || b == '\t')) {
+                return pos;
+            }
+            pos++;
+        }
+        if (depth > 0) {
+            throw new JsonSyntaxException("Unterminated object or array");
+        }
+        return pos;
+    }
+
+    private static String decodeKey(byte[] json, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (json[i] == '\\') {
+                return new JsonParser().parse(new String(json, start - 1, end - start + 2, StandardCharsets.UTF_8)).getAsString();
+            }
+        }
+        return new String(json, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    public static class TooManyDevicesException extends JsonParseException {
+
+        TooManyDevicesException(int maxDevices) {
+            super("Number of devices is greater than maximum allowed [" + maxDevices + "]");
+        }
+    }
+}
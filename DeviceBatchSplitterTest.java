@@ -0,0 +1,119 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParserTest;
+import org.thingsboard.server.transport.http.DeviceBatchSplitter.TooManyDevicesException;
+import org.thingsboard.server.transport.http.TelemetrySchemaRegistry.ReaderSupplier;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the payloads split out of a multi-device body parse to the telemetry the original DeviceApiController
+ * gave for each of them posted on its own.
+ */
+public class DeviceBatchSplitterTest {
+
+    private static final long TS = JsonDataListParserTest.TS;
+
+    private static final String README_PAYLOAD = JsonDataListParserTest.README_PAYLOAD;
+
+    private static final String OTHER_PAYLOAD = "{ \"data_list\" : [ {\"vlt\":48.25,\"ok\":true,\"name\":\"a,b]}\\\"\",\"cur\":[-1,2.5]} ] }";
+
+    @Test
+    public void testReadmePayloads() throws IOException {
+        Map<String, List<ReaderSupplier>> payloads = split("{\"token1\":" + README_PAYLOAD + ",\n \"token2\" : " + OTHER_PAYLOAD + "}", 10);
+        Assert.assertEquals(Arrays.asList("token1", "token2"), new ArrayList<>(payloads.keySet()));
+        assertPayloads(payloads.get("token1"), README_PAYLOAD);
+        assertPayloads(payloads.get("token2"), OTHER_PAYLOAD);
+    }
+
+    @Test
+    public void testRepeatedToken() throws IOException {
+        Map<String, List<ReaderSupplier>> payloads = split("{\"token1\":" + README_PAYLOAD + ",\"token2\":" + OTHER_PAYLOAD +
+                ",\"token1\":" + OTHER_PAYLOAD + "}", 2);
+        Assert.assertEquals(2, payloads.size());
+        assertPayloads(payloads.get("token1"), README_PAYLOAD, OTHER_PAYLOAD);
+        assertPayloads(payloads.get("token2"), OTHER_PAYLOAD);
+    }
+
+    @Test
+    public void testEscapedToken() {
+        Map<String, List<ReaderSupplier>> payloads = split("{\"to\\u006ben\\\"1\":" + README_PAYLOAD + "}", 1);
+        Assert.assertEquals(Arrays.asList("token\"1"), new ArrayList<>(payloads.keySet()));
+    }
+
+    @Test
+    public void testEmptyBody() {
+        Assert.assertTrue(split(" { } ", 1).isEmpty());
+    }
+
+    @Test
+    public void testMalformedDevicePayload() throws IOException {
+        // only the device of a malformed payload fails, once its payload is parsed
+        Map<String, List<ReaderSupplier>> payloads = split("{\"token1\":{\"data_list\":[3]},\"token2\":" + README_PAYLOAD + "}", 10);
+        assertPayloads(payloads.get("token2"), README_PAYLOAD);
+        try (Reader reader = payloads.get("token1").get(0).get()) {
+            JsonDataListParser.parseDataList(reader, TS);
+            Assert.fail("Malformed payload accepted");
+        } catch (JsonParseException e) {
+            // answered with 400 for token1 only
+        }
+    }
+
+    @Test(expected = TooManyDevicesException.class)
+    public void testTooManyDevices() {
+        split("{\"token1\":" + README_PAYLOAD + ",\"token2\":" + README_PAYLOAD + ",\"token3\":" + README_PAYLOAD + "}", 2);
+    }
+
+    @Test
+    public void testMalformedBodies() {
+        for (String body : Arrays.asList("", "[]", "3", "{", "{\"token1\"}", "{\"token1\":}", "{\"token1\" " + README_PAYLOAD + "}",
+                "{\"token1\":" + README_PAYLOAD, "{\"token1\":{\"data_list\":[}", "{\"token1\":" + README_PAYLOAD + "}}",
+                "{\"token1\":" + README_PAYLOAD + ",}", "{token1:" + README_PAYLOAD + "}", "{\"token1:" + README_PAYLOAD + "}")) {
+            try {
+                split(body, 10);
+                Assert.fail("Accepted: " + body);
+            } catch (JsonSyntaxException e) {
+                // answered with 400
+            }
+        }
+    }
+
+    private static Map<String, List<ReaderSupplier>> split(String body, int maxDevices) {
+        return DeviceBatchSplitter.split(body.getBytes(StandardCharsets.UTF_8), maxDevices);
+    }
+
+    private static void assertPayloads(List<ReaderSupplier> payloads, String... expected) throws IOException {
+        Assert.assertEquals(expected.length, payloads.size());
+        for (int i = 0; i < expected.length; i++) {
+            try (Reader reader = payloads.get(i).get()) {
+                Assert.assertEquals(JsonDataListParserTest.baseline(expected[i]), JsonDataListParser.parseDataList(reader, TS));
+            }
+        }
+    }
+}
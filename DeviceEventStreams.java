@@ -0,0 +1,400 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter.SseEventBuilder;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.common.transport.adaptor.JsonConverter;
+import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEvent;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEventMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionType;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToRPCMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcResponseMsg;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-Sent Events streams of the devices: one connection, authenticated once, that carries the device's
+ * RPC commands (event {@code rpc}) and shared attribute updates (event {@code attributes}) as they arrive,
+ * instead of a long poll per message and kind.
+ * <p>
+ * A stream is an async session in the core, opened with a session OPEN event so that its subscriptions outlive
+ * the first message, and closed with a CLOSED event when the connection ends. Events wait for the connection
+ * in a queue of at most {@code max_pending_events}; a device that doesn't read them fast enough is disconnected
+ * rather than buffered without bound. Events are written by a small pool of sender threads; a write that takes
+ * longer than {@code send_timeout_ms} is interrupted and its stream disconnected as overflowed, so that a few stalled
+ * connections can't hold the pool and delay the events of every other stream. A comment line is sent to connections idle for {@code keep_alive_sec},
+ * so that proxies keep them open and dead ones are noticed.
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class DeviceEventStreams {
+
+    @Value("${transport.http.events.timeout_sec:3600}")
+    private long timeoutSec;
+
+    @Value("${transport.http.events.keep_alive_sec:30}")
+    private long keepAliveSec;
+
+    @Value("${transport.http.events.max_pending_events:100}")
+    private int maxPendingEvents;
+
+    @Value("${transport.http.events.sender_threads:2}")
+    private int senderThreads;
+
+    @Value("${transport.http.events.send_timeout_ms:5000}")
+    private long sendTimeoutMs;
+
+    @Autowired
+    private HttpTransportContext transportContext;
+
+    @Autowired
+    private DeviceSessionCache sessionCache;
+
+    @Autowired
+    private DeviceApiMetrics metrics;
+
+    private final ConcurrentMap<UUID, EventStream> streams = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+    private long keepAliveNanos;
+    private long sendTimeoutNanos;
+
+    private final LongAdder sentEvents = new LongAdder();
+    private final LongAdder keepAlives = new LongAdder();
+    private final LongAdder overflowedStreams = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        keepAliveNanos = TimeUnit.SECONDS.toNanos(keepAliveSec);
+        sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMs);
+        executor = Executors.newFixedThreadPool(Math.max(1, senderThreads),
+                new ThreadFactoryBuilder().setNameFormat("http-events-%d").setDaemon(true).build());
+        // not on the sender threads, which may all be stuck in writes
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("http-events-timer").setDaemon(true).build());
+        if (keepAliveSec > 0) {
+            long periodMs = Math.max(1L, TimeUnit.SECONDS.toMillis(keepAliveSec) / 2);
+            timer.scheduleAtFixedRate(this::keepAlive, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+        if (sendTimeoutMs > 0) {
+            long periodMs = Math.max(1L, sendTimeoutMs / 4);
+            timer.scheduleAtFixedRate(this::checkWrites, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+        metrics.bindEventStreams(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timer.shutdownNow();
+        executor.shutdownNow();
+        streams.values().forEach(EventStream::close);
+    }
+
+    /**
+     * Opens the event stream of an authenticated device and answers the request with it.
+     */
+    public void open(SessionInfoProto sessionInfo, DeferredResult<ResponseEntity<SseEmitter>> responseWriter) {
+        SseEmitter emitter = new SseEmitter(TimeUnit.SECONDS.toMillis(timeoutSec));
+        EventStream stream = new EventStream(sessionInfo, emitter);
+        emitter.onCompletion(stream::close);
+        emitter.onTimeout(stream::close);
+        emitter.onError(e -> stream.close());
+        streams.put(stream.sessionId, stream);
+
+        TransportService transportService = transportContext.getTransportService();
+        transportService.registerAsyncSession(sessionInfo, stream);
+        transportService.process(sessionInfo, sessionEvent(SessionEvent.OPEN), stream);
+        transportService.process(sessionInfo, SubscribeToRPCMsg.getDefaultInstance(), stream);
+        transportService.process(sessionInfo, SubscribeToAttributeUpdatesMsg.getDefaultInstance(), stream);
+        if (!responseWriter.setResult(ResponseEntity.ok(emitter))) {
+            // timed out meanwhile, the emitter will never be handled
+            stream.close();
+        }
+    }
+
+    public int getStreamsCount() {
+        return streams.size();
+    }
+
+    public long getSentEventsCount() {
+        return sentEvents.sum();
+    }
+
+    public long getKeepAlivesCount() {
+        return keepAlives.sum();
+    }
+
+    public long getOverflowedStreamsCount() {
+        return overflowedStreams.sum();
+    }
+
+    private void keepAlive() {
+        long now = System.nanoTime();
+        TransportService transportService = transportContext.getTransportService();
+        for (EventStream stream : streams.values()) {
+            try {
+                transportService.reportActivity(stream.sessionInfo);
+                if (now - stream.lastSentNanos >= keepAliveNanos) {
+                    keepAlives.increment();
+                    stream.offer(SseEmitter.event().comment("keep-alive"));
+                }
+            } catch (RuntimeException e) {
+                log.warn("[{}] Failed to keep event stream alive", stream.sessionId, e);
+            }
+        }
+    }
+
+    private void checkWrites() {
+        long now = System.nanoTime();
+        for (EventStream stream : streams.values()) {
+            try {
+                stream.checkWrite(now);
+            } catch (RuntimeException e) {
+                log.warn("[{}] Failed to check event stream", stream.sessionId, e);
+            }
+        }
+    }
+
+    private static SessionEventMsg sessionEvent(SessionEvent event) {
+        return SessionEventMsg.newBuilder().setSessionType(SessionType.ASYNC).setEvent(event).build();
+    }
+
+    /**
+     * A connected device: session listener, callback of its subscriptions and the queue of its pending events.
+     */
+    private class EventStream implements SessionMsgListener, TransportServiceCallback<Void> {
+        private final SessionInfoProto sessionInfo;
+        private final UUID sessionId;
+        private final SseEmitter emitter;
+        private final Queue<SseEventBuilder> pending = new ArrayDeque<>();
+        private volatile long lastSentNanos = System.nanoTime();
+        private boolean sending;
+        private boolean closed;
+        // the sender thread in a write and since when; it completes the emitter if the stream ended meanwhile
+        private Thread writer;
+        private long writeStartNanos;
+        private boolean endedInWrite;
+        private Throwable endError;
+
+        EventStream(SessionInfoProto sessionInfo, SseEmitter emitter) {
+            this.sessionInfo = sessionInfo;
+            this.sessionId = new UUID(sessionInfo.getSessionIdMSB(), sessionInfo.getSessionIdLSB());
+            this.emitter = emitter;
+        }
+
+        void offer(SseEventBuilder event) {
+            boolean overflow;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                overflow = pending.size() >= maxPendingEvents;
+                if (!overflow) {
+                    pending.add(event);
+                    if (sending) {
+                        return;
+                    }
+                    sending = true;
+                }
+            }
+            if (overflow) {
+                overflowedStreams.increment();
+                log.debug("[{}] Closing event stream, {} events pending", sessionId, maxPendingEvents);
+                end(null);
+                return;
+            }
+            try {
+                executor.execute(this::send);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes the pending events; runs on one sender thread at a time per stream.
+         */
+        private void send() {
+            while (true) {
+                SseEventBuilder event;
+                synchronized (this) {
+                    event = closed ? null : pending.poll();
+                    if (event == null) {
+                        sending = false;
+                        return;
+                    }
+                    writer = Thread.currentThread();
+                    writeStartNanos = System.nanoTime();
+                }
+                Exception failure = null;
+                try {
+                    emitter.send(event);
+                } catch (IOException | IllegalStateException e) {
+                    failure = e;
+                }
+                boolean ended;
+                Throwable error;
+                synchronized (this) {
+                    writer = null;
+                    // an interrupt of a timed out write must not reach the next task of the thread
+                    Thread.interrupted();
+                    ended = endedInWrite;
+                    error = endError;
+                }
+                if (ended) {
+                    complete(error);
+                    return;
+                }
+                if (failure != null) {
+                    log.debug("[{}] Failed to send event: {}", sessionId, failure.getMessage());
+                    end(failure);
+                    return;
+                }
+                lastSentNanos = System.nanoTime();
+                sentEvents.increment();
+            }
+        }
+
+        /**
+         * Interrupts a write that takes longer than the send timeout and ends the stream as overflowed.
+         */
+        void checkWrite(long now) {
+            synchronized (this) {
+                if (closed || writer == null || now - writeStartNanos < sendTimeoutNanos) {
+                    return;
+                }
+                writer.interrupt();
+            }
+            overflowedStreams.increment();
+            log.debug("[{}] Closing event stream, an event write took longer than {} ms", sessionId, sendTimeoutMs);
+            end(new IOException("Event write timed out"));
+        }
+
+        /**
+         * Ends the connection, with an error unless {@code error} is null. The emitter is locked while it writes,
+         * so during a write it is completed by the sender once the write returns, not by the calling thread.
+         */
+        void end(Throwable error) {
+            boolean writing;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pending.clear();
+                writing = writer != null;
+                endedInWrite = writing;
+                endError = error;
+            }
+            release();
+            if (!writing) {
+                complete(error);
+            }
+        }
+
+        /**
+         * Forgets the stream once its connection has ended.
+         */
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pending.clear();
+            }
+            release();
+        }
+
+        private void complete(Throwable error) {
+            if (error != null) {
+                emitter.completeWithError(error);
+            } else {
+                emitter.complete();
+            }
+        }
+
+        private void release() {
+            streams.remove(sessionId, this);
+            sessionCache.close(sessionInfo);
+        }
+
+        @Override
+        public void onSuccess(Void msg) {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            log.warn("[{}] Failed to open event stream", sessionId, e);
+            end(e);
+        }
+
+        @Override
+        public void onToDeviceRpcRequest(ToDeviceRpcRequestMsg msg) {
+            offer(SseEmitter.event().name("rpc").id(String.valueOf(msg.getRequestId()))
+                    .data(JsonConverter.toJson(msg, true).toString()));
+        }
+
+        @Override
+        public void onAttributeUpdate(AttributeUpdateNotificationMsg msg) {
+            offer(SseEmitter.event().name("attributes").data(JsonConverter.toJson(msg).toString()));
+        }
+
+        @Override
+        public void onRemoteSessionCloseCommand(SessionCloseNotificationProto sessionCloseNotification) {
+            sessionCache.onRemoteClose(sessionInfo, sessionCloseNotification);
+            end(null);
+        }
+
+        @Override
+        public void onGetAttributesResponse(GetAttributeResponseMsg msg) {
+            // not requested on a stream
+        }
+
+        @Override
+        public void onToServerRpcResponse(ToServerRpcResponseMsg msg) {
+            // not requested on a stream
+        }
+    }
+}
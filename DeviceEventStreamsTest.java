@@ -0,0 +1,208 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEventMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToRPCMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Event streams of {@link DeviceEventStreams}, written to connections whose writes the test blocks.
+ */
+public class DeviceEventStreamsTest {
+
+    private final RecordingTransportService transportService = new RecordingTransportService(true);
+    private AnnotationConfigApplicationContext context;
+    private DeviceEventStreams eventStreams;
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        createContext(60000, 100);
+        Connection connection = open("dev-1", false);
+        Assert.assertEquals(1, transportService.getCalls(SessionEventMsg.class).size());
+        listener().onToDeviceRpcRequest(rpc(1));
+        listener().onToDeviceRpcRequest(rpc(2));
+        await(() -> eventStreams.getSentEventsCount() == 2);
+        Assert.assertEquals(2, connection.sent.size());
+        Assert.assertTrue(connection.sent.get(0).contains("event:rpc\nid:1\n"));
+
+        listener().onRemoteSessionCloseCommand(SessionCloseNotificationProto.getDefaultInstance());
+        Assert.assertEquals("complete", connection.completion.get(0));
+        Assert.assertEquals(0, eventStreams.getStreamsCount());
+        Assert.assertEquals(0, transportService.getRegisteredSessionsCount());
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        createContext(60000, 2);
+        Connection connection = open("dev-1", true);
+        SessionMsgListener listener = listener();
+        listener.onToDeviceRpcRequest(rpc(1));
+        await(() -> connection.writing.getCount() == 0);
+        // one event in the write, two pending, and one too many
+        for (int i = 2; i <= 4; i++) {
+            listener.onToDeviceRpcRequest(rpc(i));
+        }
+        Assert.assertEquals(1, eventStreams.getOverflowedStreamsCount());
+        Assert.assertEquals(0, eventStreams.getStreamsCount());
+        // the emitter is completed by the sender once its write returns
+        Assert.assertTrue(connection.completion.isEmpty());
+        connection.release.countDown();
+        await(() -> !connection.completion.isEmpty());
+        Assert.assertEquals("complete", connection.completion.get(0));
+        Assert.assertEquals(1, connection.sent.size());
+    }
+
+    @Test
+    public void testStalledWriteDoesNotBlockOtherStreams() throws Exception {
+        createContext(200, 100);
+        Connection stalled = open("dev-1", true);
+        SessionMsgListener stalledListener = listener();
+        Connection other = open("dev-2", false);
+        SessionMsgListener otherListener = listener();
+
+        stalledListener.onToDeviceRpcRequest(rpc(1));
+        await(() -> stalled.writing.getCount() == 0);
+        // the only sender thread is stuck in the write until it times out
+        otherListener.onToDeviceRpcRequest(rpc(2));
+        await(() -> other.sent.size() == 1);
+
+        Assert.assertTrue(stalled.interrupted);
+        Assert.assertEquals(1, eventStreams.getOverflowedStreamsCount());
+        Assert.assertEquals(1, eventStreams.getStreamsCount());
+        Assert.assertEquals(1, transportService.getRegisteredSessionsCount());
+    }
+
+    private void createContext(long sendTimeoutMs, int maxPendingEvents) {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.events.sender_threads", "1");
+        options.put("transport.http.events.keep_alive_sec", "0");
+        options.put("transport.http.events.send_timeout_ms", String.valueOf(sendTimeoutMs));
+        options.put("transport.http.events.max_pending_events", String.valueOf(maxPendingEvents));
+        context = HttpTransportLoadHarness.createContext(transportService.getService(), options);
+        eventStreams = context.getBean(DeviceEventStreams.class);
+    }
+
+    /**
+     * @param blocking whether the first write blocks until {@link Connection#release} or an interrupt
+     */
+    private Connection open(String token, boolean blocking) throws Exception {
+        ResponseEntity<?> response = RecordingTransportService.await(context.getBean(DeviceApiController.class).streamEvents(token));
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Connection connection = new Connection(blocking);
+        connection.attach((SseEmitter) response.getBody());
+        return connection;
+    }
+
+    private SessionMsgListener listener() {
+        return transportService.getListener(transportService.getLastCall(SubscribeToRPCMsg.class).getSessionInfo());
+    }
+
+    private static ToDeviceRpcRequestMsg rpc(int requestId) {
+        return ToDeviceRpcRequestMsg.newBuilder().setRequestId(requestId).setMethodName("reboot").setParams("{}").build();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * The response an emitter writes to, as Spring MVC would attach it once the handler returned.
+     */
+    private static class Connection {
+        private final boolean blocking;
+        private final CountDownLatch writing = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+        private final List<String> completion = new CopyOnWriteArrayList<>();
+        private final StringBuilder event = new StringBuilder();
+        private volatile boolean interrupted;
+
+        Connection(boolean blocking) {
+            this.blocking = blocking;
+        }
+
+        void attach(SseEmitter emitter) throws Exception {
+            Class<?> handlerType = Class.forName(ResponseBodyEmitter.class.getName() + "$Handler");
+            Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class<?>[]{handlerType}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "send":
+                        write(String.valueOf(args[0]));
+                        return null;
+                    case "complete":
+                        completion.add("complete");
+                        return null;
+                    case "completeWithError":
+                        completion.add("error");
+                        return null;
+                    default:
+                        return null;
+                }
+            });
+            Method initialize = ResponseBodyEmitter.class.getDeclaredMethod("initialize", handlerType);
+            initialize.setAccessible(true);
+            initialize.invoke(emitter, handler);
+        }
+
+        private void write(String data) throws IOException {
+            if (blocking && writing.getCount() > 0) {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    throw new IOException("Write interrupted");
+                }
+            }
+            // an event is sent in parts, the last one ends with an empty line
+            event.append(data);
+            if (data.endsWith("\n\n")) {
+                sent.add(event.toString());
+                event.setLength(0);
+            }
+        }
+    }
+}
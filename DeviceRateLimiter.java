@@ -0,0 +1,201 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket rate limits of the device API, per device token (checked before the token is validated)
+ * and per tenant (checked once the device is known, before the body is parsed).
+ * Limits are given as {@code capacity:seconds} pairs, e.g. {@code 20:1,600:60} allows bursts of 20 requests
+ * and 600 requests per minute; a request must fit into every bucket.
+ * <p>
+ * Each bucket is a single long, its theoretical arrival time (the generic cell rate algorithm), updated by CAS,
+ * so that checks don't lock. Buckets live in caches that evict keys idle for {@code idle_ttl_sec}.
+ */
+@TbHttpTransportComponent
+public class DeviceRateLimiter {
+
+    @Value("${transport.http.rate_limit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transport.http.rate_limit.device:}")
+    private String deviceLimits;
+
+    @Value("${transport.http.rate_limit.tenant:}")
+    private String tenantLimits;
+
+    @Value("${transport.http.rate_limit.max_devices:100000}")
+    private long maxDevices;
+
+    @Value("${transport.http.rate_limit.idle_ttl_sec:600}")
+    private long idleTtlSec;
+
+    private Limits devices;
+    private Limits tenants;
+
+    private final LongAdder deviceRejections = new LongAdder();
+    private final LongAdder tenantRejections = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        devices = Limits.parse(deviceLimits, maxDevices, idleTtlSec);
+        tenants = Limits.parse(tenantLimits, maxDevices, idleTtlSec);
+    }
+
+    /**
+     * @return 0 if the request of the device is allowed, otherwise the nanoseconds until it would be
+     */
+    public long tryAcquireDevice(String deviceToken) {
+        if (!enabled || devices == null) {
+            return 0L;
+        }
+        long wait = devices.tryAcquire(deviceToken);
+        if (wait > 0) {
+            deviceRejections.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * @return 0 if the request of a device of the tenant is allowed, otherwise the nanoseconds until it would be
+     */
+    public long tryAcquireTenant(UUID tenantId) {
+        if (!enabled || tenants == null) {
+            return 0L;
+        }
+        long wait = tenants.tryAcquire(tenantId);
+        if (wait > 0) {
+            tenantRejections.increment();
+        }
+        return wait;
+    }
+
+    public boolean isTenantLimited() {
+        return enabled && tenants != null;
+    }
+
+    public long getDeviceRejectionsCount() {
+        return deviceRejections.sum();
+    }
+
+    public long getTenantRejectionsCount() {
+        return tenantRejections.sum();
+    }
+
+    public long getBucketsCount() {
+        return (devices != null ? devices.buckets.size() : 0) + (tenants != null ? tenants.buckets.size() : 0);
+    }
+
+    private static class Limits {
+        // per bucket: the nanos one request adds to the arrival time, and how far ahead of now it may get (the burst)
+        private final long[] intervals;
+        private final long[] tolerances;
+        private final Cache<Object, AtomicLongArray> buckets;
+
+        private Limits(long[] intervals, long[] tolerances, long maxKeys, long idleTtlSec) {
+            this.intervals = intervals;
+            this.tolerances = tolerances;
+            this.buckets = CacheBuilder.newBuilder().maximumSize(maxKeys).expireAfterAccess(idleTtlSec, TimeUnit.SECONDS).build();
+        }
+
+        /**
+         * @return the limits, or null if none are configured
+         */
+        static Limits parse(String config, long maxKeys, long idleTtlSec) {
+            if (StringUtils.isEmpty(config)) {
+                return null;
+            }
+            List<long[]> limits = new ArrayList<>();
+            for (String entry : config.split(",")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = entry.trim().split(":");
+                try {
+                    long capacity = Long.parseLong(parts[0].trim());
+                    long seconds = parts.length == 2 ? Long.parseLong(parts[1].trim()) : -1;
+                    if (capacity <= 0 || seconds <= 0) {
+                        throw new IllegalArgumentException("Invalid rate limit [" + entry + "], expected capacity:seconds");
+                    }
+                    limits.add(new long[]{capacity, TimeUnit.SECONDS.toNanos(seconds)});
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid rate limit [" + entry + "], expected capacity:seconds");
+                }
+            }
+            if (limits.isEmpty()) {
+                return null;
+            }
+            long[] intervals = new long[limits.size()];
+            long[] tolerances = new long[limits.size()];
+            for (int i = 0; i < limits.size(); i++) {
+                long capacity = limits.get(i)[0];
+                long period = limits.get(i)[1];
+                intervals[i] = Math.max(1L, period / capacity);
+                tolerances[i] = period - intervals[i];
+            }
+            return new Limits(intervals, tolerances, maxKeys, idleTtlSec);
+        }
+
+        long tryAcquire(Object key) {
+            AtomicLongArray arrivals;
+            try {
+                arrivals = buckets.get(key, () -> new AtomicLongArray(intervals.length));
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < intervals.length; i++) {
+                long wait = tryAcquire(arrivals, i, now);
+                if (wait > 0) {
+                    // give back what the request took from the buckets before
+                    for (int j = 0; j < i; j++) {
+                        arrivals.addAndGet(j, -intervals[j]);
+                    }
+                    return wait;
+                }
+            }
+            return 0L;
+        }
+
+        private long tryAcquire(AtomicLongArray arrivals, int bucket, long now) {
+            while (true) {
+                long arrival = arrivals.get(bucket);
+                // 0 is a fresh bucket; nanoTime may be negative, so don't compare against it
+                long start = arrival == 0 || arrival - now < 0 ? now : arrival;
+                long ahead = start - now;
+                if (ahead > tolerances[bucket]) {
+                    return ahead - tolerances[bucket];
+                }
+                if (arrivals.compareAndSet(bucket, arrival, start + intervals[bucket])) {
+                    return 0L;
+                }
+            }
+        }
+    }
+}
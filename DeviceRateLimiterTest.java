@@ -0,0 +1,143 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParserTest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits of {@link DeviceRateLimiter}; the limits over an hour are not refilled while a test runs.
+ */
+public class DeviceRateLimiterTest {
+
+    private static final UUID TENANT_ID = new UUID(1, 1);
+
+    @Test
+    public void testBurst() {
+        DeviceRateLimiter limiter = limiter("3:3600", "");
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, limiter.tryAcquireDevice("dev-1"));
+        }
+        long wait = limiter.tryAcquireDevice("dev-1");
+        // the next request is allowed once one interval (3600 / 3 seconds) has passed
+        Assert.assertTrue(wait > TimeUnit.SECONDS.toNanos(1199) && wait <= TimeUnit.SECONDS.toNanos(1200));
+        Assert.assertEquals(0, limiter.tryAcquireDevice("dev-2"));
+        Assert.assertEquals(1, limiter.getDeviceRejectionsCount());
+        Assert.assertEquals(2, limiter.getBucketsCount());
+        Assert.assertFalse(limiter.isTenantLimited());
+        Assert.assertEquals(0, limiter.tryAcquireTenant(TENANT_ID));
+    }
+
+    @Test
+    public void testRejectedRequestIsGivenBack() throws InterruptedException {
+        DeviceRateLimiter limiter = limiter("2:3600,1:1", "");
+        Assert.assertEquals(0, limiter.tryAcquireDevice("dev-1"));
+        long wait = limiter.tryAcquireDevice("dev-1");
+        Assert.assertTrue(wait > 0 && wait <= TimeUnit.SECONDS.toNanos(1));
+        // the rejected request took nothing from the hourly bucket
+        Thread.sleep(1050);
+        Assert.assertEquals(0, limiter.tryAcquireDevice("dev-1"));
+        Thread.sleep(1050);
+        Assert.assertTrue(limiter.tryAcquireDevice("dev-1") > TimeUnit.SECONDS.toNanos(1000));
+    }
+
+    @Test
+    public void testTenantLimit() {
+        DeviceRateLimiter limiter = limiter("", "2:3600");
+        Assert.assertTrue(limiter.isTenantLimited());
+        Assert.assertEquals(0, limiter.tryAcquireDevice("dev-1"));
+        Assert.assertEquals(0, limiter.tryAcquireTenant(TENANT_ID));
+        Assert.assertEquals(0, limiter.tryAcquireTenant(TENANT_ID));
+        Assert.assertTrue(limiter.tryAcquireTenant(TENANT_ID) > 0);
+        Assert.assertEquals(0, limiter.tryAcquireTenant(new UUID(1, 2)));
+        Assert.assertEquals(1, limiter.getTenantRejectionsCount());
+    }
+
+    @Test
+    public void testDisabled() {
+        DeviceRateLimiter limiter = limiter("1:3600", "1:3600");
+        ReflectionTestUtils.setField(limiter, "enabled", false);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, limiter.tryAcquireDevice("dev-1"));
+            Assert.assertEquals(0, limiter.tryAcquireTenant(TENANT_ID));
+        }
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        for (String limits : new String[]{"20", "0:1", "20:0", "a:1", "20:1:5"}) {
+            try {
+                limiter(limits, "");
+                Assert.fail(limits);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testThrottledRequests() {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.rate_limit.enabled", "true");
+        options.put("transport.http.rate_limit.device", "1:3600");
+        options.put("transport.http.rate_limit.tenant", "2:3600");
+        RecordingTransportService transportService = new RecordingTransportService(true);
+        try (AnnotationConfigApplicationContext context = HttpTransportLoadHarness.createContext(transportService.getService(), options)) {
+            DeviceApiController controller = context.getBean(DeviceApiController.class);
+            Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postTelemetry("dev-1", telemetry())).getStatusCode());
+            ResponseEntity<?> response = RecordingTransportService.await(controller.postTelemetry("dev-1", telemetry()));
+            Assert.assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+            Assert.assertEquals("3600", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+            // another device of the same tenant is limited by the tenant
+            Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postTelemetry("dev-2", telemetry())).getStatusCode());
+            response = RecordingTransportService.await(controller.postTelemetry("dev-3", telemetry()));
+            Assert.assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+            Assert.assertEquals("1800", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        }
+    }
+
+    private static MockHttpServletRequest telemetry() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent(JsonDataListParserTest.README_PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private static DeviceRateLimiter limiter(String deviceLimits, String tenantLimits) {
+        DeviceRateLimiter limiter = new DeviceRateLimiter();
+        ReflectionTestUtils.setField(limiter, "enabled", true);
+        ReflectionTestUtils.setField(limiter, "deviceLimits", deviceLimits);
+        ReflectionTestUtils.setField(limiter, "tenantLimits", tenantLimits);
+        ReflectionTestUtils.setField(limiter, "maxDevices", 100L);
+        ReflectionTestUtils.setField(limiter, "idleTtlSec", 60L);
+        limiter.init();
+        return limiter;
+    }
+}
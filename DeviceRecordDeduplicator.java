@@ -0,0 +1,203 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops data_list records that were already received from the same device.
+ * A record is identified by the values of its id keys ("id" and "t" by default);
+ * for every device the fingerprints of the last {@code window_size} records are kept in a ring buffer.
+ */
+@TbHttpTransportComponent
+public class DeviceRecordDeduplicator {
+
+    private static final long EMPTY = 0L;
+
+    @Value("${transport.http.dedup.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transport.http.dedup.id_keys:id,t}")
+    private String[] idKeys;
+
+    @Value("${transport.http.dedup.window_size:32}")
+    private int windowSize;
+
+    @Value("${transport.http.dedup.max_devices:100000}")
+    private long maxDevices;
+
+    @Value("${transport.http.dedup.idle_ttl_sec:3600}")
+    private long idleTtlSec;
+
+    private Cache<UUID, RecordWindow> windows;
+
+    private final LongAdder checkedRecords = new LongAdder();
+    private final LongAdder suppressedRecords = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        windows = CacheBuilder.newBuilder().maximumSize(maxDevices).expireAfterAccess(idleTtlSec, TimeUnit.SECONDS).build();
+    }
+
+    public FilteredRecords filter(UUID deviceId, List<TsKvListProto> records) {
+        if (!enabled || records.isEmpty()) {
+            return new FilteredRecords(null, records, new long[0]);
+        }
+        RecordWindow window;
+        try {
+            window = windows.get(deviceId, () -> new RecordWindow(windowSize));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        List<TsKvListProto> accepted = new ArrayList<>(records.size());
+        long[] fingerprints = new long[records.size()];
+        int added = 0;
+        for (TsKvListProto record : records) {
+            long fingerprint = fingerprint(record);
+            if (fingerprint == EMPTY) {
+                accepted.add(record);
+            } else if (window.add(fingerprint)) {
+                accepted.add(record);
+                fingerprints[added++] = fingerprint;
+            } else {
+                suppressedRecords.increment();
+            }
+        }
+        checkedRecords.add(records.size());
+        return new FilteredRecords(window, accepted, Arrays.copyOf(fingerprints, added));
+    }
+
+    public long getCheckedRecordsCount() {
+        return checkedRecords.sum();
+    }
+
+    public long getSuppressedRecordsCount() {
+        return suppressedRecords.sum();
+    }
+
+    private long fingerprint(TsKvListProto record) {
+        long hash = EMPTY;
+        boolean found = false;
+        for (String idKey : idKeys) {
+            long valueHash = 0;
+            for (KeyValueProto kv : record.getKvList()) {
+                if (idKey.equals(kv.getKey())) {
+                    valueHash = valueHash(kv);
+                    found = true;
+                    break;
+                }
+            }
+            hash = mix(hash * 31 + valueHash);
+        }
+        return !found ? EMPTY : (hash == EMPTY ? 1L : hash);
+    }
+
+    private static long valueHash(KeyValueProto kv) {
+        switch (kv.getType()) {
+            case BOOLEAN_V:
+                return kv.getBoolV() ? 1231 : 1237;
+            case LONG_V:
+                return kv.getLongV();
+            case DOUBLE_V:
+                return Double.doubleToLongBits(kv.getDoubleV());
+            default:
+                long h = 1125899906842597L;
+                String value = kv.getStringV();
+                for (int i = 0; i < value.length(); i++) {
+                    h = 31 * h + value.charAt(i);
+                }
+                return h;
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Result of {@link #filter}. If the accepted records could not be delivered,
+     * {@link #rollback()} removes them from the window so that a retransmission is not suppressed.
+     */
+    public static class FilteredRecords {
+        private final RecordWindow window;
+        private final List<TsKvListProto> records;
+        private final long[] fingerprints;
+
+        FilteredRecords(RecordWindow window, List<TsKvListProto> records, long[] fingerprints) {
+            this.window = window;
+            this.records = records;
+            this.fingerprints = fingerprints;
+        }
+
+        public List<TsKvListProto> getRecords() {
+            return records;
+        }
+
+        public void rollback() {
+            if (window != null) {
+                window.remove(fingerprints);
+            }
+        }
+    }
+
+    private static class RecordWindow {
+        private final long[] fingerprints;
+        private int next;
+
+        RecordWindow(int size) {
+            this.fingerprints = new long[size];
+        }
+
+        synchronized boolean add(long fingerprint) {
+            for (long existing : fingerprints) {
+                if (existing == fingerprint) {
+                    return false;
+                }
+            }
+            fingerprints[next] = fingerprint;
+            next = (next + 1) % fingerprints.length;
+            return true;
+        }
+
+        synchronized void remove(long[] toRemove) {
+            for (long fingerprint : toRemove) {
+                for (int i = 0; i < fingerprints.length; i++) {
+                    if (fingerprints[i] == fingerprint) {
+                        fingerprints[i] = EMPTY;
+                    }
+                }
+            }
+        }
+    }
+}
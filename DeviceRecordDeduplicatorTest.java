@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+import org.thingsboard.server.transport.http.DeviceRecordDeduplicator.FilteredRecords;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Suppression of retransmitted records by {@link DeviceRecordDeduplicator} and the rollback of undelivered ones.
+ */
+public class DeviceRecordDeduplicatorTest {
+
+    private static final UUID DEVICE_1 = new UUID(2, 1);
+    private static final UUID DEVICE_2 = new UUID(2, 2);
+
+    @Test
+    public void testRetransmittedRecordsAreSuppressed() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(true, 32);
+        Assert.assertEquals(2, deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\",\"v\":3}", "{\"id\":2,\"t\":\"a\",\"v\":3}")).getRecords().size());
+
+        List<TsKvListProto> accepted = deduplicator.filter(DEVICE_1, records("{\"id\":2,\"t\":\"a\",\"v\":4}", "{\"id\":3,\"t\":\"a\",\"v\":3}")).getRecords();
+        Assert.assertEquals(1, accepted.size());
+        Assert.assertEquals(3, accepted.get(0).getKv(0).getLongV());
+        Assert.assertEquals(4, deduplicator.getCheckedRecordsCount());
+        Assert.assertEquals(1, deduplicator.getSuppressedRecordsCount());
+
+        // another device, another window
+        Assert.assertEquals(1, deduplicator.filter(DEVICE_2, records("{\"id\":2,\"t\":\"a\"}")).getRecords().size());
+    }
+
+    @Test
+    public void testRecordsAreIdentifiedByAllIdKeys() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(true, 32);
+        Assert.assertEquals(3, deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}", "{\"id\":1,\"t\":\"b\"}", "{\"id\":1}")).getRecords().size());
+        Assert.assertEquals(0, deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"b\"}", "{\"t\":\"b\",\"id\":1}")).getRecords().size());
+    }
+
+    @Test
+    public void testDuplicatesWithinOneRequestAreSuppressed() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(true, 32);
+        Assert.assertEquals(1, deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}", "{\"id\":1,\"t\":\"a\"}")).getRecords().size());
+    }
+
+    @Test
+    public void testRecordsWithoutIdKeysAreKept() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(true, 32);
+        deduplicator.filter(DEVICE_1, records("{\"v\":3}"));
+        Assert.assertEquals(2, deduplicator.filter(DEVICE_1, records("{\"v\":3}", "{\"v\":3}")).getRecords().size());
+    }
+
+    @Test
+    public void testRollbackAcceptsRetransmission() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(true, 32);
+        deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}"));
+        FilteredRecords undelivered = deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}", "{\"id\":2,\"t\":\"a\"}"));
+        Assert.assertEquals(1, undelivered.getRecords().size());
+        undelivered.rollback();
+
+        // only the record of the failed request is accepted again, the one delivered before stays suppressed
+        List<TsKvListProto> retransmitted = deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}", "{\"id\":2,\"t\":\"a\"}")).getRecords();
+        Assert.assertEquals(1, retransmitted.size());
+        Assert.assertEquals(2, retransmitted.get(0).getKv(0).getLongV());
+    }
+
+    @Test
+    public void testWindowKeepsLastRecords() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(true, 2);
+        deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}", "{\"id\":2,\"t\":\"a\"}", "{\"id\":3,\"t\":\"a\"}"));
+        Assert.assertEquals(1, deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}")).getRecords().size());
+        Assert.assertEquals(0, deduplicator.filter(DEVICE_1, records("{\"id\":3,\"t\":\"a\"}")).getRecords().size());
+    }
+
+    @Test
+    public void testDisabledDeduplicatorKeepsEverything() {
+        DeviceRecordDeduplicator deduplicator = deduplicator(false, 32);
+        deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}"));
+        FilteredRecords filtered = deduplicator.filter(DEVICE_1, records("{\"id\":1,\"t\":\"a\"}"));
+        Assert.assertEquals(1, filtered.getRecords().size());
+        filtered.rollback();
+        Assert.assertEquals(0, deduplicator.getCheckedRecordsCount());
+    }
+
+    private static DeviceRecordDeduplicator deduplicator(boolean enabled, int windowSize) {
+        DeviceRecordDeduplicator deduplicator = new DeviceRecordDeduplicator();
+        ReflectionTestUtils.setField(deduplicator, "enabled", enabled);
+        ReflectionTestUtils.setField(deduplicator, "idKeys", new String[]{"id", "t"});
+        ReflectionTestUtils.setField(deduplicator, "windowSize", windowSize);
+        ReflectionTestUtils.setField(deduplicator, "maxDevices", 100L);
+        ReflectionTestUtils.setField(deduplicator, "idleTtlSec", 60L);
+        deduplicator.init();
+        return deduplicator;
+    }
+
+    private static List<TsKvListProto> records(String... records) {
+        return JsonDataListParser.parseDataList(new StringReader("{\"data_list\":[" + String.join(",", records) + "]}"), 0);
+    }
+}
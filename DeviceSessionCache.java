@@ -0,0 +1,177 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEvent;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEventMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionType;
+
+import javax.annotation.PostConstruct;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transport sessions of the devices, reused across their requests while they are active.
+ * <p>
+ * Requests that only submit a message (telemetry, attributes, RPC replies, claims) don't register a session
+ * listener, so any number of them can share one session per device: {@link #get} returns it, until the device
+ * is idle for {@code idle_ttl_sec}. Requests that wait for an answer through a session listener (attribute reads,
+ * server side RPC, event streams) get a session of their own from {@link #create}, since the HTTP transport
+ * can't tell an answer to one request from an answer to another on the same session. Long polls keep a session
+ * per device and kind in {@link LongPollRegistry} instead, which lives as long as the cached one.
+ * <p>
+ * Session ids are internal to the transport and the core, so they are drawn from ThreadLocalRandom
+ * rather than {@link UUID#randomUUID()}, which locks a shared SecureRandom.
+ */
+@TbHttpTransportComponent
+public class DeviceSessionCache {
+
+    @Value("${transport.http.session_cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transport.http.session_cache.max_size:100000}")
+    private long maxSize;
+
+    @Value("${transport.http.session_cache.idle_ttl_sec:300}")
+    private long idleTtlSec;
+
+    @Autowired
+    private HttpTransportContext transportContext;
+
+    @Autowired
+    private DeviceTokenCache tokenCache;
+
+    private Cache<UUID, SessionInfoProto> sessions;
+
+    private final LongAdder createdSessions = new LongAdder();
+    private final LongAdder reusedSessions = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        sessions = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterAccess(idleTtlSec, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * @return the session the device shares between its requests without a session listener
+     */
+    public SessionInfoProto get(DeviceInfoProto deviceInfo) {
+        if (!enabled) {
+            return create(deviceInfo);
+        }
+        UUID deviceId = new UUID(deviceInfo.getDeviceIdMSB(), deviceInfo.getDeviceIdLSB());
+        SessionInfoProto session = sessions.getIfPresent(deviceId);
+        if (session != null && session.getTenantIdMSB() == deviceInfo.getTenantIdMSB()
+                && session.getTenantIdLSB() == deviceInfo.getTenantIdLSB()) {
+            reusedSessions.increment();
+            return session;
+        }
+        // concurrent first requests may each create one, the last one is kept
+        session = create(deviceInfo);
+        sessions.put(deviceId, session);
+        return session;
+    }
+
+    /**
+     * @return a new session of the device
+     */
+    public SessionInfoProto create(DeviceInfoProto deviceInfo) {
+        return create(deviceInfo.getTenantIdMSB(), deviceInfo.getTenantIdLSB(), deviceInfo.getDeviceIdMSB(), deviceInfo.getDeviceIdLSB());
+    }
+
+    /**
+     * @return a new session of the device of {@code sessionInfo}
+     */
+    public SessionInfoProto create(SessionInfoProto sessionInfo) {
+        return create(sessionInfo.getTenantIdMSB(), sessionInfo.getTenantIdLSB(), sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB());
+    }
+
+    /**
+     * Closes a session that subscribed to updates: the core drops the session and its subscriptions in the device
+     * actor, which deregistering the listener in the transport alone doesn't.
+     */
+    public void close(SessionInfoProto sessionInfo) {
+        TransportService transportService = transportContext.getTransportService();
+        transportService.process(sessionInfo, SessionEventMsg.newBuilder()
+                .setSessionType(SessionType.ASYNC).setEvent(SessionEvent.CLOSED).build(), null);
+        transportService.deregisterSession(sessionInfo);
+    }
+
+    /**
+     * Handles the close notification a session listener got. With a message, the core closed the sessions of a device
+     * whose credentials changed or that was deleted: its tokens and shared session are dropped as well. Without one,
+     * it is the timeout of a sync session in the transport.
+     */
+    public void onRemoteClose(SessionInfoProto sessionInfo, SessionCloseNotificationProto sessionCloseNotification) {
+        if (!StringUtils.isEmpty(sessionCloseNotification.getMessage())) {
+            UUID deviceId = new UUID(sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB());
+            tokenCache.invalidate(deviceId);
+            sessions.invalidate(deviceId);
+        }
+    }
+
+    /**
+     * @return how long a session may stay unused before it is dropped, 0 if sessions are not reused
+     */
+    public long getIdleTtlMs() {
+        return enabled ? TimeUnit.SECONDS.toMillis(idleTtlSec) : 0L;
+    }
+
+    public long getCreatedSessionsCount() {
+        return createdSessions.sum();
+    }
+
+    public long getReusedSessionsCount() {
+        return reusedSessions.sum();
+    }
+
+    /**
+     * @return the share of requests served with an existing session since the start
+     */
+    public double getReuseRatio() {
+        long reused = reusedSessions.sum();
+        long total = reused + createdSessions.sum();
+        return total > 0 ? (double) reused / total : 0.0;
+    }
+
+    public long getSize() {
+        return sessions.size();
+    }
+
+    private SessionInfoProto create(long tenantIdMSB, long tenantIdLSB, long deviceIdMSB, long deviceIdLSB) {
+        createdSessions.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return SessionInfoProto.newBuilder()
+                .setNodeId(transportContext.getNodeId())
+                .setTenantIdMSB(tenantIdMSB)
+                .setTenantIdLSB(tenantIdLSB)
+                .setDeviceIdMSB(deviceIdMSB)
+                .setDeviceIdLSB(deviceIdLSB)
+                .setSessionIdMSB(random.nextLong())
+                .setSessionIdLSB(random.nextLong())
+                .build();
+    }
+}
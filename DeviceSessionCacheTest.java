@@ -0,0 +1,194 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParserTest;
+import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.PostTelemetryMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEvent;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEventMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceCredentialsResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reuse and invalidation of the sessions of {@link DeviceSessionCache}.
+ */
+public class DeviceSessionCacheTest {
+
+    private RecordingTransportService transportService;
+    private AnnotationConfigApplicationContext context;
+    private DeviceSessionCache cache;
+
+    @After
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void testRequestsShareSession() {
+        start(new HashMap<>());
+        DeviceApiController controller = context.getBean(DeviceApiController.class);
+        for (String token : new String[]{"dev-1", "dev-1", "dev-2"}) {
+            Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postTelemetry(token, telemetry())).getStatusCode());
+        }
+        SessionInfoProto first = transportService.getCalls(PostTelemetryMsg.class).get(0).getSessionInfo();
+        SessionInfoProto second = transportService.getCalls(PostTelemetryMsg.class).get(1).getSessionInfo();
+        SessionInfoProto other = transportService.getCalls(PostTelemetryMsg.class).get(2).getSessionInfo();
+        Assert.assertEquals(first, second);
+        Assert.assertNotEquals(first.getSessionIdLSB(), other.getSessionIdLSB());
+        Assert.assertEquals(2, other.getDeviceIdLSB());
+        Assert.assertEquals(2, cache.getCreatedSessionsCount());
+        Assert.assertEquals(1, cache.getReusedSessionsCount());
+        Assert.assertEquals(1.0 / 3, cache.getReuseRatio(), 1e-9);
+        Assert.assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testOtherTenantGetsNewSession() {
+        start(new HashMap<>());
+        SessionInfoProto session = cache.get(RecordingTransportService.deviceInfo(1));
+        DeviceInfoProto moved = RecordingTransportService.deviceInfo(1).toBuilder().setTenantIdLSB(7).build();
+        SessionInfoProto other = cache.get(moved);
+        Assert.assertNotEquals(session, other);
+        Assert.assertEquals(7, other.getTenantIdLSB());
+        Assert.assertEquals(other, cache.get(moved));
+    }
+
+    @Test
+    public void testCreatedSessionsAreNotShared() {
+        start(new HashMap<>());
+        SessionInfoProto shared = cache.get(RecordingTransportService.deviceInfo(1));
+        SessionInfoProto own = cache.create(RecordingTransportService.deviceInfo(1));
+        SessionInfoProto copy = cache.create(own);
+        Assert.assertNotEquals(shared, own);
+        Assert.assertNotEquals(own, copy);
+        Assert.assertEquals(own.getDeviceIdLSB(), copy.getDeviceIdLSB());
+        Assert.assertEquals(shared, cache.get(RecordingTransportService.deviceInfo(1)));
+        Assert.assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void testRemoteCloseDropsSessionAndToken() {
+        start(new HashMap<>());
+        DeviceTokenCache tokenCache = context.getBean(DeviceTokenCache.class);
+        validate(tokenCache, "dev-1");
+        validate(tokenCache, "dev-1");
+        Assert.assertEquals(1, transportService.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+        SessionInfoProto session = cache.get(RecordingTransportService.deviceInfo(1));
+
+        // a sync session timing out says nothing about the device
+        cache.onRemoteClose(session, SessionCloseNotificationProto.getDefaultInstance());
+        Assert.assertEquals(session, cache.get(RecordingTransportService.deviceInfo(1)));
+        validate(tokenCache, "dev-1");
+        Assert.assertEquals(1, transportService.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+
+        // the credentials of the device changed
+        cache.onRemoteClose(session, SessionCloseNotificationProto.newBuilder().setMessage("Device credentials updated!").build());
+        Assert.assertNotEquals(session, cache.get(RecordingTransportService.deviceInfo(1)));
+        validate(tokenCache, "dev-1");
+        Assert.assertEquals(2, transportService.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+    }
+
+    @Test
+    public void testClose() {
+        start(new HashMap<>());
+        SessionInfoProto session = cache.create(RecordingTransportService.deviceInfo(1));
+        TransportService service = context.getBean(HttpTransportContext.class).getTransportService();
+        service.registerAsyncSession(session, (SessionMsgListener) Proxy.newProxyInstance(SessionMsgListener.class.getClassLoader(),
+                new Class<?>[]{SessionMsgListener.class}, (proxy, method, args) -> null));
+        Assert.assertEquals(1, transportService.getRegisteredSessionsCount());
+
+        cache.close(session);
+        RecordingTransportService.Call call = transportService.getLastCall(SessionEventMsg.class);
+        Assert.assertEquals(session, call.getSessionInfo());
+        Assert.assertEquals(SessionEvent.CLOSED, call.<SessionEventMsg>getMsg().getEvent());
+        Assert.assertEquals(0, transportService.getRegisteredSessionsCount());
+    }
+
+    @Test
+    public void testIdleSessionExpires() throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.session_cache.idle_ttl_sec", "1");
+        start(options);
+        Assert.assertEquals(1000, cache.getIdleTtlMs());
+        SessionInfoProto session = cache.get(RecordingTransportService.deviceInfo(1));
+        Thread.sleep(600);
+        Assert.assertEquals(session, cache.get(RecordingTransportService.deviceInfo(1)));
+        // the access above restarted the idle time
+        Thread.sleep(600);
+        Assert.assertEquals(session, cache.get(RecordingTransportService.deviceInfo(1)));
+        Thread.sleep(1100);
+        Assert.assertNotEquals(session, cache.get(RecordingTransportService.deviceInfo(1)));
+    }
+
+    @Test
+    public void testDisabled() {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.session_cache.enabled", "false");
+        start(options);
+        SessionInfoProto session = cache.get(RecordingTransportService.deviceInfo(1));
+        Assert.assertNotEquals(session, cache.get(RecordingTransportService.deviceInfo(1)));
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, cache.getIdleTtlMs());
+        Assert.assertEquals(0.0, cache.getReuseRatio(), 0.0);
+    }
+
+    private void start(Map<String, String> options) {
+        transportService = new RecordingTransportService(true);
+        context = HttpTransportLoadHarness.createContext(transportService.getService(), options);
+        cache = context.getBean(DeviceSessionCache.class);
+    }
+
+    private void validate(DeviceTokenCache tokenCache, String token) {
+        tokenCache.validate(context.getBean(HttpTransportContext.class).getTransportService(), token,
+                new TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>() {
+                    @Override
+                    public void onSuccess(ValidateDeviceCredentialsResponseMsg msg) {
+                        Assert.assertTrue(msg.hasDeviceInfo());
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        throw new AssertionError(e);
+                    }
+                });
+    }
+
+    private static MockHttpServletRequest telemetry() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent(JsonDataListParserTest.README_PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+}
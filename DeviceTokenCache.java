@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceCredentialsResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Caches results of {@link ValidateDeviceTokenRequestMsg} by access token.
+ * Valid and invalid tokens are kept in separate caches with their own TTL,
+ * and concurrent validations of the same token share a single round-trip.
+ * <p>
+ * The core only tells the transport about changed credentials or a deleted device by closing the sessions
+ * registered for the device, which drops its tokens here. A device that only posts has no such session,
+ * so its revoked or changed token is still accepted until it expires: {@code ttl_sec} is the revocation window.
+ * Valid tokens are indexed by device, so that dropping them doesn't scan the cache; a device has one access token,
+ * so the validation of a new token of a device drops its previous one.
+ * <p>
+ * Nothing reports new or updated credentials, so a token that was unknown keeps being rejected until its entry
+ * expires: {@code negative_ttl_sec} is the delay before a newly provisioned token is accepted, kept short.
+ */
+@TbHttpTransportComponent
+public class DeviceTokenCache {
+
+    @Value("${transport.http.token_cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transport.http.token_cache.max_size:100000}")
+    private long maxSize;
+
+    @Value("${transport.http.token_cache.ttl_sec:30}")
+    private long ttlSec;
+
+    @Value("${transport.http.token_cache.negative_ttl_sec:5}")
+    private long negativeTtlSec;
+
+    private Cache<String, ValidateDeviceCredentialsResponseMsg> validTokens;
+    private Cache<String, ValidateDeviceCredentialsResponseMsg> invalidTokens;
+    private final ConcurrentMap<UUID, String> deviceTokens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PendingValidation> pendingValidations = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        validTokens = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlSec, TimeUnit.SECONDS)
+                .removalListener((RemovalListener<String, ValidateDeviceCredentialsResponseMsg>) notification -> {
+                    if (notification.getCause() != RemovalCause.REPLACED) {
+                        deviceTokens.remove(deviceId(notification.getValue().getDeviceInfo()), notification.getKey());
+                    }
+                })
+                .build();
+        invalidTokens = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(negativeTtlSec, TimeUnit.SECONDS).build();
+    }
+
+    public void validate(TransportService transportService, String token, TransportServiceCallback<ValidateDeviceCredentialsResponseMsg> callback) {
+        if (!enabled) {
+            transportService.process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(token).build(), callback);
+            return;
+        }
+        ValidateDeviceCredentialsResponseMsg cached = validTokens.getIfPresent(token);
+        if (cached != null) {
+            hits.increment();
+            callback.onSuccess(cached);
+            return;
+        }
+        cached = invalidTokens.getIfPresent(token);
+        if (cached != null) {
+            negativeHits.increment();
+            callback.onSuccess(cached);
+            return;
+        }
+        misses.increment();
+        PendingValidation validation = new PendingValidation();
+        validation.add(callback);
+        PendingValidation existing = pendingValidations.putIfAbsent(token, validation);
+        if (existing != null && existing.add(callback)) {
+            return;
+        }
+        transportService.process(ValidateDeviceTokenRequestMsg.newBuilder().setToken(token).build(),
+                new TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>() {
+                    @Override
+                    public void onSuccess(ValidateDeviceCredentialsResponseMsg msg) {
+                        if (msg.hasDeviceInfo()) {
+                            putValid(token, msg);
+                        } else {
+                            invalidTokens.put(token, msg);
+                        }
+                        complete().forEach(c -> c.onSuccess(msg));
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        complete().forEach(c -> c.onError(e));
+                    }
+
+                    private List<TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>> complete() {
+                        pendingValidations.remove(token, validation);
+                        return validation.complete();
+                    }
+                });
+    }
+
+    /**
+     * Validates the tokens of a multi-device request at once: cached tokens are answered right away and the others
+     * are validated concurrently, sharing round-trips with the validations already in flight.
+     *
+     * @param callback gets the responses by token once all of them are in; a token whose validation failed is missing
+     */
+    public void validateAll(TransportService transportService, Collection<String> tokens,
+                            Consumer<Map<String, ValidateDeviceCredentialsResponseMsg>> callback) {
+        Map<String, ValidateDeviceCredentialsResponseMsg> responses = new ConcurrentHashMap<>();
+        AtomicInteger pending = new AtomicInteger(tokens.size() + 1);
+        for (String token : tokens) {
+            validate(transportService, token, new TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>() {
+                @Override
+                public void onSuccess(ValidateDeviceCredentialsResponseMsg msg) {
+                    responses.put(token, msg);
+                    if (pending.decrementAndGet() == 0) {
+                        callback.accept(responses);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    if (pending.decrementAndGet() == 0) {
+                        callback.accept(responses);
+                    }
+                }
+            });
+        }
+        if (pending.decrementAndGet() == 0) {
+            callback.accept(responses);
+        }
+    }
+
+    public void invalidate(UUID deviceId) {
+        String token = deviceTokens.get(deviceId);
+        if (token != null) {
+            validTokens.invalidate(token);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getNegativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getSize() {
+        return validTokens.size() + invalidTokens.size();
+    }
+
+    private void putValid(String token, ValidateDeviceCredentialsResponseMsg msg) {
+        validTokens.put(token, msg);
+        String previous = deviceTokens.put(deviceId(msg.getDeviceInfo()), token);
+        if (previous != null && !previous.equals(token)) {
+            // the device's credentials changed
+            validTokens.invalidate(previous);
+        }
+    }
+
+    private static UUID deviceId(DeviceInfoProto deviceInfo) {
+        return new UUID(deviceInfo.getDeviceIdMSB(), deviceInfo.getDeviceIdLSB());
+    }
+
+    private static class PendingValidation {
+        private List<TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>> callbacks = new ArrayList<>();
+
+        synchronized boolean add(TransportServiceCallback<ValidateDeviceCredentialsResponseMsg> callback) {
+            if (callbacks == null) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        synchronized List<TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>> complete() {
+            List<TransportServiceCallback<ValidateDeviceCredentialsResponseMsg>> result = callbacks;
+            callbacks = null;
+            return result;
+        }
+    }
+}
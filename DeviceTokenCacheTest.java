@@ -0,0 +1,160 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceCredentialsResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Round-trips, negative caching and invalidation of {@link DeviceTokenCache}, answered by hand.
+ */
+public class DeviceTokenCacheTest {
+
+    private RecordingTransportService core;
+    private TransportService transportService;
+    private DeviceTokenCache tokenCache;
+
+    @Before
+    public void setUp() {
+        core = new RecordingTransportService(false);
+        transportService = core.getService();
+        tokenCache = tokenCache(true);
+    }
+
+    @Test
+    public void testConcurrentValidationsShareRoundTrip() {
+        Responses first = validate("dev-1");
+        Responses second = validate("dev-1");
+        Assert.assertEquals(1, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+        Assert.assertTrue(first.responses.isEmpty());
+
+        core.getLastCall(ValidateDeviceTokenRequestMsg.class).succeed(RecordingTransportService.validated("dev-1"));
+        Assert.assertEquals(1, first.responses.size());
+        Assert.assertEquals(first.responses, second.responses);
+
+        Responses cached = validate("dev-1");
+        Assert.assertEquals(first.responses, cached.responses);
+        Assert.assertEquals(1, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+        Assert.assertEquals(1, tokenCache.getHitCount());
+        Assert.assertEquals(2, tokenCache.getMissCount());
+    }
+
+    @Test
+    public void testUnknownTokenIsCachedNegatively() {
+        validate("unknown");
+        core.getLastCall(ValidateDeviceTokenRequestMsg.class).succeed(RecordingTransportService.validated("unknown"));
+
+        Responses cached = validate("unknown");
+        Assert.assertFalse(cached.responses.get(0).hasDeviceInfo());
+        Assert.assertEquals(1, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+        Assert.assertEquals(1, tokenCache.getNegativeHitCount());
+    }
+
+    @Test
+    public void testFailedValidationIsNotCached() {
+        Responses first = validate("dev-1");
+        Responses second = validate("dev-1");
+        core.getLastCall(ValidateDeviceTokenRequestMsg.class).fail(new RuntimeException("core unavailable"));
+        Assert.assertEquals(1, first.errors);
+        Assert.assertEquals(1, second.errors);
+
+        validate("dev-1");
+        Assert.assertEquals(2, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+    }
+
+    @Test
+    public void testInvalidateDropsTokenOfDevice() {
+        validateAndAnswer("dev-1");
+        validateAndAnswer("dev-2");
+        tokenCache.invalidate(deviceId(1));
+
+        validate("dev-1");
+        validate("dev-2");
+        Assert.assertEquals(3, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+        Assert.assertEquals(1, tokenCache.getSize());
+    }
+
+    @Test
+    public void testNewTokenOfDeviceDropsPreviousOne() {
+        validate("old");
+        core.getLastCall(ValidateDeviceTokenRequestMsg.class).succeed(RecordingTransportService.validated("dev-1"));
+        validate("new");
+        core.getLastCall(ValidateDeviceTokenRequestMsg.class).succeed(RecordingTransportService.validated("dev-1"));
+
+        validate("old");
+        Assert.assertEquals(3, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+        tokenCache.invalidate(deviceId(1));
+        Assert.assertEquals(0, tokenCache.getSize());
+    }
+
+    @Test
+    public void testDisabledCacheValidatesEveryRequest() {
+        tokenCache = tokenCache(false);
+        validateAndAnswer("dev-1");
+        validateAndAnswer("dev-1");
+        Assert.assertEquals(2, core.getCalls(ValidateDeviceTokenRequestMsg.class).size());
+    }
+
+    private DeviceTokenCache tokenCache(boolean enabled) {
+        DeviceTokenCache cache = new DeviceTokenCache();
+        ReflectionTestUtils.setField(cache, "enabled", enabled);
+        ReflectionTestUtils.setField(cache, "maxSize", 100L);
+        ReflectionTestUtils.setField(cache, "ttlSec", 60L);
+        ReflectionTestUtils.setField(cache, "negativeTtlSec", 60L);
+        cache.init();
+        return cache;
+    }
+
+    private Responses validate(String token) {
+        Responses responses = new Responses();
+        tokenCache.validate(transportService, token, responses);
+        return responses;
+    }
+
+    private void validateAndAnswer(String token) {
+        validate(token);
+        core.getLastCall(ValidateDeviceTokenRequestMsg.class).succeed(RecordingTransportService.validated(token));
+    }
+
+    private static UUID deviceId(long device) {
+        return new UUID(2, device);
+    }
+
+    private static class Responses implements TransportServiceCallback<ValidateDeviceCredentialsResponseMsg> {
+        private final List<ValidateDeviceCredentialsResponseMsg> responses = new ArrayList<>();
+        private int errors;
+
+        @Override
+        public void onSuccess(ValidateDeviceCredentialsResponseMsg msg) {
+            responses.add(msg);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            errors++;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+import org.thingsboard.server.transport.http.RequestBodyReader.Body;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes request bodies sent with {@code Content-Encoding: gzip} or {@code deflate}.
+ * The body is inflated while the parser reads it; reading more than {@code max_decompressed_size} bytes
+ * fails with {@link BodyTooLargeException}, so a small payload can't expand into an arbitrarily large one.
+ * The inflated bytes are charged to the admission of the request as they are read, in steps of 64 KiB;
+ * if that is refused the read fails with {@link BodyRejectedException}.
+ */
+@TbHttpTransportComponent
+public class HttpRequestDecompressor {
+
+    private static final String IDENTITY = "identity";
+    private static final String GZIP = "gzip";
+    private static final String X_GZIP = "x-gzip";
+    private static final String DEFLATE = "deflate";
+    private static final long RESERVE_STEP = 64 * 1024;
+
+    @Value("${transport.http.compression.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transport.http.compression.max_decompressed_size:4194304}")
+    private long maxDecompressedSize;
+
+    private final LongAdder compressedRequests = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder decompressedBytes = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    public boolean isSupported(String contentEncoding) {
+        String encoding = normalize(contentEncoding);
+        return IDENTITY.equals(encoding) || (enabled && (GZIP.equals(encoding) || X_GZIP.equals(encoding) || DEFLATE.equals(encoding)));
+    }
+
+    /**
+     * @param contentEncoding value of the Content-Encoding header, must be {@link #isSupported supported}
+     * @param reserve         called with the compressed length plus the bytes inflated so far (rounded up) before they
+     *                        are read; returns false if the request was answered instead, e.g. with 429
+     */
+    public DecodedBody decode(String contentEncoding, Body body, LongPredicate reserve) {
+        return new DecodedBody(normalize(contentEncoding), body, reserve);
+    }
+
+    public long getCompressedRequestsCount() {
+        return compressedRequests.sum();
+    }
+
+    public long getCompressedBytesCount() {
+        return compressedBytes.sum();
+    }
+
+    public long getDecompressedBytesCount() {
+        return decompressedBytes.sum();
+    }
+
+    public long getRejectedRequestsCount() {
+        return rejectedRequests.sum();
+    }
+
+    /**
+     * @return decompressed to compressed size of all fully read compressed bodies
+     */
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.sum();
+        return compressed > 0 ? (double) decompressedBytes.sum() / compressed : 0.0;
+    }
+
+    private static String normalize(String contentEncoding) {
+        return StringUtils.isEmpty(contentEncoding) ? IDENTITY : contentEncoding.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Request body in its transferred form. Every stream opened on it inflates the body again.
+     */
+    public class DecodedBody {
+        private final String encoding;
+        private final Body body;
+        private final LongPredicate reserve;
+        private boolean recorded;
+
+        DecodedBody(String encoding, Body body, LongPredicate reserve) {
+            this.encoding = encoding;
+            this.body = body;
+            this.reserve = reserve;
+        }
+
+        public InputStream openStream() throws IOException {
+            switch (encoding) {
+                case GZIP:
+                case X_GZIP:
+                    return new LimitedInputStream(new GZIPInputStream(body.openStream()), null);
+                case DEFLATE:
+                    // "deflate" is meant to be zlib-wrapped, but some clients send a raw deflate stream
+                    Inflater inflater = new Inflater(!hasZlibHeader());
+                    return new LimitedInputStream(new InflaterInputStream(body.openStream(), inflater), inflater);
+                default:
+                    return body.openStream();
+            }
+        }
+
+        public int length() {
+            return body.length();
+        }
+
+        /**
+         * @return false if the request was answered meanwhile and its body released
+         */
+        public boolean retain() {
+            return body.retain();
+        }
+
+        public void release() {
+            body.release();
+        }
+
+        public byte[] toByteArray() throws IOException {
+            if (IDENTITY.equals(encoding)) {
+                return body.toByteArray();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() * 4);
+            try (InputStream in = openStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private boolean hasZlibHeader() {
+            return body.length() >= 2 && (body.get(0) & 0x0F) == 8 && (((body.get(0) & 0xFF) << 8) | (body.get(1) & 0xFF)) % 31 == 0;
+        }
+
+        private void record(long decompressedSize) {
+            if (!recorded) {
+                recorded = true;
+                compressedRequests.increment();
+                compressedBytes.add(body.length());
+                decompressedBytes.add(decompressedSize);
+            }
+        }
+
+        private void reject() {
+            if (!recorded) {
+                recorded = true;
+                rejectedRequests.increment();
+            }
+        }
+
+        private class LimitedInputStream extends FilterInputStream {
+            private final Inflater inflater;
+            private long count;
+            private long reserved;
+
+            LimitedInputStream(InputStream in, Inflater inflater) {
+                super(in);
+                this.inflater = inflater;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    record(count);
+                } else {
+                    checkLimit(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read == -1) {
+                    record(count);
+                } else {
+                    checkLimit(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                checkLimit(skipped);
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (inflater != null) {
+                    inflater.end();
+                }
+            }
+
+            private void checkLimit(long read) {
+                count += read;
+                if (count > maxDecompressedSize) {
+                    reject();
+                    throw new BodyTooLargeException(maxDecompressedSize);
+                }
+                if (count > reserved) {
+                    reserved = Math.min(count + RESERVE_STEP, maxDecompressedSize);
+                    if (!reserve.test(body.length() + reserved)) {
+                        recorded = true;
+                        throw new BodyRejectedException();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The request was answered while its body was inflated; unchecked for the same reason as {@link BodyTooLargeException}.
+     */
+    public static class BodyRejectedException extends RuntimeException {
+
+        BodyRejectedException() {
+            super("Request answered while its body was inflated");
+        }
+    }
+
+    /**
+     * Unchecked, so that parsers reading the stream don't report it as malformed input.
+     */
+    public static class BodyTooLargeException extends RuntimeException {
+
+        BodyTooLargeException(long maxSize) {
+            super("Decompressed request body exceeds " + maxSize + " bytes");
+        }
+    }
+}
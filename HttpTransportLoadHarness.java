@@ -0,0 +1,341 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.adaptor.DataListBenchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives {@link DeviceApiController} in process at high concurrency, with {@link StubTransportService} in place of the core.
+ * The controller and its components are created by Spring from their classes, so the {@code transport.http.*}
+ * properties apply; no servlet container is involved, requests are method calls with mock servlet requests.
+ * <p>
+ * Up to {@code concurrency} requests are outstanding at any time. For every endpoint it reports throughput,
+ * p50/p99/p999 latency from the call to the completion of the {@link DeferredResult}, the response statuses
+ * and the requests whose DeferredResult was never completed - these would be answered only by the container's
+ * async timeout. Options, as {@code --name=value}:
+ * <pre>
+ * duration_sec [30], concurrency [512], threads [8], devices [10000], records [10], batch_devices [100]
+ * auth_latency_ms [1], submit_latency_ms [2], error_rate [0.0], push_rate [0.2], poll_timeout_ms [2000], stub_threads [cpus]
+ * mix [telemetry:70,attributes:8,get_attributes:5,rpc_poll:5,attribute_poll:5,rpc_reply:2,rpc_request:3,claim:2],
+ *     telemetry_batch posts the telemetry of batch_devices random devices in one request
+ * any transport.http.* property, e.g. --transport.http.dedup.enabled=true
+ * </pre>
+ */
+public class HttpTransportLoadHarness {
+
+    private enum Endpoint {
+        TELEMETRY, TELEMETRY_BATCH, ATTRIBUTES, GET_ATTRIBUTES, RPC_POLL, ATTRIBUTE_POLL, RPC_REPLY, RPC_REQUEST, CLAIM
+    }
+
+    private static final String DEFAULT_MIX = "telemetry:70,attributes:8,get_attributes:5,rpc_poll:5,attribute_poll:5,rpc_reply:2,rpc_request:3,claim:2";
+
+    private final DeviceApiController controller;
+    private final int devices;
+    private final long pollTimeoutMs;
+    private final int batchDevices;
+    private final byte[] telemetry;
+    private final byte[] attributes;
+    private final Endpoint[] mix;
+
+    private final Map<Endpoint, Stats> stats = new EnumMap<>(Endpoint.class);
+    private final Map<DeferredResult<ResponseEntity>, Endpoint> pending = new ConcurrentHashMap<>();
+
+    private HttpTransportLoadHarness(DeviceApiController controller, Map<String, String> options) {
+        this.controller = controller;
+        this.devices = Integer.parseInt(options.getOrDefault("devices", "10000"));
+        this.pollTimeoutMs = Long.parseLong(options.getOrDefault("poll_timeout_ms", "2000"));
+        this.batchDevices = Integer.parseInt(options.getOrDefault("batch_devices", "100"));
+        this.telemetry = DataListBenchmark.dataList(Integer.parseInt(options.getOrDefault("records", "10")), false).getBytes(StandardCharsets.UTF_8);
+        this.attributes = DataListBenchmark.attributesJson().getBytes(StandardCharsets.UTF_8);
+        this.mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+        for (Endpoint endpoint : Endpoint.values()) {
+            stats.put(endpoint, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        StubTransportService stub = new StubTransportService(
+                Long.parseLong(options.getOrDefault("auth_latency_ms", "1")),
+                Long.parseLong(options.getOrDefault("submit_latency_ms", "2")),
+                Double.parseDouble(options.getOrDefault("error_rate", "0.0")),
+                Double.parseDouble(options.getOrDefault("push_rate", "0.2")),
+                Long.parseLong(options.getOrDefault("poll_timeout_ms", "2000")),
+                Integer.parseInt(options.getOrDefault("stub_threads", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        try (AnnotationConfigApplicationContext context = createContext(stub.getService(), options)) {
+            HttpTransportLoadHarness harness = new HttpTransportLoadHarness(context.getBean(DeviceApiController.class), options);
+            harness.run(Integer.parseInt(options.getOrDefault("duration_sec", "30")),
+                    Integer.parseInt(options.getOrDefault("concurrency", "512")),
+                    Integer.parseInt(options.getOrDefault("threads", "8")));
+            reportStages(context.getBean(MeterRegistry.class));
+            System.out.printf("core: submitted %d, failed %d, timed out sessions %d, open sessions %d, subscriptions %d (%d orphaned)%n",
+                    stub.getSubmittedCount(), stub.getFailedCount(), stub.getTimedOutSessionsCount(), stub.getOpenSessionsCount(),
+                    stub.getCoreSubscriptionsCount(), stub.getOrphanedSubscriptionsCount());
+        } finally {
+            stub.shutdown();
+        }
+    }
+
+    static AnnotationConfigApplicationContext createContext(TransportService transportService, Map<String, String> options) {
+        HttpTransportContext transportContext = new HttpTransportContext();
+        ReflectionTestUtils.setField(transportContext, "transportService", transportService);
+        ReflectionTestUtils.setField(transportContext, "defaultTimeout", Long.parseLong(options.getOrDefault("poll_timeout_ms", "2000")));
+        ReflectionTestUtils.setField(transportContext, "nodeId", "load-harness");
+
+        Map<String, Object> properties = new HashMap<>();
+        options.forEach((name, value) -> {
+            if (name.startsWith("transport.")) {
+                properties.put(name, value);
+            }
+        });
+        AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().getPropertySources().addFirst(new MapPropertySource("harness", properties));
+        context.getBeanFactory().registerSingleton("httpTransportContext", transportContext);
+        context.getBeanFactory().registerSingleton("meterRegistry", new SimpleMeterRegistry());
+        context.register(HttpTransportSettings.class, DeviceTokenCache.class, DeviceRecordDeduplicator.class, TelemetrySchemaRegistry.class,
+                HttpRequestDecompressor.class, TelemetryKeyTypeCache.class, TelemetryDeadbandFilter.class, DeviceApiMetrics.class,
+                RequestBodyReader.class, IngestionExecutor.class, DeviceRateLimiter.class, TelemetryBatcher.class,
+                DeviceSessionCache.class, DeviceAttributeCache.class, LongPollRegistry.class, DeviceEventStreams.class, DeviceApiController.class);
+        context.refresh();
+        return context;
+    }
+
+    private void run(int durationSec, int concurrency, int threads) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+        ExecutorService drivers = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSec);
+        for (int i = 0; i < threads; i++) {
+            drivers.execute(() -> {
+                while (System.nanoTime() < end) {
+                    try {
+                        if (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                            continue;
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    send(permits);
+                }
+            });
+        }
+        drivers.shutdown();
+        drivers.awaitTermination(durationSec + 60, TimeUnit.SECONDS);
+        long elapsedNanos = System.nanoTime() - start;
+        // long polls complete within their timeout, anything left after that is leaked
+        permits.tryAcquire(concurrency, pollTimeoutMs + 5000, TimeUnit.MILLISECONDS);
+        report(elapsedNanos);
+    }
+
+    private void send(Semaphore permits) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Endpoint endpoint = mix[random.nextInt(mix.length)];
+        String token = "dev-" + random.nextInt(devices);
+        Stats endpointStats = stats.get(endpoint);
+        long startNanos = System.nanoTime();
+        endpointStats.sent.increment();
+        DeferredResult<ResponseEntity> result;
+        try {
+            result = call(endpoint, token);
+        } catch (RuntimeException e) {
+            endpointStats.thrown.increment();
+            permits.release();
+            return;
+        }
+        pending.put(result, endpoint);
+        result.setResultHandler(response -> {
+            if (pending.remove(result) != null) {
+                endpointStats.latency.recordValue(Math.max(1, (System.nanoTime() - startNanos) / 1000));
+                endpointStats.statuses.computeIfAbsent(((ResponseEntity) response).getStatusCodeValue(), status -> new LongAdder()).increment();
+                permits.release();
+            }
+        });
+    }
+
+    private DeferredResult<ResponseEntity> call(Endpoint endpoint, String token) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        switch (endpoint) {
+            case TELEMETRY:
+                request.setContentType("application/json");
+                request.setContent(telemetry);
+                return controller.postTelemetry(token, request);
+            case TELEMETRY_BATCH:
+                request.setContentType("application/json");
+                request.setContent(telemetryBatch());
+                return controller.postTelemetryBatch(request);
+            case ATTRIBUTES:
+                request.setContentType("application/json");
+                request.setContent(attributes);
+                return controller.postDeviceAttributes(token, request);
+            case GET_ATTRIBUTES:
+                return controller.getDeviceAttributes(token, "fw_version", "report_interval", request);
+            case RPC_POLL:
+                return controller.subscribeToCommands(token, pollTimeoutMs, request);
+            case ATTRIBUTE_POLL:
+                return controller.subscribeToAttributes(token, pollTimeoutMs, request);
+            case RPC_REPLY:
+                request.setContent("{\"result\":\"ok\"}".getBytes(StandardCharsets.UTF_8));
+                return controller.replyToCommand(token, 1, request);
+            case RPC_REQUEST:
+                request.setContent("{\"method\":\"getTime\",\"params\":{}}".getBytes(StandardCharsets.UTF_8));
+                return controller.postRpcRequest(token, request);
+            case CLAIM:
+                request.setContent("{\"secretKey\":\"s3cr3t\",\"durationMs\":60000}".getBytes(StandardCharsets.UTF_8));
+                return controller.claimDevice(token, request);
+            default:
+                throw new IllegalArgumentException(endpoint.name());
+        }
+    }
+
+    private byte[] telemetryBatch() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(batchDevices * (telemetry.length + 16));
+        body.write('{');
+        for (int i = 0; i < batchDevices; i++) {
+            byte[] token = ((i == 0 ? "" : ",") + "\"dev-" + random.nextInt(devices) + "\":").getBytes(StandardCharsets.UTF_8);
+            body.write(token, 0, token.length);
+            body.write(telemetry, 0, telemetry.length);
+        }
+        body.write('}');
+        return body.toByteArray();
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long totalCompleted = 0;
+        System.out.printf("%-15s %9s %9s %10s %9s %9s %9s %9s %9s  %s%n",
+                "endpoint", "sent", "completed", "req/s", "p50 us", "p99 us", "p999 us", "max us", "leaked", "statuses");
+        for (Map.Entry<Endpoint, Stats> entry : stats.entrySet()) {
+            Stats endpointStats = entry.getValue();
+            Histogram latency = endpointStats.latency;
+            long completed = latency.getTotalCount();
+            totalCompleted += completed;
+            long leaked = pending.values().stream().filter(entry.getKey()::equals).count();
+            Map<Integer, Long> statuses = new TreeMap<>();
+            endpointStats.statuses.forEach((status, count) -> statuses.put(status, count.sum()));
+            System.out.printf("%-15s %9d %9d %10.0f %9d %9d %9d %9d %9d  %s%s%n",
+                    entry.getKey().name().toLowerCase(Locale.ROOT), endpointStats.sent.sum(), completed, completed / seconds,
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9),
+                    latency.getMaxValue(), leaked, statuses,
+                    endpointStats.thrown.sum() > 0 ? " thrown " + endpointStats.thrown.sum() : "");
+        }
+        System.out.printf("total: %d completed in %.1f s, %.0f req/s, %d never completed%n",
+                totalCompleted, seconds, totalCompleted / seconds, pending.size());
+    }
+
+    private static void reportStages(MeterRegistry registry) {
+        System.out.printf("%-30s %-18s %9s %10s %10s%n", "stage", "endpoint", "count", "mean us", "max us");
+        for (String stage : new String[]{"transport.http.auth", "transport.http.parse", "transport.http.process", "transport.http.batch.wait",
+                "transport.http.long_poll.timer_lag"}) {
+            for (Timer timer : registry.find(stage).timers()) {
+                if (timer.count() > 0) {
+                    String endpoint = timer.getId().getTag("endpoint");
+                    System.out.printf("%-30s %-18s %9d %10.0f %10.0f%n", stage, endpoint != null ? endpoint : "-", timer.count(),
+                            timer.mean(TimeUnit.MICROSECONDS), timer.max(TimeUnit.MICROSECONDS));
+                }
+            }
+        }
+        DistributionSummary batchRequests = registry.find("transport.http.batch.requests").summary();
+        if (batchRequests != null && batchRequests.count() > 0) {
+            System.out.printf("telemetry batches: %d, requests per batch mean %.1f max %.0f%n",
+                    batchRequests.count(), batchRequests.mean(), batchRequests.max());
+        }
+        System.out.printf("sessions: %.0f created, %.0f reused%n",
+                registry.get("transport.http.sessions.created").functionCounter().count(),
+                registry.get("transport.http.sessions.reused").functionCounter().count());
+        DistributionSummary batchDevices = registry.find("transport.http.device_batch.devices").summary();
+        if (batchDevices != null && batchDevices.count() > 0) {
+            Map<String, Long> outcomes = new TreeMap<>();
+            registry.find("transport.http.device_batch.responses").counters()
+                    .forEach(counter -> outcomes.put(counter.getId().getTag("outcome"), (long) counter.count()));
+            System.out.printf("device batches: %d, devices per request mean %.1f, device outcomes %s%n",
+                    batchDevices.count(), batchDevices.mean(), outcomes);
+        }
+        FunctionCounter attributeHits = registry.find("transport.http.attribute_cache.hits").functionCounter();
+        if (attributeHits != null && attributeHits.count() > 0) {
+            System.out.printf("attribute cache: %.0f hits, %.0f misses, %.0f invalidations%n", attributeHits.count(),
+                    registry.get("transport.http.attribute_cache.misses").functionCounter().count(),
+                    registry.get("transport.http.attribute_cache.invalidations").functionCounter().count());
+        }
+        FunctionCounter longPolls = registry.find("transport.http.long_poll.registrations").functionCounter();
+        if (longPolls != null && longPolls.count() > 0) {
+            System.out.printf("long polls: %.0f registered, %.0f coalesced, %.0f expired%n", longPolls.count(),
+                    registry.get("transport.http.long_poll.coalesced_registrations").functionCounter().count(),
+                    registry.get("transport.http.long_poll.expirations").functionCounter().count());
+        }
+    }
+
+    private static Endpoint[] parseMix(String mix) {
+        List<Endpoint> weighted = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            Endpoint endpoint = Endpoint.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                weighted.add(endpoint);
+            }
+        }
+        if (weighted.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix " + mix);
+        }
+        return weighted.toArray(new Endpoint[0]);
+    }
+
+    private static class Stats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder thrown = new LongAdder();
+        private final Histogram latency = new ConcurrentHistogram(3);
+        private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    }
+}
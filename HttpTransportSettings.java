@@ -0,0 +1,61 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.thingsboard.server.common.transport.adaptor.DataListOptions;
+
+import javax.annotation.PostConstruct;
+
+@TbHttpTransportComponent
+public class HttpTransportSettings {
+
+    @Getter
+    @Value("${transport.http.telemetry.batch_enabled:true}")
+    private boolean telemetryBatchEnabled;
+
+    @Getter
+    @Value("${transport.http.telemetry.max_records:1000}")
+    private int telemetryMaxRecords;
+
+    @Getter
+    @Value("${transport.http.telemetry.max_devices:1000}")
+    private int telemetryMaxDevices;
+
+    @Getter
+    @Value("${transport.http.telemetry.chunk_size:50}")
+    private int telemetryChunkSize;
+
+    @Getter
+    @Value("${transport.http.telemetry.max_concurrent_chunks:4}")
+    private int telemetryMaxConcurrentChunks;
+
+    @Value("${transport.http.telemetry.pack_arrays:false}")
+    private boolean telemetryPackArrays;
+
+    @Value("${transport.http.telemetry.array_aggregates:}")
+    private String telemetryArrayAggregates;
+
+    @Getter
+    private DataListOptions dataListOptions;
+
+    @PostConstruct
+    public void init() {
+        dataListOptions = DataListOptions.of(telemetryPackArrays, telemetryArrayAggregates);
+    }
+
+}
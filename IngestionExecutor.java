@@ -0,0 +1,204 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of the device POST endpoints: limits the requests and body bytes in flight and runs
+ * body decoding and conversion on a bounded pool of its own. A request over a limit, or whose task finds
+ * the queue full, is answered right away with 429 and {@code Retry-After} instead of waiting without bound,
+ * so that a reconnect storm can't exhaust the heap.
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class IngestionExecutor {
+
+    @Value("${transport.http.ingestion.threads:0}")
+    private int threads;
+
+    @Value("${transport.http.ingestion.queue_size:1000}")
+    private int queueSize;
+
+    @Value("${transport.http.ingestion.max_in_flight_requests:10000}")
+    private int maxInFlightRequests;
+
+    @Value("${transport.http.ingestion.max_in_flight_bytes:268435456}")
+    private long maxInFlightBytes;
+
+    @Value("${transport.http.ingestion.retry_after_sec:5}")
+    private long retryAfterSec;
+
+    private ThreadPoolExecutor executor;
+
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    private final LongAdder requestLimitRejections = new LongAdder();
+    private final LongAdder byteLimitRejections = new LongAdder();
+    private final LongAdder queueFullRejections = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)),
+                new ThreadFactoryBuilder().setNameFormat("http-ingestion-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Counts the request and its declared body length against the in-flight limits until it is answered.
+     *
+     * @param contentLength the Content-Length of the request, -1 if unknown
+     * @return the admission, or null if the request was answered with 429
+     */
+    public Admission admit(MeteredResult responseWriter, long contentLength) {
+        int requests = inFlightRequests.incrementAndGet();
+        if (requests > maxInFlightRequests) {
+            inFlightRequests.decrementAndGet();
+            requestLimitRejections.increment();
+            reject(responseWriter);
+            return null;
+        }
+        Admission admission = new Admission();
+        responseWriter.whenFinished(admission::release);
+        return admission.reserve(responseWriter, Math.max(0L, contentLength)) ? admission : null;
+    }
+
+    /**
+     * Runs the task on the ingestion pool unless the request is answered meanwhile;
+     * answers 429 if the queue is full and 500 if the task fails.
+     */
+    public void execute(DeferredResult<ResponseEntity> responseWriter, Runnable task) {
+        try {
+            executor.execute(() -> {
+                if (responseWriter.isSetOrExpired()) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("Failed to process request", e);
+                    responseWriter.setResult(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queueFullRejections.increment();
+            reject(responseWriter);
+        }
+    }
+
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    public long getRequestLimitRejectionsCount() {
+        return requestLimitRejections.sum();
+    }
+
+    public long getByteLimitRejectionsCount() {
+        return byteLimitRejections.sum();
+    }
+
+    public long getQueueFullRejectionsCount() {
+        return queueFullRejections.sum();
+    }
+
+    private void reject(DeferredResult<ResponseEntity> responseWriter) {
+        responseWriter.setResult(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSec)).build());
+    }
+
+    /**
+     * An admitted request; gives its request and bytes back when it is answered.
+     */
+    public class Admission {
+        private long reservedBytes;
+        private boolean released;
+
+        /**
+         * Reserves the bytes of a body read without a Content-Length, or longer than declared.
+         *
+         * @return false if the request was answered with 429
+         */
+        public boolean reserve(DeferredResult<ResponseEntity> responseWriter, long bodyLength) {
+            long bytes;
+            synchronized (this) {
+                if (released || bodyLength <= reservedBytes) {
+                    return !released;
+                }
+                bytes = bodyLength - reservedBytes;
+                if (inFlightBytes.addAndGet(bytes) > maxInFlightBytes) {
+                    inFlightBytes.addAndGet(-bytes);
+                    bytes = -1;
+                } else {
+                    reservedBytes = bodyLength;
+                }
+            }
+            if (bytes < 0) {
+                byteLimitRejections.increment();
+                reject(responseWriter);
+                return false;
+            }
+            return true;
+        }
+
+        private void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            inFlightRequests.decrementAndGet();
+            inFlightBytes.addAndGet(-reservedBytes);
+        }
+    }
+}
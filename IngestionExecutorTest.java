@@ -0,0 +1,188 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.Endpoint;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+import org.thingsboard.server.transport.http.IngestionExecutor.Admission;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Admission of requests by {@link IngestionExecutor} against its in-flight limits.
+ */
+public class IngestionExecutorTest {
+
+    private AnnotationConfigApplicationContext context;
+    private IngestionExecutor executor;
+    private DeviceApiMetrics metrics;
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testRequestLimit() {
+        createContext("transport.http.ingestion.max_in_flight_requests", "2");
+        MeteredResult first = metrics.newResult(Endpoint.TELEMETRY);
+        Assert.assertNotNull(executor.admit(first, 10));
+        Assert.assertNotNull(executor.admit(metrics.newResult(Endpoint.TELEMETRY), 10));
+        MeteredResult third = metrics.newResult(Endpoint.TELEMETRY);
+        Assert.assertNull(executor.admit(third, 10));
+        assertThrottled(third);
+        Assert.assertEquals(1, executor.getRequestLimitRejectionsCount());
+
+        // an answered request gives its place back
+        first.setResult(new ResponseEntity<>(HttpStatus.OK));
+        Assert.assertEquals(1, executor.getInFlightRequests());
+        Assert.assertNotNull(executor.admit(metrics.newResult(Endpoint.TELEMETRY), 10));
+    }
+
+    @Test
+    public void testByteLimit() {
+        createContext("transport.http.ingestion.max_in_flight_bytes", "100");
+        MeteredResult first = metrics.newResult(Endpoint.TELEMETRY);
+        Admission admission = executor.admit(first, 60);
+        Assert.assertNotNull(admission);
+        MeteredResult second = metrics.newResult(Endpoint.TELEMETRY);
+        Assert.assertNull(executor.admit(second, 60));
+        assertThrottled(second);
+        Assert.assertEquals(60, executor.getInFlightBytes());
+
+        // a body longer than its Content-Length is charged for the difference
+        Assert.assertTrue(admission.reserve(first, 90));
+        Assert.assertTrue(admission.reserve(first, 80));
+        Assert.assertEquals(90, executor.getInFlightBytes());
+        Assert.assertFalse(admission.reserve(first, 101));
+        assertThrottled(first);
+        Assert.assertEquals(0, executor.getInFlightBytes());
+        Assert.assertEquals(0, executor.getInFlightRequests());
+        Assert.assertEquals(2, executor.getByteLimitRejectionsCount());
+    }
+
+    @Test
+    public void testQueueFull() throws InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.ingestion.threads", "1");
+        options.put("transport.http.ingestion.queue_size", "1");
+        createContext(options);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            executor.execute(metrics.newResult(Endpoint.TELEMETRY), () -> {
+                running.countDown();
+                await(release);
+            });
+            Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+            MeteredResult queued = metrics.newResult(Endpoint.TELEMETRY);
+            executor.execute(queued, () -> queued.setResult(new ResponseEntity<>(HttpStatus.OK)));
+            MeteredResult rejected = metrics.newResult(Endpoint.TELEMETRY);
+            executor.execute(rejected, Assert::fail);
+            assertThrottled(rejected);
+            Assert.assertEquals(1, executor.getQueueFullRejectionsCount());
+
+            release.countDown();
+            Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(queued).getStatusCode());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testFailedTask() {
+        createContext(new HashMap<>());
+        MeteredResult result = metrics.newResult(Endpoint.TELEMETRY);
+        executor.execute(result, () -> {
+            throw new IllegalStateException("test");
+        });
+        Assert.assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, RecordingTransportService.await(result).getStatusCode());
+    }
+
+    @Test
+    public void testInflatedBytesAreCharged() throws IOException {
+        createContext("transport.http.ingestion.max_in_flight_bytes", "100000");
+        DeviceApiController controller = context.getBean(DeviceApiController.class);
+        StringBuilder json = new StringBuilder("{\"fw\":\"");
+        for (int i = 0; i < 200000; i++) {
+            json.append('x');
+        }
+        byte[] body = json.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+
+        ResponseEntity<?> response = RecordingTransportService.await(controller.postDeviceAttributes("dev-1", gzip(body)));
+        Assert.assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        Assert.assertEquals("5", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+        Assert.assertEquals(0, executor.getInFlightBytes());
+        Assert.assertEquals(0, context.getBean(HttpRequestDecompressor.class).getRejectedRequestsCount());
+
+        // within the budget the inflated body is submitted
+        byte[] small = "{\"fw\":\"1.0.2\"}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(controller.postDeviceAttributes("dev-1", gzip(small))).getStatusCode());
+    }
+
+    private void createContext(String name, String value) {
+        Map<String, String> options = new HashMap<>();
+        options.put(name, value);
+        createContext(options);
+    }
+
+    private void createContext(Map<String, String> options) {
+        context = HttpTransportLoadHarness.createContext(new RecordingTransportService(true).getService(), options);
+        executor = context.getBean(IngestionExecutor.class);
+        metrics = context.getBean(DeviceApiMetrics.class);
+    }
+
+    private static void assertThrottled(MeteredResult result) {
+        ResponseEntity<?> response = (ResponseEntity<?>) result.getResult();
+        Assert.assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatusCode());
+        Assert.assertEquals("5", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static MockHttpServletRequest gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        }
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.addHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        request.setContent(compressed.toByteArray());
+        return request;
+    }
+}
@@ -50,6 +50,14 @@ public class JsonConverter {
     private static final String CAN_T_PARSE_VALUE = "Can't parse value: ";
     private static final String DEVICE_PROPERTY = "device";
 
+    private static final int MAX_FAST_DIGITS = 18;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     private static boolean isTypeCastEnabled = true;
 
     private static int maxStringValueLength = 0;
@@ -169,26 +177,11 @@ public class JsonConverter {
             if (element.isJsonPrimitive()) {
                 JsonPrimitive value = element.getAsJsonPrimitive();
                 if (value.isString()) {
-                    if (maxStringValueLength > 0 && value.getAsString().length() > maxStringValueLength) {
-                        String message = String.format("String value length [%d] for key [%s] is greater than maximum allowed [%d]", value.getAsString().length(), valueEntry.getKey(), maxStringValueLength);
-                        throw new JsonSyntaxException(message);
-                    }
-                    if (isTypeCastEnabled && NumberUtils.isParsable(value.getAsString())) {
-                        try {
-                            result.add(buildNumericKeyValueProto(value, valueEntry.getKey()));
-                        } catch (RuntimeException th) {
-                            result.add(KeyValueProto.newBuilder().setKey(valueEntry.getKey()).setType(KeyValueType.STRING_V)
-                                    .setStringV(value.getAsString()).build());
-                        }
-                    } else {
-                        result.add(KeyValueProto.newBuilder().setKey(valueEntry.getKey()).setType(KeyValueType.STRING_V)
-                                .setStringV(value.getAsString()).build());
-                    }
+                    result.add(buildStringKeyValueProto(valueEntry.getKey(), value.getAsString()));
                 } else if (value.isBoolean()) {
-                    result.add(KeyValueProto.newBuilder().setKey(valueEntry.getKey()).setType(KeyValueType.BOOLEAN_V)
-                            .setBoolV(value.getAsBoolean()).build());
+                    result.add(buildBooleanKeyValueProto(valueEntry.getKey(), value.getAsBoolean()));
                 } else if (value.isNumber()) {
-                    result.add(buildNumericKeyValueProto(value, valueEntry.getKey()));
+                    result.add(buildNumericKeyValueProto(valueEntry.getKey(), value.getAsString()));
                 } else {
                     throw new JsonSyntaxException(CAN_T_PARSE_VALUE + value);
                 }
@@ -199,22 +192,173 @@ public class JsonConverter {
         return result;
     }
 
-    private static KeyValueProto buildNumericKeyValueProto(JsonPrimitive value, String key) {
-        if (value.getAsString().contains(".")) {
-            return KeyValueProto.newBuilder()
-                    .setKey(key)
-                    .setType(KeyValueType.DOUBLE_V)
-                    .setDoubleV(value.getAsDouble())
-                    .build();
+    static KeyValueProto buildStringKeyValueProto(String key, String value) {
+        return buildStringKeyValueProto(key, value, true);
+    }
+
+    /**
+     * @param typeCast whether to try the numeric type cast, if enabled
+     */
+    static KeyValueProto buildStringKeyValueProto(String key, String value, boolean typeCast) {
+        if (maxStringValueLength > 0 && value.length() > maxStringValueLength) {
+            String message = String.format("String value length [%d] for key [%s] is greater than maximum allowed [%d]", value.length(), key, maxStringValueLength);
+            throw new JsonSyntaxException(message);
+        }
+        KeyValueProto.Builder kv = KeyValueProto.newBuilder().setKey(key);
+        if (typeCast && isTypeCastEnabled && parseNumber(value, true, kv)) {
+            return kv.build();
+        }
+        return kv.setType(KeyValueType.STRING_V).setStringV(value).build();
+    }
+
+    static KeyValueProto buildBooleanKeyValueProto(String key, boolean value) {
+        return KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.BOOLEAN_V)
+                .setBoolV(value).build();
+    }
+
+    static KeyValueProto buildNumericKeyValueProto(String key, String value) {
+        KeyValueProto.Builder kv = KeyValueProto.newBuilder().setKey(key);
+        parseNumber(value, false, kv);
+        return kv.build();
+    }
+
+    /**
+     * @return {@code false} if the type cast would certainly keep the value a string, judging by its first character
+     */
+    static boolean canBeNumber(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        char c = value.charAt(0);
+        return c == '-' || c == '.' || Character.isDigit(c);
+    }
+
+    /**
+     * Classifies and parses a number in a single pass over its characters and sets it on {@code kv}:
+     * a value with a '.' is a double, otherwise a long. Plain decimal values of up to 18 digits are parsed here,
+     * anything else (exponents, non-ASCII digits, big integers, ...) takes the {@link #parseNumberSlow slow path}
+     * with the same result.
+     *
+     * @param cast whether the value is a string to be cast: returns {@code false} instead of failing
+     *             if the value is not a number, like {@link NumberUtils#isParsable} followed by the parse
+     * @return whether {@code kv} was set
+     */
+    static boolean parseNumber(String value, boolean cast, KeyValueProto.Builder kv) {
+        int length = value.length();
+        boolean negative = length > 0 && value.charAt(0) == '-';
+        long mantissa = 0;
+        int digits = 0;
+        int dot = -1;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > MAX_FAST_DIGITS) {
+                    return parseNumberSlow(value, cast, kv);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+            } else if (c == '.' && dot < 0) {
+                dot = i;
+            } else {
+                return parseNumberSlow(value, cast, kv);
+            }
+        }
+        if (digits == 0) {
+            return parseNumberSlow(value, cast, kv);
+        }
+        if (dot < 0) {
+            kv.setType(KeyValueType.LONG_V).setLongV(negative ? -mantissa : mantissa);
+            return true;
+        }
+        return parseDecimal(value, cast, kv, negative, mantissa, length - 1 - dot);
+    }
+
+    /**
+     * The fast path of {@link #parseNumber} for a string value expected to be a long: a plain decimal integer
+     * of up to 18 digits is set on {@code kv}.
+     *
+     * @return {@code false} if the value is anything else; {@code kv} is then unchanged
+     */
+    static boolean parseFastLong(String value, KeyValueProto.Builder kv) {
+        int length = value.length();
+        int start = length > 0 && value.charAt(0) == '-' ? 1 : 0;
+        if (length == start || length - start > MAX_FAST_DIGITS) {
+            return false;
+        }
+        long result = 0;
+        for (int i = start; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            result = result * 10 + (c - '0');
+        }
+        kv.setType(KeyValueType.LONG_V).setLongV(start > 0 ? -result : result);
+        return true;
+    }
+
+    /**
+     * The fast path of {@link #parseNumber} for a string value expected to be a double: a plain decimal
+     * of up to 18 digits with a '.' followed by at least one digit is set on {@code kv}.
+     *
+     * @return {@code false} if the value is anything else; {@code kv} is then unchanged
+     */
+    static boolean parseFastDouble(String value, KeyValueProto.Builder kv) {
+        int length = value.length();
+        int dot = value.indexOf('.');
+        if (dot < 0 || dot == length - 1) {
+            return false;
+        }
+        boolean negative = value.charAt(0) == '-';
+        long mantissa = 0;
+        int digits = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= '0' && c <= '9' && digits < MAX_FAST_DIGITS) {
+                digits++;
+                mantissa = mantissa * 10 + (c - '0');
+            } else if (i != dot) {
+                return false;
+            }
+        }
+        return parseDecimal(value, true, kv, negative, mantissa, length - 1 - dot);
+    }
+
+    private static boolean parseDecimal(String value, boolean cast, KeyValueProto.Builder kv, boolean negative, long mantissa, int scale) {
+        if (cast && scale == 0) {
+            // NumberUtils.isParsable rejects a trailing '.'
+            return false;
+        }
+        if (mantissa <= MAX_EXACT_MANTISSA && scale < EXACT_POWERS_OF_TEN.length) {
+            // both operands are exact doubles, so the division is correctly rounded, as Double.parseDouble
+            double doubleValue = mantissa / EXACT_POWERS_OF_TEN[scale];
+            kv.setType(KeyValueType.DOUBLE_V).setDoubleV(negative ? -doubleValue : doubleValue);
+        } else {
+            kv.setType(KeyValueType.DOUBLE_V).setDoubleV(Double.parseDouble(value));
+        }
+        return true;
+    }
+
+    private static boolean parseNumberSlow(String value, boolean cast, KeyValueProto.Builder kv) {
+        if (cast) {
+            if (!NumberUtils.isParsable(value)) {
+                return false;
+            }
+            try {
+                return parseNumberSlow(value, false, kv);
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+        if (value.contains(".")) {
+            kv.setType(KeyValueType.DOUBLE_V).setDoubleV(Double.parseDouble(value));
         } else {
             try {
-                long longValue = Long.parseLong(value.getAsString());
-                return KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.LONG_V)
-                        .setLongV(longValue).build();
+                kv.setType(KeyValueType.LONG_V).setLongV(Long.parseLong(value));
             } catch (NumberFormatException e) {
                 throw new JsonSyntaxException("Big integer values are not supported!");
             }
         }
+        return true;
     }
 
     public static TransportProtos.ToServerRpcRequestMsg convertToServerRpcRequest(JsonElement json, int requestId) throws JsonSyntaxException {
@@ -223,16 +367,13 @@ public class JsonConverter {
     }
 
     private static void parseNumericValue(List<KvEntry> result, Entry<String, JsonElement> valueEntry, JsonPrimitive value) {
-        if (value.getAsString().contains(".")) {
-            result.add(new DoubleDataEntry(valueEntry.getKey(), value.getAsDouble()));
-        } else {
-            try {
-                long longValue = Long.parseLong(value.getAsString());
-                result.add(new LongDataEntry(valueEntry.getKey(), longValue));
-            } catch (NumberFormatException e) {
-                throw new JsonSyntaxException("Big integer values are not supported!");
-            }
-        }
+        KeyValueProto.Builder kv = KeyValueProto.newBuilder();
+        parseNumber(value.getAsString(), false, kv);
+        result.add(toNumericEntry(valueEntry.getKey(), kv));
+    }
+
+    private static KvEntry toNumericEntry(String key, KeyValueProto.Builder kv) {
+        return kv.getType() == KeyValueType.DOUBLE_V ? new DoubleDataEntry(key, kv.getDoubleV()) : new LongDataEntry(key, kv.getLongV());
     }
 
     public static JsonObject toJson(GetAttributeResponseMsg payload) {
@@ -432,18 +573,16 @@ public class JsonConverter {
             if (element.isJsonPrimitive()) {
                 JsonPrimitive value = element.getAsJsonPrimitive();
                 if (value.isString()) {
-                    if (maxStringValueLength > 0 && value.getAsString().length() > maxStringValueLength) {
-                        String message = String.format("String value length [%d] for key [%s] is greater than maximum allowed [%d]", value.getAsString().length(), valueEntry.getKey(), maxStringValueLength);
+                    String stringValue = value.getAsString();
+                    if (maxStringValueLength > 0 && stringValue.length() > maxStringValueLength) {
+                        String message = String.format("String value length [%d] for key [%s] is greater than maximum allowed [%d]", stringValue.length(), valueEntry.getKey(), maxStringValueLength);
                         throw new JsonSyntaxException(message);
                     }
-                    if (isTypeCastEnabled && NumberUtils.isParsable(value.getAsString())) {
-                        try {
-                            parseNumericValue(result, valueEntry, value);
-                        } catch (RuntimeException th) {
-                            result.add(new StringDataEntry(valueEntry.getKey(), value.getAsString()));
-                        }
+                    KeyValueProto.Builder kv = KeyValueProto.newBuilder();
+                    if (isTypeCastEnabled && parseNumber(stringValue, true, kv)) {
+                        result.add(toNumericEntry(valueEntry.getKey(), kv));
                     } else {
-                        result.add(new StringDataEntry(valueEntry.getKey(), value.getAsString()));
+                        result.add(new StringDataEntry(valueEntry.getKey(), stringValue));
                     }
                 } else if (value.isBoolean()) {
                     result.add(new BooleanDataEntry(valueEntry.getKey(), value.getAsBoolean()));
@@ -487,6 +626,14 @@ public class JsonConverter {
         }
     }
 
+    static boolean isTypeCastEnabled() {
+        return isTypeCastEnabled;
+    }
+
+    static int getMaxStringValueLength() {
+        return maxStringValueLength;
+    }
+
     public static void setTypeCastEnabled(boolean enabled) {
         isTypeCastEnabled = enabled;
     }
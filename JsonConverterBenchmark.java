@@ -0,0 +1,115 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonSyntaxException;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Numeric values of one data_list record: the single pass parser against the previous
+ * {@code contains(".")} / {@code Long.parseLong} / {@code NumberUtils.isParsable} implementation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonConverterBenchmark {
+
+    private static final String KEY = "cell_vlt0";
+
+    // numbers as they come from the JSON reader: small integers, as in the README record, and a few decimals
+    private final String[] numbers = {"3", "3", "3", "4", "12", "3", "4095", "3", "-17", "3",
+            "1588245321", "3", "3", "3", "27.5", "3", "3", "3.3", "3", "51.1657"};
+
+    // quoted values that are cast to numbers, like "t":"3", and a plain string
+    private final String[] strings = {"3", "1588245321", "27.5", "online"};
+
+    @Benchmark
+    public void numbersLegacy(Blackhole blackhole) {
+        for (String value : numbers) {
+            blackhole.consume(legacyNumeric(KEY, value));
+        }
+    }
+
+    @Benchmark
+    public void numbers(Blackhole blackhole) {
+        for (String value : numbers) {
+            blackhole.consume(JsonConverter.buildNumericKeyValueProto(KEY, value));
+        }
+    }
+
+    @Benchmark
+    public void stringsLegacy(Blackhole blackhole) {
+        for (String value : strings) {
+            blackhole.consume(legacyString(KEY, value));
+        }
+    }
+
+    @Benchmark
+    public void strings(Blackhole blackhole) {
+        for (String value : strings) {
+            blackhole.consume(JsonConverter.buildStringKeyValueProto(KEY, value));
+        }
+    }
+
+    private static KeyValueProto legacyString(String key, String value) {
+        if (NumberUtils.isParsable(value)) {
+            try {
+                return legacyNumeric(key, value);
+            } catch (RuntimeException th) {
+                return KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.STRING_V).setStringV(value).build();
+            }
+        } else {
+            return KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.STRING_V).setStringV(value).build();
+        }
+    }
+
+    private static KeyValueProto legacyNumeric(String key, String value) {
+        if (value.contains(".")) {
+            return KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.DOUBLE_V).setDoubleV(Double.parseDouble(value)).build();
+        } else {
+            try {
+                long longValue = Long.parseLong(value);
+                return KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.LONG_V).setLongV(longValue).build();
+            } catch (NumberFormatException e) {
+                throw new JsonSyntaxException("Big integer values are not supported!");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(JsonConverterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming parser for the "data_list" telemetry payload:
+ * <pre>{"data_list":[{"v":3,"cur":[1,2],"t":"3"}, ...]}</pre>
+ * Every record becomes one {@link TsKvListProto} with timestamp {@code systemTs + index}.
+ * Array fields are flattened into indexed keys ("cur0", "cur1", ...), or optionally packed into a single value,
+ * and values are typed by the same rules as {@link JsonConverter}, without building an intermediate Gson tree.
+ */
+public class JsonDataListParser {
+
+    public static final String DATA_LIST = "data_list";
+
+    private static final String CAN_T_PARSE_VALUE = "Can't parse value: ";
+
+    public static List<TsKvListProto> parseDataList(Reader json, long systemTs) throws JsonSyntaxException {
+        return parseDataList(json, systemTs, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @throws DataListTooLargeException as soon as the list contains more than {@code maxRecords} records
+     */
+    public static List<TsKvListProto> parseDataList(Reader json, long systemTs, int maxRecords) throws JsonParseException {
+        return parseDataList(json, systemTs, maxRecords, null, DataListOptions.DEFAULT);
+    }
+
+    /**
+     * @param keyTypes learned types of the device type's keys, may be {@code null}
+     */
+    public static List<TsKvListProto> parseDataList(Reader json, long systemTs, int maxRecords, LearnedKeyTypes keyTypes, DataListOptions options) throws JsonParseException {
+        return parseDataList(json, systemTs, maxRecords, new GenericRecordReader(new DataListRecordAssembler(keyTypes, options)));
+    }
+
+    static List<TsKvListProto> parseDataList(Reader json, long systemTs, int maxRecords, RecordReader recordReader) throws JsonParseException {
+        try {
+            JsonReader reader = new JsonReader(json);
+            reader.setLenient(true);
+            List<TsKvListProto> result = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (DATA_LIST.equals(reader.nextName())) {
+                    result = parseRecords(reader, systemTs, maxRecords, recordReader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("Did not consume the entire document.");
+            }
+            if (result == null) {
+                throw new JsonSyntaxException("Missing '" + DATA_LIST + "' array!");
+            }
+            return result;
+        } catch (MalformedJsonException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    private static List<TsKvListProto> parseRecords(JsonReader reader, long systemTs, int maxRecords, RecordReader recordReader) throws IOException {
+        List<TsKvListProto> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (result.size() == maxRecords) {
+                throw new DataListTooLargeException(maxRecords);
+            }
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new JsonSyntaxException(CAN_T_PARSE_VALUE + reader.peek());
+            }
+            TsKvListProto.Builder record = TsKvListProto.newBuilder().setTs(systemTs + result.size());
+            recordReader.readRecord(reader, record);
+            result.add(record.build());
+        }
+        reader.endArray();
+        return result;
+    }
+
+    /**
+     * Reads one record object of the data_list into the given builder.
+     */
+    interface RecordReader {
+
+        void readRecord(JsonReader reader, TsKvListProto.Builder record) throws IOException;
+
+    }
+
+    private static class GenericRecordReader implements RecordReader {
+
+        private final DataListRecordAssembler assembler;
+
+        GenericRecordReader(DataListRecordAssembler assembler) {
+            this.assembler = assembler;
+        }
+
+        @Override
+        public void readRecord(JsonReader reader, TsKvListProto.Builder record) throws IOException {
+            assembler.reset();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    assembler.beginArray(key);
+                    reader.beginArray();
+                    for (int i = 0; reader.hasNext(); i++) {
+                        readValue(reader, key, i);
+                    }
+                    reader.endArray();
+                    assembler.endArray();
+                } else {
+                    readValue(reader, key, DataListRecordAssembler.NO_INDEX);
+                }
+            }
+            reader.endObject();
+            assembler.addTo(record);
+        }
+
+        private void readValue(JsonReader reader, String key, int index) throws IOException {
+            JsonToken token = reader.peek();
+            switch (token) {
+                case STRING:
+                    assembler.addString(key, index, reader.nextString());
+                    break;
+                case NUMBER:
+                    assembler.addNumber(key, index, reader.nextString());
+                    break;
+                case BOOLEAN:
+                    assembler.addBoolean(key, index, reader.nextBoolean());
+                    break;
+                default:
+                    throw new JsonSyntaxException(CAN_T_PARSE_VALUE + token);
+            }
+        }
+    }
+
+    public static class DataListTooLargeException extends JsonParseException {
+
+        DataListTooLargeException(int maxRecords) {
+            super("Number of '" + DATA_LIST + "' records is greater than maximum allowed [" + maxRecords + "]");
+        }
+    }
+
+}
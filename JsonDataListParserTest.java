@@ -0,0 +1,186 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that streaming a data_list gives the telemetry of the original DeviceApiController, which flattened every
+ * record with getJsonObjectFromArray and converted it with {@link JsonConverter#convertToTelemetryProto}.
+ */
+public class JsonDataListParserTest {
+
+    public static final long TS = 1589000000000L;
+
+    /**
+     * The payload of the README.
+     */
+    public static final String README_PAYLOAD = "{\"data_list\":[\n" + readmeRecord() + ",\n" + readmeRecord() + "]\n}";
+
+    /**
+     * Every kind of value: decimals, negatives, booleans, text, numeric text, empty and mixed arrays, a repeated key.
+     */
+    static final String MIXED_PAYLOAD = "{\"fw\":\"1.2\",\"data_list\":[" +
+            "{\"id\":-7,\"vlt\":48.25,\"ok\":true,\"t\":\"3\",\"name\":\"bms-1\",\"soc\":\"87.5\",\"cur\":[],\"mix\":[1,-2.5,\"x\",false,\"4\"]}," +
+            "{\"id\":9223372036854775807,\"vlt\":-0.001,\"ok\":false,\"t\":\"\",\"name\":\"\\u00e9\\\"q\\\"\",\"id\":8}" +
+            "],\"extra\":{\"nested\":[1,{\"a\":[]}]}}";
+
+    @After
+    public void resetConverter() {
+        JsonConverter.setTypeCastEnabled(true);
+        JsonConverter.setMaxStringValueLength(0);
+    }
+
+    @Test
+    public void testReadmePayload() {
+        Assert.assertEquals(baseline(README_PAYLOAD), parse(README_PAYLOAD));
+    }
+
+    @Test
+    public void testMixedPayload() {
+        Assert.assertEquals(baseline(MIXED_PAYLOAD), parse(MIXED_PAYLOAD));
+    }
+
+    @Test
+    public void testWithoutTypeCast() {
+        JsonConverter.setTypeCastEnabled(false);
+        Assert.assertEquals(baseline(MIXED_PAYLOAD), parse(MIXED_PAYLOAD));
+    }
+
+    @Test
+    public void testLearnedKeyTypes() {
+        LearnedKeyTypes keyTypes = new LearnedKeyTypes(100, new LongAdder(), new LongAdder());
+        for (String json : new String[]{README_PAYLOAD, MIXED_PAYLOAD, README_PAYLOAD, MIXED_PAYLOAD}) {
+            Assert.assertEquals(baseline(json), JsonDataListParser.parseDataList(new StringReader(json), TS, 10, keyTypes, DataListOptions.DEFAULT));
+        }
+    }
+
+    @Test(expected = JsonDataListParser.DataListTooLargeException.class)
+    public void testTooManyRecords() {
+        JsonDataListParser.parseDataList(new StringReader(README_PAYLOAD), TS, 1);
+    }
+
+    @Test
+    public void testTooLongString() {
+        JsonConverter.setMaxStringValueLength(3);
+        assertRejected("{\"data_list\":[{\"name\":\"bms-1\"}]}");
+    }
+
+    @Test
+    public void testMalformedPayloads() {
+        assertRejected("");
+        assertRejected("{}");
+        assertRejected("[]");
+        assertRejected("{\"data_list\":{}}");
+        assertRejected("{\"data_list\":[3]}");
+        assertRejected("{\"data_list\":[{\"id\":3,\"cur\":[3,3]}");
+        assertRejected("{\"data_list\":[{\"id\":3,\"cur\":[3,3}]}");
+        assertRejected("{\"data_list\":[{\"id\":3}]} {}");
+        assertRejected("{\"data_list\":[{\"id\":null}]}");
+        assertRejected("{\"data_list\":[{\"id\":{\"a\":1}}]}");
+        assertRejected("{\"data_list\":[{\"cur\":[[1]]}]}");
+        assertRejected("{\"data_list\":[{\"big\":123456789012345678901234567890}]}");
+    }
+
+    static List<TsKvListProto> parse(String json) {
+        return JsonDataListParser.parseDataList(new StringReader(json), TS);
+    }
+
+    /**
+     * The telemetry of the original controller: every record flattened and converted on its own, at TS + its index.
+     */
+    public static List<TsKvListProto> baseline(String json) {
+        JsonArray records = new JsonParser().parse(json).getAsJsonObject().get(JsonDataListParser.DATA_LIST).getAsJsonArray();
+        List<TsKvListProto> result = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            result.addAll(JsonConverter.convertToTelemetryProto(TS + i, getJsonObjectFromArray(records.get(i).getAsJsonObject())).getTsKvListList());
+        }
+        return result;
+    }
+
+    /**
+     * Asserts that the original controller fails on the payload and the parser rejects it with a parse error.
+     */
+    static void assertRejected(String json) {
+        try {
+            baseline(json);
+            Assert.fail("Accepted by the original controller: " + json);
+        } catch (RuntimeException e) {
+            // any failure, the original controller didn't tell them apart
+        }
+        try {
+            parse(json);
+            Assert.fail("Accepted: " + json);
+        } catch (JsonParseException e) {
+            // answered with 400
+        }
+    }
+
+    // copied from the original DeviceApiController
+    private static JsonObject getJsonObjectFromArray(JsonObject data) {
+        JsonObject jobj = new JsonObject();
+        for (Entry<String, JsonElement> valueEntry : data.entrySet()) {
+            JsonElement element = valueEntry.getValue();
+            if (element.isJsonPrimitive()) {
+                jobj.add(valueEntry.getKey(), element);
+            } else {
+                JsonArray arr = element.getAsJsonArray();
+                for (int i = 0; i < arr.size(); i++) {
+                    jobj.add(valueEntry.getKey() + i, arr.get(i));
+                }
+            }
+        }
+        return jobj;
+    }
+
+    private static String readmeRecord() {
+        return "{\n" +
+                "  \"id\":3,\n" +
+                "  \"v\":3,\n" +
+                "  \"s\":3,\n" +
+                "  \"err\":[3,3],\n" +
+                "  \"vlt\":3,\n" +
+                "  \"cur\":[3,3,3,3,3],\n" +
+                "  \"bat_tmp\":[3,3,3,3,3,3],\n" +
+                "  \"cell_vlt\":[3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,4,4,4],\n" +
+                "  \"blc_s\":3,\n" +
+                "  \"so\":[3,3],\n" +
+                "  \"rem\":[3,3],\n" +
+                "  \"chg\":[3,3],\n" +
+                "  \"od\":3,\n" +
+                "  \"spd\":[3,3],\n" +
+                "  \"tmp\":[3,3,3],\n" +
+                "  \"loc\":[3,3],\n" +
+                "  \"sim\":[3,3,3],\n" +
+                "  \"cns\":3,\n" +
+                "  \"t\":\"3\"\n" +
+                "}";
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Value types observed for the string values of the keys of one device type.
+ * A key that always carried text is converted without the numeric type cast
+ * as long as its value can't be a number, and a key that always carried longs or doubles goes straight
+ * to the fast parse of that type; any other value is typed as usual and updates the learned type.
+ * The stored telemetry is the same as without the cache.
+ */
+public class LearnedKeyTypes {
+
+    private final ConcurrentMap<String, KeyValueType> types = new ConcurrentHashMap<>();
+    private final int maxKeys;
+    private final LongAdder hits;
+    private final LongAdder typeChanges;
+
+    /**
+     * @param hits        incremented for values of the learned type
+     * @param typeChanges incremented when a key gets a value of another type
+     */
+    public LearnedKeyTypes(int maxKeys, LongAdder hits, LongAdder typeChanges) {
+        this.maxKeys = maxKeys;
+        this.hits = hits;
+        this.typeChanges = typeChanges;
+    }
+
+    KeyValueProto buildStringKeyValueProto(String key, String value) {
+        KeyValueType learned = types.get(key);
+        if (learned == KeyValueType.STRING_V && !JsonConverter.canBeNumber(value)) {
+            hits.increment();
+            return JsonConverter.buildStringKeyValueProto(key, value, false);
+        }
+        if ((learned == KeyValueType.LONG_V || learned == KeyValueType.DOUBLE_V) && JsonConverter.isTypeCastEnabled()) {
+            int maxStringValueLength = JsonConverter.getMaxStringValueLength();
+            // longer values are rejected below
+            if (maxStringValueLength <= 0 || value.length() <= maxStringValueLength) {
+                KeyValueProto.Builder kv = KeyValueProto.newBuilder().setKey(key);
+                if (learned == KeyValueType.LONG_V ? JsonConverter.parseFastLong(value, kv) : JsonConverter.parseFastDouble(value, kv)) {
+                    hits.increment();
+                    return kv.build();
+                }
+            }
+        }
+        KeyValueProto kv = JsonConverter.buildStringKeyValueProto(key, value, true);
+        if (learned == kv.getType()) {
+            hits.increment();
+        } else if (learned != null) {
+            typeChanges.increment();
+            types.put(key, kv.getType());
+        } else if (types.size() < maxKeys) {
+            types.put(key, kv.getType());
+        }
+        return kv;
+    }
+
+    public int size() {
+        return types.size();
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks that parsing with learned key types gives the telemetry of the original conversion,
+ * see {@link JsonDataListParserTest#baseline}, whatever types the keys had before.
+ */
+public class LearnedKeyTypesTest {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder typeChanges = new LongAdder();
+
+    @After
+    public void resetConverter() {
+        JsonConverter.setTypeCastEnabled(true);
+        JsonConverter.setMaxStringValueLength(0);
+    }
+
+    @Test
+    public void testLearnedTypesGiveSameTelemetry() {
+        LearnedKeyTypes keyTypes = new LearnedKeyTypes(100, hits, typeChanges);
+        // "t" is the only string value, learned as a long on the first record
+        assertParsed(keyTypes, JsonDataListParserTest.README_PAYLOAD);
+        Assert.assertEquals(1, hits.sum());
+        assertParsed(keyTypes, JsonDataListParserTest.README_PAYLOAD);
+        Assert.assertEquals(3, hits.sum());
+        Assert.assertEquals(0, typeChanges.sum());
+        Assert.assertEquals(1, keyTypes.size());
+    }
+
+    @Test
+    public void testTypeChanges() {
+        LearnedKeyTypes keyTypes = new LearnedKeyTypes(100, hits, typeChanges);
+        String[] values = {"3", "-12", "x", "y", "3", "2.5", "1e3", "-0.5", "true", "4", "", "9223372036854775807", "1.7976931348623157E309", "name"};
+        for (String value : values) {
+            assertParsed(keyTypes, "{\"data_list\":[{\"t\":\"" + value + "\",\"v\":\"" + value + "\"}]}");
+        }
+        Assert.assertTrue(hits.sum() > 0);
+        Assert.assertTrue(typeChanges.sum() > 0);
+    }
+
+    @Test
+    public void testWithoutTypeCastAndWithLengthLimit() {
+        LearnedKeyTypes keyTypes = new LearnedKeyTypes(100, hits, typeChanges);
+        assertParsed(keyTypes, "{\"data_list\":[{\"t\":\"123\"}]}");
+        JsonConverter.setTypeCastEnabled(false);
+        assertParsed(keyTypes, "{\"data_list\":[{\"t\":\"123\"}]}");
+        JsonConverter.setTypeCastEnabled(true);
+        JsonConverter.setMaxStringValueLength(3);
+        assertParsed(keyTypes, "{\"data_list\":[{\"t\":\"123\"}]}");
+        try {
+            JsonDataListParser.parseDataList(new StringReader("{\"data_list\":[{\"t\":\"1234\"}]}"), JsonDataListParserTest.TS, 10, keyTypes, DataListOptions.DEFAULT);
+            Assert.fail("Value longer than the limit accepted");
+        } catch (RuntimeException e) {
+            // rejected as without learned types
+        }
+    }
+
+    @Test
+    public void testMaxKeys() {
+        LearnedKeyTypes keyTypes = new LearnedKeyTypes(2, hits, typeChanges);
+        assertParsed(keyTypes, "{\"data_list\":[{\"a\":\"1\",\"b\":\"x\",\"c\":\"2.5\"}]}");
+        Assert.assertEquals(2, keyTypes.size());
+        assertParsed(keyTypes, "{\"data_list\":[{\"a\":\"1\",\"b\":\"x\",\"c\":\"2.5\"}]}");
+        Assert.assertEquals(2, hits.sum());
+    }
+
+    private static void assertParsed(LearnedKeyTypes keyTypes, String json) {
+        Assert.assertEquals(json, JsonDataListParserTest.baseline(json),
+                JsonDataListParser.parseDataList(new StringReader(json), JsonDataListParserTest.TS, 10, keyTypes, DataListOptions.DEFAULT));
+    }
+}
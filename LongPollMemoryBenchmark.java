@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.Endpoint;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+import org.thingsboard.server.transport.http.LongPollRegistry.Kind;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Measures the heap a device waiting in {@link LongPollRegistry} costs on the transport, and the time to arm,
+ * coalesce and cancel its long poll; cancelled polls leave their sessions idle for the next poll. The core is
+ * replaced by a TransportService that ignores every call, so that only the transport side is measured: the poll
+ * session, its timer entry, its SessionInfoProto and the DeferredResult of the request. Options, as {@code --name=value}:
+ * <pre>
+ * waiters [200000], timeout_ms [600000]
+ * any transport.http.* property, e.g. --transport.http.long_poll.tick_ms=50
+ * </pre>
+ * Run with a fixed heap, e.g. {@code -Xms2g -Xmx2g}, so that the measurement isn't skewed by heap resizing.
+ */
+public class LongPollMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        int waiters = Integer.parseInt(options.getOrDefault("waiters", "200000"));
+        long timeoutMs = Long.parseLong(options.getOrDefault("timeout_ms", "600000"));
+        TransportService transportService = (TransportService) Proxy.newProxyInstance(TransportService.class.getClassLoader(),
+                new Class<?>[]{TransportService.class},
+                (proxy, method, methodArgs) -> method.getReturnType() == boolean.class ? Boolean.TRUE : null);
+
+        try (AnnotationConfigApplicationContext context = HttpTransportLoadHarness.createContext(transportService, options)) {
+            LongPollRegistry registry = context.getBean(LongPollRegistry.class);
+            DeviceApiMetrics metrics = context.getBean(DeviceApiMetrics.class);
+            MeteredResult[] requests = new MeteredResult[waiters];
+
+            long before = usedHeap();
+            long start = System.nanoTime();
+            for (int i = 0; i < waiters; i++) {
+                requests[i] = metrics.newResult(Endpoint.RPC_SUBSCRIBE);
+                registry.register(Kind.RPC, sessionInfo(i), requests[i], timeoutMs);
+            }
+            long armNanos = System.nanoTime() - start;
+            long after = usedHeap();
+            System.out.printf("%d waiting devices: %.0f bytes per device, %.2f MB in total%n",
+                    registry.getWaitersCount(), (double) (after - before) / waiters, (after - before) / 1048576.0);
+            System.out.printf("register: %.0f ns per poll%n", (double) armNanos / waiters);
+
+            start = System.nanoTime();
+            for (int i = 0; i < waiters; i++) {
+                MeteredResult superseded = requests[i];
+                requests[i] = metrics.newResult(Endpoint.RPC_SUBSCRIBE);
+                registry.register(Kind.RPC, sessionInfo(i), requests[i], timeoutMs);
+                if (!superseded.hasResult()) {
+                    throw new IllegalStateException("Superseded poll of device " + i + " wasn't answered");
+                }
+            }
+            long coalesceNanos = System.nanoTime() - start;
+            System.out.printf("re-poll: %.0f ns per poll, %d coalesced, %d waiting%n",
+                    (double) coalesceNanos / waiters, registry.getCoalescedRegistrationsCount(), registry.getWaitersCount());
+
+            start = System.nanoTime();
+            for (MeteredResult request : requests) {
+                request.setResult(new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT));
+            }
+            long cancelNanos = System.nanoTime() - start;
+            System.out.printf("cancel: %.0f ns per poll, %d waiting, %d idle sessions%n",
+                    (double) cancelNanos / waiters, registry.getWaitersCount(), registry.getSessionsCount());
+        }
+    }
+
+    private static SessionInfoProto sessionInfo(int device) {
+        UUID sessionId = UUID.randomUUID();
+        return SessionInfoProto.newBuilder()
+                .setNodeId("benchmark")
+                .setSessionIdMSB(sessionId.getMostSignificantBits()).setSessionIdLSB(sessionId.getLeastSignificantBits())
+                .setTenantIdMSB(1).setTenantIdLSB(1)
+                .setDeviceIdMSB(2).setDeviceIdLSB(device)
+                .build();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
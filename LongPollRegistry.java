@@ -0,0 +1,511 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.common.transport.adaptor.JsonConverter;
+import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToRPCMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcResponseMsg;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Long polls of devices for RPC commands and attribute updates.
+ * <p>
+ * Every device that polls has a session per kind, registered with the core as an async session so that the core
+ * keeps no timer per poll. It stays registered between polls and is reused by the next poll of the device, until
+ * it is idle for the {@link DeviceSessionCache} idle TTL. Each poll subscribes the session again, since the core
+ * drops a long poll subscription once it delivered a message to it and keeps RPCs for the device until the next
+ * subscription. A command or update that arrives while the session is idle between two polls is kept, the last one
+ * per device and kind, and answers the next poll right away.
+ * <p>
+ * Poll timeouts and idle timeouts are armed on a hashed wheel with {@code tick_ms} resolution, where arming and
+ * cancelling are O(1). When a device polls again while its previous poll of the same kind is still waiting (e.g. the
+ * client gave up and reconnected), the new request takes over the session and its timer: the superseded request
+ * gets 408 and nothing is sent to the core.
+ * <p>
+ * The session is the session listener, the subscription callback and the timer entry at the same time,
+ * so a polling device costs one object per kind besides its SessionInfoProto and the DeferredResult of the poll.
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class LongPollRegistry {
+
+    public enum Kind {
+        RPC, ATTRIBUTE_UPDATES
+    }
+
+    @Value("${transport.http.long_poll.tick_ms:100}")
+    private long tickMs;
+
+    @Value("${transport.http.long_poll.wheel_size:512}")
+    private int wheelSize;
+
+    @Autowired
+    private HttpTransportContext transportContext;
+
+    @Autowired
+    private DeviceSessionCache sessionCache;
+
+    @Autowired
+    private DeviceApiMetrics metrics;
+
+    private final ConcurrentMap<UUID, PollSession> rpcSessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<UUID, PollSession> attributeSessions = new ConcurrentHashMap<>();
+    private final AtomicIntegerArray waiting = new AtomicIntegerArray(Kind.values().length);
+
+    private Bucket[] wheel;
+    private int mask;
+    private long tickNanos;
+    private long startNanos;
+    private volatile long currentTick;
+    private long idleTtlMs;
+    private Thread timer;
+
+    private final LongAdder registrations = new LongAdder();
+    private final LongAdder coalescedRegistrations = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, tickMs));
+        startNanos = System.nanoTime();
+        idleTtlMs = sessionCache.getIdleTtlMs();
+        timer = new Thread(this::runTimer, "http-long-poll-timer");
+        timer.setDaemon(true);
+        timer.start();
+        metrics.bindLongPolls(this);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        timer.interrupt();
+    }
+
+    /**
+     * Answers the request with the first RPC command or attribute update of the device,
+     * or with 408 after {@code timeoutMs}.
+     *
+     * @param sessionInfo any session of the device; the poll uses the device's long poll session of the kind
+     */
+    public void register(Kind kind, SessionInfoProto sessionInfo, MeteredResult responseWriter, long timeoutMs) {
+        ConcurrentMap<UUID, PollSession> sessions = sessions(kind);
+        UUID deviceId = new UUID(sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB());
+        registrations.increment();
+        TransportService transportService = transportContext.getTransportService();
+        while (true) {
+            PollSession session = sessions.get(deviceId);
+            if (session == null) {
+                session = new PollSession(kind, deviceId, sessionCache.create(sessionInfo));
+                if (sessions.putIfAbsent(deviceId, session) != null) {
+                    continue;
+                }
+                transportService.registerAsyncSession(session.sessionInfo, session);
+            }
+            MeteredResult superseded;
+            ResponseEntity buffered;
+            synchronized (session) {
+                if (session.closed) {
+                    // a new session gets a new id, so the closed one can't deregister it
+                    sessions.remove(deviceId, session);
+                    continue;
+                }
+                buffered = session.takeBuffered();
+                superseded = buffered == null ? session.attach(responseWriter, timeoutMs) : null;
+            }
+            if (buffered != null) {
+                responseWriter.setResult(buffered);
+                return;
+            }
+            PollSession polled = session;
+            responseWriter.whenFinished(() -> polled.detach(responseWriter));
+            if (superseded != null) {
+                coalescedRegistrations.increment();
+                superseded.setResult(new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT));
+            } else if (kind == Kind.RPC) {
+                transportService.process(session.sessionInfo, SubscribeToRPCMsg.getDefaultInstance(), session);
+            } else {
+                transportService.process(session.sessionInfo, SubscribeToAttributeUpdatesMsg.getDefaultInstance(), session);
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return the devices waiting in a long poll
+     */
+    public int getWaitersCount() {
+        return getWaitersCount(Kind.RPC) + getWaitersCount(Kind.ATTRIBUTE_UPDATES);
+    }
+
+    public int getWaitersCount(Kind kind) {
+        return waiting.get(kind.ordinal());
+    }
+
+    /**
+     * @return the long poll sessions, waiting or idle
+     */
+    public int getSessionsCount() {
+        return rpcSessions.size() + attributeSessions.size();
+    }
+
+    public long getRegistrationsCount() {
+        return registrations.sum();
+    }
+
+    public long getCoalescedRegistrationsCount() {
+        return coalescedRegistrations.sum();
+    }
+
+    public long getExpirationsCount() {
+        return expirations.sum();
+    }
+
+    private ConcurrentMap<UUID, PollSession> sessions(Kind kind) {
+        return kind == Kind.RPC ? rpcSessions : attributeSessions;
+    }
+
+    private void arm(PollSession session, long timeoutMs) {
+        long deadline = (System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMs) + tickNanos - 1) / tickNanos;
+        // a tick being expired right now has already looked at its bucket
+        deadline = Math.max(deadline, currentTick + 1);
+        Bucket bucket = wheel[(int) (deadline & mask)];
+        synchronized (bucket) {
+            session.deadlineTick = deadline;
+            session.bucket = bucket;
+            session.next = bucket.head;
+            if (bucket.head != null) {
+                bucket.head.prev = session;
+            }
+            bucket.head = session;
+        }
+    }
+
+    private void cancel(PollSession session) {
+        Bucket bucket = session.bucket;
+        if (bucket == null) {
+            return;
+        }
+        synchronized (bucket) {
+            if (session.bucket == bucket) {
+                bucket.unlink(session);
+            }
+        }
+    }
+
+    private void runTimer() {
+        long tick = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            long lateNanos = System.nanoTime() - (startNanos + (tick + 1) * tickNanos);
+            if (lateNanos < 0) {
+                LockSupport.parkNanos(-lateNanos);
+                continue;
+            }
+            tick++;
+            currentTick = tick;
+            metrics.recordLongPollTimerLag(lateNanos);
+            try {
+                expire(tick);
+            } catch (RuntimeException e) {
+                log.warn("Failed to expire long polls", e);
+            }
+        }
+    }
+
+    private void expire(long tick) {
+        Bucket bucket = wheel[(int) (tick & mask)];
+        List<PollSession> expired = null;
+        synchronized (bucket) {
+            PollSession session = bucket.head;
+            while (session != null) {
+                PollSession next = session.next;
+                if (session.deadlineTick <= tick) {
+                    bucket.unlink(session);
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(session);
+                }
+                session = next;
+            }
+        }
+        if (expired != null) {
+            for (PollSession session : expired) {
+                session.expire(tick);
+            }
+        }
+    }
+
+    private static class Bucket {
+        private PollSession head;
+
+        void unlink(PollSession session) {
+            if (session.prev != null) {
+                session.prev.next = session.next;
+            } else {
+                head = session.next;
+            }
+            if (session.next != null) {
+                session.next.prev = session.prev;
+            }
+            session.prev = null;
+            session.next = null;
+            session.bucket = null;
+        }
+    }
+
+    /**
+     * The long poll session of a device and kind: session listener, subscription callback and timer entry.
+     * Waiting while it has a response writer, idle otherwise.
+     */
+    private class PollSession implements SessionMsgListener, TransportServiceCallback<Void> {
+        private final Kind kind;
+        private final UUID deviceId;
+        private final SessionInfoProto sessionInfo;
+        private MeteredResult responseWriter;
+        private ResponseEntity buffered;
+        private boolean closed;
+
+        // guarded by the bucket, written under the session as well
+        private volatile Bucket bucket;
+        private PollSession prev;
+        private PollSession next;
+        private long deadlineTick;
+
+        PollSession(Kind kind, UUID deviceId, SessionInfoProto sessionInfo) {
+            this.kind = kind;
+            this.deviceId = deviceId;
+            this.sessionInfo = sessionInfo;
+        }
+
+        /**
+         * Makes the request the one waiting on the open session; must hold the lock.
+         *
+         * @return the request it superseded, null if the session was idle
+         */
+        MeteredResult attach(MeteredResult newResponseWriter, long timeoutMs) {
+            MeteredResult superseded = responseWriter;
+            if (superseded == null) {
+                waiting.incrementAndGet(kind.ordinal());
+            }
+            responseWriter = newResponseWriter;
+            cancel(this);
+            arm(this, timeoutMs);
+            return superseded;
+        }
+
+        /**
+         * Takes the message kept while the session was idle and arms its idle timeout again; must hold the lock.
+         *
+         * @return the message, null if there is none
+         */
+        ResponseEntity takeBuffered() {
+            ResponseEntity response = buffered;
+            if (response != null) {
+                buffered = null;
+                cancel(this);
+                arm(this, idleTtlMs);
+            }
+            return response;
+        }
+
+        /**
+         * Lets the session idle once the request waiting on it, if it is still {@code finished}, is answered.
+         */
+        void detach(MeteredResult finished) {
+            boolean close;
+            synchronized (this) {
+                if (responseWriter != finished) {
+                    return;
+                }
+                close = idle();
+            }
+            if (close) {
+                release();
+            }
+        }
+
+        /**
+         * Answers the waiting request with the pushed message, or keeps the message for the next poll if the session
+         * is idle or the request was answered meanwhile; a newer message replaces a kept one.
+         */
+        void push(ResponseEntity response) {
+            MeteredResult waitingRequest;
+            boolean close;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                waitingRequest = responseWriter;
+                if (waitingRequest == null) {
+                    buffered = response;
+                    return;
+                }
+                close = idle();
+            }
+            if (close) {
+                release();
+                waitingRequest.setResult(response);
+            } else if (!waitingRequest.setResult(response)) {
+                synchronized (this) {
+                    if (!closed && responseWriter == null) {
+                        buffered = response;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Times out the waiting request, or closes the session if it was idle, unless it was re-armed
+         * after the timer took it out of its bucket.
+         */
+        void expire(long tick) {
+            MeteredResult timedOut;
+            boolean close;
+            synchronized (this) {
+                if (closed || deadlineTick > tick) {
+                    return;
+                }
+                timedOut = responseWriter;
+                if (timedOut != null) {
+                    close = idle();
+                } else {
+                    closed = true;
+                    close = true;
+                }
+            }
+            if (close) {
+                release();
+            }
+            if (timedOut != null) {
+                expirations.increment();
+                timedOut.setResult(new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT));
+            }
+        }
+
+        void close(ResponseEntity response) {
+            MeteredResult waitingRequest;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                waitingRequest = responseWriter;
+                if (waitingRequest != null) {
+                    responseWriter = null;
+                    waiting.decrementAndGet(kind.ordinal());
+                }
+                cancel(this);
+            }
+            release();
+            if (waitingRequest != null) {
+                waitingRequest.setResult(response);
+            }
+        }
+
+        /**
+         * Leaves the waiting state; must hold the lock.
+         *
+         * @return true if the session is closed instead of kept, as sessions are not reused
+         */
+        private boolean idle() {
+            responseWriter = null;
+            waiting.decrementAndGet(kind.ordinal());
+            cancel(this);
+            if (idleTtlMs > 0) {
+                arm(this, idleTtlMs);
+                return false;
+            }
+            closed = true;
+            return true;
+        }
+
+        private void release() {
+            sessionCache.close(sessionInfo);
+            sessions(kind).remove(deviceId, this);
+        }
+
+        private void respond(String json) {
+            push(new ResponseEntity<>(json, HttpStatus.OK));
+        }
+
+        @Override
+        public void onSuccess(Void msg) {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            log.warn("[{}] Failed to subscribe to {}", deviceId, kind, e);
+            close(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
+        }
+
+        @Override
+        public void onGetAttributesResponse(GetAttributeResponseMsg msg) {
+            respond(JsonConverter.toJson(msg).toString());
+        }
+
+        @Override
+        public void onAttributeUpdate(AttributeUpdateNotificationMsg msg) {
+            respond(JsonConverter.toJson(msg).toString());
+        }
+
+        @Override
+        public void onRemoteSessionCloseCommand(SessionCloseNotificationProto sessionCloseNotification) {
+            sessionCache.onRemoteClose(sessionInfo, sessionCloseNotification);
+            close(new ResponseEntity<>(HttpStatus.REQUEST_TIMEOUT));
+        }
+
+        @Override
+        public void onToDeviceRpcRequest(ToDeviceRpcRequestMsg msg) {
+            respond(JsonConverter.toJson(msg, true).toString());
+        }
+
+        @Override
+        public void onToServerRpcResponse(ToServerRpcResponseMsg msg) {
+            respond(JsonConverter.toJson(msg).toString());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToRPCMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvProto;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Long polls of {@link LongPollRegistry} through the controller, with pushes from a {@link RecordingTransportService}.
+ */
+public class LongPollRegistryTest {
+
+    private static final long POLL_TIMEOUT_MS = 60000;
+
+    private RecordingTransportService transportService;
+    private AnnotationConfigApplicationContext context;
+    private DeviceApiController controller;
+    private LongPollRegistry registry;
+
+    @Before
+    public void setUp() {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.long_poll.tick_ms", "10");
+        transportService = new RecordingTransportService(true);
+        context = HttpTransportLoadHarness.createContext(transportService.getService(), options);
+        controller = context.getBean(DeviceApiController.class);
+        registry = context.getBean(LongPollRegistry.class);
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testPushToWaitingPoll() {
+        DeferredResult<ResponseEntity> poll = pollRpc(POLL_TIMEOUT_MS);
+        Assert.assertEquals(1, registry.getWaitersCount(LongPollRegistry.Kind.RPC));
+        rpcListener().onToDeviceRpcRequest(rpc(1));
+        ResponseEntity<?> response = RecordingTransportService.await(poll);
+        Assert.assertEquals(HttpStatus.OK, response.getStatusCode());
+        Assert.assertEquals("{\"id\":1,\"method\":\"reboot\",\"params\":{}}", response.getBody());
+        Assert.assertEquals(0, registry.getWaitersCount());
+        // the session stays open for the next poll
+        Assert.assertEquals(1, registry.getSessionsCount());
+    }
+
+    @Test
+    public void testPushBetweenPolls() {
+        DeferredResult<ResponseEntity> first = pollRpc(POLL_TIMEOUT_MS);
+        SessionMsgListener listener = rpcListener();
+        listener.onToDeviceRpcRequest(rpc(1));
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(first).getStatusCode());
+
+        // the device hasn't polled again yet
+        listener.onToDeviceRpcRequest(rpc(2));
+        DeferredResult<ResponseEntity> second = pollRpc(POLL_TIMEOUT_MS);
+        Assert.assertEquals("{\"id\":2,\"method\":\"reboot\",\"params\":{}}", RecordingTransportService.await(second).getBody());
+        Assert.assertEquals(1, transportService.getCalls(SubscribeToRPCMsg.class).size());
+
+        // once delivered it is gone, and the next poll subscribes again
+        DeferredResult<ResponseEntity> third = pollRpc(POLL_TIMEOUT_MS);
+        Assert.assertFalse(third.hasResult());
+        Assert.assertEquals(2, transportService.getCalls(SubscribeToRPCMsg.class).size());
+        listener.onToDeviceRpcRequest(rpc(3));
+        Assert.assertEquals("{\"id\":3,\"method\":\"reboot\",\"params\":{}}", RecordingTransportService.await(third).getBody());
+    }
+
+    @Test
+    public void testLastUpdateBetweenPollsIsKept() {
+        DeferredResult<ResponseEntity> first = controller.subscribeToAttributes("dev-1", 50, new MockHttpServletRequest());
+        Assert.assertEquals(HttpStatus.REQUEST_TIMEOUT, RecordingTransportService.await(first).getStatusCode());
+        SessionMsgListener listener = transportService.getListener(transportService.getLastCall(SubscribeToAttributeUpdatesMsg.class).getSessionInfo());
+        listener.onAttributeUpdate(update("v1"));
+        listener.onAttributeUpdate(update("v2"));
+
+        DeferredResult<ResponseEntity> second = controller.subscribeToAttributes("dev-1", POLL_TIMEOUT_MS, new MockHttpServletRequest());
+        Assert.assertEquals("{\"fw\":\"v2\"}", RecordingTransportService.await(second).getBody());
+        // an rpc poll of the same device doesn't get it
+        Assert.assertFalse(pollRpc(POLL_TIMEOUT_MS).hasResult());
+    }
+
+    @Test
+    public void testSupersededPoll() {
+        DeferredResult<ResponseEntity> first = pollRpc(POLL_TIMEOUT_MS);
+        DeferredResult<ResponseEntity> second = pollRpc(POLL_TIMEOUT_MS);
+        Assert.assertEquals(HttpStatus.REQUEST_TIMEOUT, RecordingTransportService.await(first).getStatusCode());
+        Assert.assertFalse(second.hasResult());
+        Assert.assertEquals(1, registry.getCoalescedRegistrationsCount());
+        Assert.assertEquals(1, registry.getWaitersCount());
+        Assert.assertEquals(1, transportService.getCalls(SubscribeToRPCMsg.class).size());
+
+        rpcListener().onToDeviceRpcRequest(rpc(1));
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(second).getStatusCode());
+    }
+
+    @Test
+    public void testTimeout() {
+        DeferredResult<ResponseEntity> poll = pollRpc(50);
+        Assert.assertEquals(HttpStatus.REQUEST_TIMEOUT, RecordingTransportService.await(poll).getStatusCode());
+        Assert.assertEquals(1, registry.getExpirationsCount());
+        Assert.assertEquals(0, registry.getWaitersCount());
+        Assert.assertEquals(1, registry.getSessionsCount());
+    }
+
+    @Test
+    public void testRemoteClose() {
+        DeferredResult<ResponseEntity> poll = pollRpc(POLL_TIMEOUT_MS);
+        rpcListener().onRemoteSessionCloseCommand(SessionCloseNotificationProto.getDefaultInstance());
+        Assert.assertEquals(HttpStatus.REQUEST_TIMEOUT, RecordingTransportService.await(poll).getStatusCode());
+        Assert.assertEquals(0, registry.getSessionsCount());
+        Assert.assertEquals(0, transportService.getRegisteredSessionsCount());
+
+        // the next poll opens a new session
+        pollRpc(POLL_TIMEOUT_MS);
+        Assert.assertEquals(1, registry.getSessionsCount());
+        Assert.assertEquals(1, transportService.getRegisteredSessionsCount());
+    }
+
+    private DeferredResult<ResponseEntity> pollRpc(long timeoutMs) {
+        return controller.subscribeToCommands("dev-1", timeoutMs, new MockHttpServletRequest());
+    }
+
+    private SessionMsgListener rpcListener() {
+        return transportService.getListener(transportService.getLastCall(SubscribeToRPCMsg.class).getSessionInfo());
+    }
+
+    private static ToDeviceRpcRequestMsg rpc(int requestId) {
+        return ToDeviceRpcRequestMsg.newBuilder().setRequestId(requestId).setMethodName("reboot").setParams("{}").build();
+    }
+
+    private static AttributeUpdateNotificationMsg update(String fw) {
+        return AttributeUpdateNotificationMsg.newBuilder().addSharedUpdated(TsKvProto.newBuilder()
+                .setKv(KeyValueProto.newBuilder().setKey("fw").setType(KeyValueType.STRING_V).setStringV(fw))).build();
+    }
+}
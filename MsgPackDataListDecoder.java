@@ -0,0 +1,173 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+/**
+ * Decoder of the MessagePack encoding of the data_list payload.
+ */
+class MsgPackDataListDecoder extends BinaryDataListDecoder {
+
+    MsgPackDataListDecoder(byte[] data, DataListRecordAssembler assembler) {
+        super(data, assembler);
+    }
+
+    @Override
+    ValueKind peek() {
+        int b = data[pos] & 0xff;
+        if (b <= 0x7f || b >= 0xe0 || (b >= 0xcc && b <= 0xd3)) {
+            return ValueKind.LONG;
+        } else if (b <= 0x8f || b == 0xde || b == 0xdf) {
+            return ValueKind.MAP;
+        } else if (b <= 0x9f || b == 0xdc || b == 0xdd) {
+            return ValueKind.ARRAY;
+        } else if (b <= 0xbf || (b >= 0xd9 && b <= 0xdb)) {
+            return ValueKind.STRING;
+        } else if (b == 0xc2 || b == 0xc3) {
+            return ValueKind.BOOLEAN;
+        } else if (b == 0xca || b == 0xcb) {
+            return ValueKind.DOUBLE;
+        } else {
+            return ValueKind.OTHER;
+        }
+    }
+
+    @Override
+    int readMapHeader() {
+        int b = readUnsignedByte();
+        if (b >= 0x80 && b <= 0x8f) {
+            return b & 0x0f;
+        } else if (b == 0xde) {
+            return checkedSize(readUnsigned(2));
+        } else if (b == 0xdf) {
+            return checkedSize(readUnsigned(4));
+        }
+        throw new IllegalArgumentException("Expected map but was 0x" + Integer.toHexString(b));
+    }
+
+    @Override
+    int readArrayHeader() {
+        int b = readUnsignedByte();
+        if (b >= 0x90 && b <= 0x9f) {
+            return b & 0x0f;
+        } else if (b == 0xdc) {
+            return checkedSize(readUnsigned(2));
+        } else if (b == 0xdd) {
+            return checkedSize(readUnsigned(4));
+        }
+        throw new IllegalArgumentException("Expected array but was 0x" + Integer.toHexString(b));
+    }
+
+    @Override
+    String readString() {
+        int b = readUnsignedByte();
+        if (b >= 0xa0 && b <= 0xbf) {
+            return readUtf8(b & 0x1f);
+        } else if (b >= 0xd9 && b <= 0xdb) {
+            return readUtf8(readUnsigned(1 << (b - 0xd9)));
+        }
+        throw new IllegalArgumentException("Expected string but was 0x" + Integer.toHexString(b));
+    }
+
+    @Override
+    long readLong() {
+        int b = readUnsignedByte();
+        if (b <= 0x7f) {
+            return b;
+        } else if (b >= 0xe0) {
+            return (byte) b;
+        }
+        switch (b) {
+            case 0xcc:
+                return readUnsigned(1);
+            case 0xcd:
+                return readUnsigned(2);
+            case 0xce:
+                return readUnsigned(4);
+            case 0xcf:
+                return checkedLong(readUnsigned(8));
+            case 0xd0:
+                return (byte) readUnsigned(1);
+            case 0xd1:
+                return (short) readUnsigned(2);
+            case 0xd2:
+                return (int) readUnsigned(4);
+            default:
+                return readUnsigned(8);
+        }
+    }
+
+    @Override
+    double readDouble() {
+        int b = readUnsignedByte();
+        if (b == 0xca) {
+            return Float.intBitsToFloat((int) readUnsigned(4));
+        }
+        return Double.longBitsToDouble(readUnsigned(8));
+    }
+
+    @Override
+    boolean readBoolean() {
+        return readUnsignedByte() == 0xc3;
+    }
+
+    @Override
+    void skipValue(int depth) {
+        int b = data[pos] & 0xff;
+        switch (peek()) {
+            case MAP:
+                checkDepth(depth);
+                int entries = readMapHeader();
+                for (int i = 0; i < entries * 2; i++) {
+                    skipValue(depth + 1);
+                }
+                return;
+            case ARRAY:
+                checkDepth(depth);
+                int elements = readArrayHeader();
+                for (int i = 0; i < elements; i++) {
+                    skipValue(depth + 1);
+                }
+                return;
+            case STRING:
+                readString();
+                return;
+            default:
+                pos++;
+        }
+        if (b >= 0xc4 && b <= 0xc6) {
+            skipBytes(readUnsigned(1 << (b - 0xc4)));
+        } else if (b >= 0xc7 && b <= 0xc9) {
+            skipBytes(readUnsigned(1 << (b - 0xc7)) + 1);
+        } else if (b == 0xca || b == 0xce || b == 0xd2) {
+            skipBytes(4);
+        } else if (b == 0xcb || b == 0xcf || b == 0xd3) {
+            skipBytes(8);
+        } else if (b == 0xcc || b == 0xd0) {
+            skipBytes(1);
+        } else if (b == 0xcd || b == 0xd1) {
+            skipBytes(2);
+        } else if (b >= 0xd4 && b <= 0xd8) {
+            skipBytes((1 << (b - 0xd4)) + 1);
+        }
+    }
+
+    private int checkedSize(long size) {
+        if (size > data.length - pos) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        return (int) size;
+    }
+}
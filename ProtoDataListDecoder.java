@@ -0,0 +1,216 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.common.transport.adaptor;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser.DataListTooLargeException;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder of the protobuf encoding of the data_list payload described by data_list.proto.
+ * The wire format is read directly with {@link CodedInputStream}, so no generated classes are needed.
+ */
+class ProtoDataListDecoder {
+
+    private static final int DATA_LIST_RECORDS = 1;
+    private static final int RECORD_FIELDS = 1;
+    private static final int FIELD_KEY = 1;
+    private static final int FIELD_VALUE = 2;
+    private static final int FIELD_ARRAY = 3;
+    private static final int ARRAY_VALUES = 1;
+    private static final int VALUE_BOOL = 1;
+    private static final int VALUE_LONG = 2;
+    private static final int VALUE_DOUBLE = 3;
+    private static final int VALUE_STRING = 4;
+
+    private final DataListRecordAssembler assembler;
+    private final List<Object> values = new ArrayList<>();
+    private final CodedInputStream input;
+
+    ProtoDataListDecoder(byte[] data, DataListRecordAssembler assembler) {
+        this.input = CodedInputStream.newInstance(data);
+        this.assembler = assembler;
+    }
+
+    List<TsKvListProto> decode(long systemTs, int maxRecords) {
+        try {
+            List<TsKvListProto> result = new ArrayList<>();
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (WireFormat.getTagFieldNumber(tag) == DATA_LIST_RECORDS) {
+                    checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    if (result.size() == maxRecords) {
+                        throw new DataListTooLargeException(maxRecords);
+                    }
+                    TsKvListProto.Builder record = TsKvListProto.newBuilder().setTs(systemTs + result.size());
+                    int limit = input.pushLimit(input.readRawVarint32());
+                    readRecord(record);
+                    input.popLimit(limit);
+                    result.add(record.build());
+                } else {
+                    skipField(tag);
+                }
+            }
+            if (result.isEmpty()) {
+                // an empty list has no bytes of its own in protobuf, so it can't be told from a missing one
+                throw new IllegalArgumentException("Missing '" + JsonDataListParser.DATA_LIST + "' array!");
+            }
+            return result;
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalArgumentException("Invalid protobuf payload: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void readRecord(TsKvListProto.Builder record) throws IOException {
+        assembler.reset();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == RECORD_FIELDS) {
+                checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                int limit = input.pushLimit(input.readRawVarint32());
+                readField();
+                input.popLimit(limit);
+            } else {
+                skipField(tag);
+            }
+        }
+        assembler.addTo(record);
+    }
+
+    private void readField() throws IOException {
+        String key = null;
+        boolean array = false;
+        values.clear();
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case FIELD_KEY:
+                    checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    key = input.readStringRequireUtf8();
+                    break;
+                case FIELD_VALUE:
+                    checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    array = false;
+                    values.clear();
+                    readValue();
+                    break;
+                case FIELD_ARRAY:
+                    checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    array = true;
+                    values.clear();
+                    readArray();
+                    break;
+                default:
+                    skipField(tag);
+            }
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("Field key is not set");
+        }
+        // proto3 doesn't guarantee field order, so values are added once the key is known
+        if (array) {
+            assembler.beginArray(key);
+            for (int i = 0; i < values.size(); i++) {
+                addValue(key, i, values.get(i));
+            }
+            assembler.endArray();
+        } else if (!values.isEmpty()) {
+            addValue(key, DataListRecordAssembler.NO_INDEX, values.get(0));
+        }
+    }
+
+    private void readArray() throws IOException {
+        int limit = input.pushLimit(input.readRawVarint32());
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) == ARRAY_VALUES) {
+                checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                readValue();
+            } else {
+                skipField(tag);
+            }
+        }
+        input.popLimit(limit);
+    }
+
+    private void readValue() throws IOException {
+        int limit = input.pushLimit(input.readRawVarint32());
+        Object value = null;
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case VALUE_BOOL:
+                    checkWireType(tag, WireFormat.WIRETYPE_VARINT);
+                    value = input.readBool();
+                    break;
+                case VALUE_LONG:
+                    checkWireType(tag, WireFormat.WIRETYPE_VARINT);
+                    value = input.readSInt64();
+                    break;
+                case VALUE_DOUBLE:
+                    checkWireType(tag, WireFormat.WIRETYPE_FIXED64);
+                    value = input.readDouble();
+                    break;
+                case VALUE_STRING:
+                    checkWireType(tag, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    value = input.readStringRequireUtf8();
+                    break;
+                default:
+                    skipField(tag);
+            }
+        }
+        input.popLimit(limit);
+        if (value == null) {
+            throw new IllegalArgumentException("Value is not set");
+        }
+        values.add(value);
+    }
+
+    private static void checkWireType(int tag, int wireType) {
+        if (WireFormat.getTagWireType(tag) != wireType) {
+            throw new IllegalArgumentException("Unexpected wire type " + WireFormat.getTagWireType(tag) + " of field "
+                    + WireFormat.getTagFieldNumber(tag) + ", expected " + wireType);
+        }
+    }
+
+    private void skipField(int tag) throws IOException {
+        if (WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_START_GROUP) {
+            // not used by data_list.proto, and CodedInputStream skips groups recursively without a limit
+            throw new IllegalArgumentException("Unexpected group in field " + WireFormat.getTagFieldNumber(tag));
+        }
+        input.skipField(tag);
+    }
+
+    private void addValue(String key, int index, Object value) {
+        if (value instanceof Long) {
+            assembler.addLong(key, index, (Long) value);
+        } else if (value instanceof Double) {
+            assembler.addDouble(key, index, (Double) value);
+        } else if (value instanceof Boolean) {
+            assembler.addBoolean(key, index, (Boolean) value);
+        } else {
+            assembler.addString(key, index, (String) value);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceCredentialsResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * {@link TransportService} for the tests of the transport components: records the messages and session listeners
+ * it gets. With {@code autoAnswer}, tokens "dev-N" are validated as device N, other tokens as unknown, and every other
+ * message is acknowledged right away on the calling thread; otherwise the test answers the calls itself.
+ */
+public class RecordingTransportService {
+
+    private final boolean autoAnswer;
+    private final List<Call> calls = new CopyOnWriteArrayList<>();
+    private final Map<UUID, SessionMsgListener> listeners = new ConcurrentHashMap<>();
+
+    public RecordingTransportService(boolean autoAnswer) {
+        this.autoAnswer = autoAnswer;
+    }
+
+    public TransportService getService() {
+        return (TransportService) Proxy.newProxyInstance(TransportService.class.getClassLoader(),
+                new Class<?>[]{TransportService.class}, (proxy, method, args) -> invoke(method, args));
+    }
+
+    /**
+     * @return the calls with a message of the type, in order
+     */
+    public List<Call> getCalls(Class<?> msgType) {
+        return calls.stream().filter(call -> msgType.isInstance(call.msg)).collect(Collectors.toList());
+    }
+
+    public Call getLastCall(Class<?> msgType) {
+        List<Call> result = getCalls(msgType);
+        if (result.isEmpty()) {
+            throw new AssertionError("No " + msgType.getSimpleName() + " was sent");
+        }
+        return result.get(result.size() - 1);
+    }
+
+    /**
+     * @return the listener of the registered session, null if it isn't registered
+     */
+    public SessionMsgListener getListener(SessionInfoProto sessionInfo) {
+        return listeners.get(sessionId(sessionInfo));
+    }
+
+    public int getRegisteredSessionsCount() {
+        return listeners.size();
+    }
+
+    public static DeviceInfoProto deviceInfo(long device) {
+        return DeviceInfoProto.newBuilder()
+                .setTenantIdMSB(1).setTenantIdLSB(1)
+                .setDeviceIdMSB(2).setDeviceIdLSB(device)
+                .setDeviceName("dev-" + device).setDeviceType("battery").build();
+    }
+
+    public static ValidateDeviceCredentialsResponseMsg validated(String token) {
+        ValidateDeviceCredentialsResponseMsg.Builder response = ValidateDeviceCredentialsResponseMsg.newBuilder();
+        if (token.startsWith("dev-")) {
+            response.setDeviceInfo(deviceInfo(Long.parseLong(token.substring(4))));
+        }
+        return response.build();
+    }
+
+    /**
+     * @return the answer of the request, waiting up to 5 seconds for it
+     */
+    public static ResponseEntity<?> await(DeferredResult<? extends ResponseEntity> result) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!result.hasResult()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("The request wasn't answered");
+            }
+            Thread.yield();
+        }
+        return (ResponseEntity<?>) result.getResult();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object invoke(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return args[0] == this;
+            case "hashCode":
+                return System.identityHashCode(this);
+            case "toString":
+                return "RecordingTransportService";
+            case "registerSyncSession":
+            case "registerAsyncSession":
+                listeners.put(sessionId((SessionInfoProto) args[0]), (SessionMsgListener) args[1]);
+                return null;
+            case "deregisterSession":
+                listeners.remove(sessionId((SessionInfoProto) args[0]));
+                return null;
+            default:
+                break;
+        }
+        if (method.getReturnType() == boolean.class) {
+            return Boolean.TRUE;
+        }
+        Call call = new Call();
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg instanceof TransportServiceCallback) {
+                    call.callback = (TransportServiceCallback<Object>) arg;
+                } else if (arg instanceof SessionInfoProto) {
+                    call.sessionInfo = (SessionInfoProto) arg;
+                } else if (arg != null) {
+                    call.msg = arg;
+                }
+            }
+        }
+        calls.add(call);
+        if (autoAnswer && call.callback != null) {
+            call.succeed(call.msg instanceof ValidateDeviceTokenRequestMsg ? validated(((ValidateDeviceTokenRequestMsg) call.msg).getToken()) : null);
+        }
+        return null;
+    }
+
+    private static UUID sessionId(SessionInfoProto sessionInfo) {
+        return new UUID(sessionInfo.getSessionIdMSB(), sessionInfo.getSessionIdLSB());
+    }
+
+    public static class Call {
+        private SessionInfoProto sessionInfo;
+        private Object msg;
+        private TransportServiceCallback<Object> callback;
+
+        public SessionInfoProto getSessionInfo() {
+            return sessionInfo;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> T getMsg() {
+            return (T) msg;
+        }
+
+        public void succeed(Object response) {
+            callback.onSuccess(response);
+        }
+
+        public void fail(Throwable e) {
+            callback.onError(e);
+        }
+    }
+}
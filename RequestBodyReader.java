@@ -0,0 +1,345 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.DeferredResultProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Reads request bodies with servlet non-blocking IO into pooled buffers, so that no worker thread waits
+ * for the bytes of a slow device. The continuation gets the body once it is complete.
+ * <p>
+ * Spring MVC starts the async processing of a {@link DeferredResult} only after the handler returned,
+ * so the {@link ReadListener} is set from the preProcess callback of a {@link DeferredResultProcessingInterceptor}.
+ * Outside of an async capable Spring MVC request the body is read blocking, into the same buffers.
+ * <p>
+ * A {@link Body} is released when the request is answered; code that reads it after the continuation returned,
+ * e.g. in a transport callback, must {@link Body#retain() retain} it first.
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class RequestBodyReader {
+
+    private static final String INTERCEPTOR_KEY = RequestBodyReader.class.getName();
+
+    @Value("${transport.http.body.buffer_size:8192}")
+    private int bufferSize;
+
+    @Value("${transport.http.body.max_pooled_buffers:1024}")
+    private int maxPooledBuffers;
+
+    @Value("${transport.http.body.max_size:4194304}")
+    private int maxSize;
+
+    private BlockingQueue<byte[]> pool;
+
+    private final LongAdder asyncReads = new LongAdder();
+    private final LongAdder blockingReads = new LongAdder();
+    private final LongAdder allocatedBuffers = new LongAdder();
+    private final LongAdder rejectedBodies = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        pool = new ArrayBlockingQueue<>(Math.max(1, maxPooledBuffers));
+    }
+
+    /**
+     * Reads the body of the request and passes it to {@code onBody}, or answers the request with
+     * 413 if the body is larger than {@code max_size} and with 400 if it can't be read.
+     */
+    public void read(HttpServletRequest request, MeteredResult responseWriter, Consumer<Body> onBody) {
+        Body body = new Body();
+        responseWriter.whenFinished(body::release);
+        if (request.isAsyncSupported() && request.getAttribute(WebAsyncUtils.WEB_ASYNC_MANAGER_ATTRIBUTE) != null) {
+            asyncReads.increment();
+            WebAsyncUtils.getAsyncManager(request).registerDeferredResultInterceptor(INTERCEPTOR_KEY,
+                    new DeferredResultProcessingInterceptor() {
+                        @Override
+                        public <T> void preProcess(NativeWebRequest webRequest, DeferredResult<T> deferredResult) throws Exception {
+                            request.getInputStream().setReadListener(new BodyListener(request.getInputStream(), body, responseWriter, onBody));
+                        }
+                    });
+        } else {
+            blockingReads.increment();
+            readBlocking(request, body, responseWriter, onBody);
+        }
+    }
+
+    public long getAsyncReadsCount() {
+        return asyncReads.sum();
+    }
+
+    public long getBlockingReadsCount() {
+        return blockingReads.sum();
+    }
+
+    public long getAllocatedBuffersCount() {
+        return allocatedBuffers.sum();
+    }
+
+    public long getRejectedBodiesCount() {
+        return rejectedBodies.sum();
+    }
+
+    public int getPooledBuffersCount() {
+        return pool.size();
+    }
+
+    private void readBlocking(HttpServletRequest request, Body body, MeteredResult responseWriter, Consumer<Body> onBody) {
+        try (InputStream in = request.getInputStream()) {
+            int read;
+            while ((read = in.read(body.buffer(), body.offset(), body.remaining())) != -1) {
+                if (!body.advance(read)) {
+                    reject(body, responseWriter);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Failed to read request body: {}", e.getMessage());
+            body.release();
+            responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+            return;
+        }
+        complete(body, responseWriter, onBody);
+    }
+
+    private void complete(Body body, MeteredResult responseWriter, Consumer<Body> onBody) {
+        try {
+            if (!responseWriter.isSetOrExpired()) {
+                onBody.accept(body);
+            }
+        } finally {
+            body.release();
+        }
+    }
+
+    private void reject(Body body, DeferredResult<ResponseEntity> responseWriter) {
+        rejectedBodies.increment();
+        body.release();
+        responseWriter.setResult(new ResponseEntity<>(HttpStatus.PAYLOAD_TOO_LARGE));
+    }
+
+    private byte[] allocate() {
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            allocatedBuffers.increment();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    private class BodyListener implements ReadListener {
+        private final ServletInputStream in;
+        private final Body body;
+        private final MeteredResult responseWriter;
+        private final Consumer<Body> onBody;
+        private boolean done;
+
+        BodyListener(ServletInputStream in, Body body, MeteredResult responseWriter, Consumer<Body> onBody) {
+            this.in = in;
+            this.body = body;
+            this.responseWriter = responseWriter;
+            this.onBody = onBody;
+        }
+
+        @Override
+        public void onDataAvailable() throws IOException {
+            while (!done && in.isReady()) {
+                int read = in.read(body.buffer(), body.offset(), body.remaining());
+                if (read == -1) {
+                    return;
+                }
+                if (!body.advance(read)) {
+                    done = true;
+                    reject(body, responseWriter);
+                }
+            }
+        }
+
+        @Override
+        public void onAllDataRead() {
+            if (!done) {
+                done = true;
+                complete(body, responseWriter, onBody);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (!done) {
+                done = true;
+                log.debug("Failed to read request body: {}", t.getMessage());
+                body.release();
+                responseWriter.setResult(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+            }
+        }
+    }
+
+    /**
+     * Request body as a list of pooled buffers. Created with a reference held by the reader and one held
+     * by the request; the buffers go back to the pool when the last reference is released.
+     */
+    public class Body {
+        private final List<byte[]> buffers = new ArrayList<>(1);
+        private final AtomicInteger references = new AtomicInteger(2);
+        private int length;
+        private int offset;
+
+        Body() {
+            buffers.add(allocate());
+        }
+
+        /**
+         * @return false if the body was already released, and so must not be read
+         */
+        public boolean retain() {
+            int count;
+            do {
+                count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                for (byte[] buffer : buffers) {
+                    if (buffer.length == bufferSize) {
+                        pool.offer(buffer);
+                    }
+                }
+                buffers.clear();
+            }
+        }
+
+        public int length() {
+            return length;
+        }
+
+        /**
+         * @return the byte at {@code index}, which must be less than the length
+         */
+        public byte get(int index) {
+            return buffers.get(index / bufferSize)[index % bufferSize];
+        }
+
+        public InputStream openStream() {
+            return new BodyInputStream();
+        }
+
+        public byte[] toByteArray() {
+            byte[] result = new byte[length];
+            int copied = 0;
+            for (byte[] buffer : buffers) {
+                int count = Math.min(buffer.length, length - copied);
+                System.arraycopy(buffer, 0, result, copied, count);
+                copied += count;
+            }
+            return result;
+        }
+
+        public String toString(Charset charset) {
+            return new String(toByteArray(), charset);
+        }
+
+        private byte[] buffer() {
+            return buffers.get(buffers.size() - 1);
+        }
+
+        private int offset() {
+            return offset;
+        }
+
+        private int remaining() {
+            return bufferSize - offset;
+        }
+
+        /**
+         * @return false if the body is larger than the limit
+         */
+        private boolean advance(int read) {
+            length += read;
+            offset += read;
+            if (length > maxSize) {
+                return false;
+            }
+            if (offset == bufferSize) {
+                buffers.add(allocate());
+                offset = 0;
+            }
+            return true;
+        }
+
+        private class BodyInputStream extends InputStream {
+            private int position;
+
+            @Override
+            public int read() {
+                return position < length ? get(position++) & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= length) {
+                    return -1;
+                }
+                int count = Math.min(len, Math.min(length - position, bufferSize - position % bufferSize));
+                System.arraycopy(buffers.get(position / bufferSize), position % bufferSize, b, off, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public long skip(long n) {
+                int skipped = (int) Math.max(0, Math.min(n, length - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return length - position;
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.Endpoint;
+import org.thingsboard.server.transport.http.DeviceApiMetrics.MeteredResult;
+import org.thingsboard.server.transport.http.RequestBodyReader.Body;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bodies read by {@link RequestBodyReader} into buffers of 16 bytes, up to 100 bytes.
+ */
+public class RequestBodyReaderTest {
+
+    private AnnotationConfigApplicationContext context;
+    private RequestBodyReader reader;
+    private DeviceApiMetrics metrics;
+
+    @Before
+    public void setUp() {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.body.buffer_size", "16");
+        options.put("transport.http.body.max_size", "100");
+        context = HttpTransportLoadHarness.createContext(new RecordingTransportService(true).getService(), options);
+        reader = context.getBean(RequestBodyReader.class);
+        metrics = context.getBean(DeviceApiMetrics.class);
+    }
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testBodyAcrossBuffers() {
+        byte[] content = content(100);
+        MeteredResult responseWriter = metrics.newResult(Endpoint.TELEMETRY);
+        AtomicReference<byte[]> streamed = new AtomicReference<>();
+        reader.read(request(content), responseWriter, body -> {
+            Assert.assertEquals(100, body.length());
+            Assert.assertArrayEquals(content, body.toByteArray());
+            Assert.assertEquals(content[37], body.get(37));
+            streamed.set(readAll(body.openStream()));
+        });
+        Assert.assertArrayEquals(content, streamed.get());
+        Assert.assertEquals(1, reader.getBlockingReadsCount());
+    }
+
+    @Test
+    public void testTooLargeBody() {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.TELEMETRY);
+        reader.read(request(content(101)), responseWriter, body -> Assert.fail());
+        Assert.assertEquals(HttpStatus.PAYLOAD_TOO_LARGE, ((ResponseEntity) responseWriter.getResult()).getStatusCode());
+        Assert.assertEquals(1, reader.getRejectedBodiesCount());
+    }
+
+    @Test
+    public void testBuffersArePooledWhenAnswered() {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.TELEMETRY);
+        AtomicReference<Body> retained = new AtomicReference<>();
+        reader.read(request(content(40)), responseWriter, body -> {
+            Assert.assertTrue(body.retain());
+            retained.set(body);
+        });
+        Assert.assertEquals(0, reader.getPooledBuffersCount());
+        responseWriter.setResult(new ResponseEntity<>(HttpStatus.OK));
+        Assert.assertEquals(0, reader.getPooledBuffersCount());
+        // the last reference returns the three buffers
+        retained.get().release();
+        Assert.assertEquals(3, reader.getPooledBuffersCount());
+        Assert.assertFalse(retained.get().retain());
+
+        reader.read(request(content(40)), metrics.newResult(Endpoint.TELEMETRY), body -> {
+        });
+        Assert.assertEquals(3, reader.getAllocatedBuffersCount());
+    }
+
+    @Test
+    public void testAnsweredRequestIsNotPassedOn() {
+        MeteredResult responseWriter = metrics.newResult(Endpoint.TELEMETRY);
+        responseWriter.setResult(new ResponseEntity<>(HttpStatus.TOO_MANY_REQUESTS));
+        reader.read(request(content(10)), responseWriter, body -> Assert.fail());
+        Assert.assertEquals(1, reader.getPooledBuffersCount());
+    }
+
+    private static MockHttpServletRequest request(byte[] content) {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContent(content);
+        return request;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7);
+        }
+        return content;
+    }
+
+    private static byte[] readAll(InputStream in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[10];
+        int read;
+        try {
+            while ((read = in.read(chunk, 0, chunk.length)) != -1) {
+                out.write(chunk, 0, read);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.thingsboard.server.common.transport.SessionMsgListener;
+import org.thingsboard.server.common.transport.TransportService;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.gen.transport.TransportProtos.AttributeUpdateNotificationMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.DeviceInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.GetAttributeResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionCloseNotificationProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEvent;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionEventMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToAttributeUpdatesMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SubscribeToRPCMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToDeviceRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcRequestMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ToServerRpcResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvProto;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceCredentialsResponseMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * In-memory {@link TransportService} for {@link HttpTransportLoadHarness}: answers after a configurable latency
+ * and fails a configurable share of the submitted messages, as the core would.
+ * <ul>
+ * <li>tokens "dev-N" belong to device N, any other token is unknown</li>
+ * <li>sync sessions are closed on their timeout, async sessions stay open until deregistered; a subscribed long poll
+ * gets an RPC or attribute update within its timeout (async sessions: within {@code pushWindowMs}) with probability
+ * {@code pushRate}</li>
+ * <li>attribute requests and server side RPCs are answered through the session listener</li>
+ * <li>subscriptions are kept, as by the device actor, until their first update, an unsubscribe or the session's
+ * CLOSED event; subscriptions left over after a run are leaked in the core</li>
+ * </ul>
+ * The service is a dynamic proxy, so that it follows the methods of the TransportService interface:
+ * messages it doesn't know are acknowledged after the submit latency.
+ */
+public class StubTransportService {
+
+    private final long authLatencyMs;
+    private final long submitLatencyMs;
+    private final double errorRate;
+    private final double pushRate;
+    private final long pushWindowMs;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<UUID, Session> sessions = new ConcurrentHashMap<>();
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder timedOutSessions = new LongAdder();
+
+    public StubTransportService(long authLatencyMs, long submitLatencyMs, double errorRate, double pushRate, long pushWindowMs, int threads) {
+        this.authLatencyMs = authLatencyMs;
+        this.submitLatencyMs = submitLatencyMs;
+        this.errorRate = errorRate;
+        this.pushRate = pushRate;
+        this.pushWindowMs = pushWindowMs;
+        this.scheduler = Executors.newScheduledThreadPool(threads);
+    }
+
+    public TransportService getService() {
+        return (TransportService) Proxy.newProxyInstance(TransportService.class.getClassLoader(),
+                new Class<?>[]{TransportService.class}, (proxy, method, args) -> invoke(method, args));
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getTimedOutSessionsCount() {
+        return timedOutSessions.sum();
+    }
+
+    public int getOpenSessionsCount() {
+        return sessions.size();
+    }
+
+    public int getCoreSubscriptionsCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return subscriptions of sessions deregistered in the transport, which no update can reach any more
+     */
+    public long getOrphanedSubscriptionsCount() {
+        return subscriptions.stream()
+                .filter(subscription -> !sessions.containsKey(UUID.fromString(subscription.substring(0, subscription.indexOf(':')))))
+                .count();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object invoke(Method method, Object[] args) {
+        switch (method.getName()) {
+            case "equals":
+                return args[0] == this;
+            case "hashCode":
+                return System.identityHashCode(this);
+            case "toString":
+                return "StubTransportService";
+            case "registerSyncSession":
+                registerSyncSession((SessionInfoProto) args[0], (SessionMsgListener) args[1], (Long) args[2]);
+                return null;
+            case "registerAsyncSession":
+                UUID sessionId = sessionId((SessionInfoProto) args[0]);
+                sessions.put(sessionId, new Session(sessionId, (SessionMsgListener) args[1], pushWindowMs, true));
+                return null;
+            case "deregisterSession":
+                Session session = sessions.remove(sessionId((SessionInfoProto) args[0]));
+                if (session != null) {
+                    session.cancel();
+                }
+                return null;
+            default:
+                break;
+        }
+        if (method.getReturnType() == boolean.class) {
+            // rate limit checks
+            return Boolean.TRUE;
+        }
+        TransportServiceCallback<Object> callback = null;
+        Object msg = null;
+        SessionInfoProto sessionInfo = null;
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg instanceof TransportServiceCallback) {
+                    callback = (TransportServiceCallback<Object>) arg;
+                } else if (arg instanceof SessionInfoProto) {
+                    sessionInfo = (SessionInfoProto) arg;
+                } else if (arg != null) {
+                    // events without a callback pass null
+                    msg = arg;
+                }
+            }
+        }
+        if (sessionInfo != null) {
+            trackSubscriptions(sessionId(sessionInfo), msg);
+        }
+        if (msg instanceof ValidateDeviceTokenRequestMsg) {
+            validate((ValidateDeviceTokenRequestMsg) msg, callback);
+        } else if (callback != null) {
+            submit(sessionInfo, msg, callback);
+        }
+        return null;
+    }
+
+    private void validate(ValidateDeviceTokenRequestMsg msg, TransportServiceCallback<Object> callback) {
+        schedule(authLatencyMs, () -> {
+            ValidateDeviceCredentialsResponseMsg.Builder response = ValidateDeviceCredentialsResponseMsg.newBuilder();
+            String token = msg.getToken();
+            if (token.startsWith("dev-")) {
+                long device = Long.parseLong(token.substring(4));
+                response.setDeviceInfo(DeviceInfoProto.newBuilder()
+                        .setTenantIdMSB(1).setTenantIdLSB(1)
+                        .setDeviceIdMSB(2).setDeviceIdLSB(device)
+                        .setDeviceName(token).setDeviceType("battery").build());
+            }
+            callback.onSuccess(response.build());
+        });
+    }
+
+    private void submit(SessionInfoProto sessionInfo, Object msg, TransportServiceCallback<Object> callback) {
+        submitted.increment();
+        schedule(submitLatencyMs, () -> {
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                failed.increment();
+                callback.onError(new RuntimeException("Stub failure"));
+                return;
+            }
+            callback.onSuccess(null);
+            Session session = sessionInfo != null ? sessions.get(sessionId(sessionInfo)) : null;
+            if (session == null) {
+                return;
+            }
+            if (msg instanceof GetAttributeRequestMsg) {
+                session.respond(listener -> listener.onGetAttributesResponse(GetAttributeResponseMsg.newBuilder()
+                        .setRequestId(((GetAttributeRequestMsg) msg).getRequestId())
+                        .addClientAttributeList(tsKv("fw_version", "2.4.1")).build()));
+            } else if (msg instanceof ToServerRpcRequestMsg) {
+                ToServerRpcRequestMsg request = (ToServerRpcRequestMsg) msg;
+                session.respond(listener -> listener.onToServerRpcResponse(ToServerRpcResponseMsg.newBuilder()
+                        .setRequestId(request.getRequestId()).setPayload("{\"ok\":true}").build()));
+            } else if (isSubscription(msg) && ThreadLocalRandom.current().nextDouble() < pushRate) {
+                long delay = ThreadLocalRandom.current().nextLong(Math.max(1, session.timeoutMs));
+                boolean rpc = msg instanceof SubscribeToRPCMsg;
+                String subscription = subscription(session.id, rpc);
+                schedule(delay, () -> session.respond(listener -> {
+                    if (!subscriptions.remove(subscription)) {
+                        // unsubscribed meanwhile
+                        return;
+                    }
+                    if (rpc) {
+                        listener.onToDeviceRpcRequest(ToDeviceRpcRequestMsg.newBuilder()
+                                .setRequestId(1).setMethodName("reboot").setParams("{}").build());
+                    } else {
+                        listener.onAttributeUpdate(AttributeUpdateNotificationMsg.newBuilder()
+                                .addSharedUpdated(tsKv("report_interval", "10")).build());
+                    }
+                }));
+            }
+        });
+    }
+
+    private void trackSubscriptions(UUID sessionId, Object msg) {
+        if (msg instanceof SessionEventMsg && ((SessionEventMsg) msg).getEvent() == SessionEvent.CLOSED) {
+            subscriptions.remove(subscription(sessionId, true));
+            subscriptions.remove(subscription(sessionId, false));
+        } else if (msg instanceof SubscribeToRPCMsg) {
+            track(subscription(sessionId, true), ((SubscribeToRPCMsg) msg).getUnsubscribe());
+        } else if (msg instanceof SubscribeToAttributeUpdatesMsg) {
+            track(subscription(sessionId, false), ((SubscribeToAttributeUpdatesMsg) msg).getUnsubscribe());
+        }
+    }
+
+    private void track(String subscription, boolean unsubscribe) {
+        if (unsubscribe) {
+            subscriptions.remove(subscription);
+        } else {
+            subscriptions.add(subscription);
+        }
+    }
+
+    private static boolean isSubscription(Object msg) {
+        return (msg instanceof SubscribeToRPCMsg && !((SubscribeToRPCMsg) msg).getUnsubscribe())
+                || (msg instanceof SubscribeToAttributeUpdatesMsg && !((SubscribeToAttributeUpdatesMsg) msg).getUnsubscribe());
+    }
+
+    private static String subscription(UUID sessionId, boolean rpc) {
+        return sessionId + (rpc ? ":rpc" : ":attributes");
+    }
+
+    private void registerSyncSession(SessionInfoProto sessionInfo, SessionMsgListener listener, long timeoutMs) {
+        UUID sessionId = sessionId(sessionInfo);
+        Session session = new Session(sessionId, listener, timeoutMs, false);
+        sessions.put(sessionId, session);
+        session.timeout = scheduler.schedule(() -> {
+            if (session.close()) {
+                timedOutSessions.increment();
+                listener.onRemoteSessionCloseCommand(SessionCloseNotificationProto.getDefaultInstance());
+            }
+        }, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(long delayMs, Runnable task) {
+        if (delayMs > 0) {
+            scheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.execute(task);
+        }
+    }
+
+    private static TsKvProto tsKv(String key, String value) {
+        return TsKvProto.newBuilder().setTs(System.currentTimeMillis())
+                .setKv(KeyValueProto.newBuilder().setKey(key).setType(KeyValueType.STRING_V).setStringV(value)).build();
+    }
+
+    private static UUID sessionId(SessionInfoProto sessionInfo) {
+        return new UUID(sessionInfo.getSessionIdMSB(), sessionInfo.getSessionIdLSB());
+    }
+
+    private class Session {
+        private final UUID id;
+        private final SessionMsgListener listener;
+        private final long timeoutMs;
+        private final boolean async;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout;
+
+        Session(UUID id, SessionMsgListener listener, long timeoutMs, boolean async) {
+            this.id = id;
+            this.listener = listener;
+            this.timeoutMs = timeoutMs;
+            this.async = async;
+        }
+
+        boolean close() {
+            if (closed.compareAndSet(false, true)) {
+                sessions.remove(id);
+                return true;
+            }
+            return false;
+        }
+
+        void cancel() {
+            closed.set(true);
+            ScheduledFuture<?> future = timeout;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        void respond(Consumer<SessionMsgListener> response) {
+            if (async) {
+                if (!closed.get()) {
+                    response.accept(listener);
+                }
+            } else if (close()) {
+                cancel();
+                response.accept(listener);
+            }
+        }
+    }
+}
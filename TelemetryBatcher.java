@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.gen.transport.TransportProtos.PostTelemetryMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the telemetry that concurrent requests of the same device submit within {@code window_ms}
+ * into one PostTelemetryMsg, and answers every request's callback with the outcome of that message.
+ * A batch is submitted once it is {@code window_ms} old or holds {@code max_records} records.
+ * <p>
+ * A PostTelemetryMsg carries the SessionInfoProto of one device and TransportService has no call that submits
+ * the telemetry of several devices, so this is as far as batching across requests goes: requests of different
+ * devices are batched separately, and the batches of all devices are flushed together by one timer thread.
+ * Off by default; the multi-device endpoint amortises requests across devices instead.
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class TelemetryBatcher {
+
+    @Value("${transport.http.telemetry_batching.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transport.http.telemetry_batching.window_ms:10}")
+    private long windowMs;
+
+    @Value("${transport.http.telemetry_batching.max_records:500}")
+    private int maxRecords;
+
+    @Autowired
+    private HttpTransportContext transportContext;
+
+    @Autowired
+    private DeviceApiMetrics metrics;
+
+    private final ConcurrentMap<UUID, Batch> batches = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flushExecutor;
+    private long windowNanos;
+
+    @PostConstruct
+    public void init() {
+        if (enabled) {
+            windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+            long tickMs = Math.max(1L, windowMs / 2);
+            flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("http-telemetry-batcher").setDaemon(true).build());
+            flushExecutor.scheduleAtFixedRate(this::flushExpired, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+            batches.values().forEach(batch -> flush(batch, false));
+        }
+    }
+
+    /**
+     * Submits the records of the device, batched with those of its other requests if batching is enabled.
+     */
+    public void submit(SessionInfoProto sessionInfo, List<TsKvListProto> records, TransportServiceCallback<Void> callback) {
+        if (!enabled) {
+            transportContext.getTransportService().process(sessionInfo, PostTelemetryMsg.newBuilder().addAllTsKvList(records).build(), callback);
+            return;
+        }
+        UUID deviceId = new UUID(sessionInfo.getDeviceIdMSB(), sessionInfo.getDeviceIdLSB());
+        while (true) {
+            Batch batch = batches.computeIfAbsent(deviceId, id -> new Batch(id, sessionInfo));
+            int size = batch.add(records, callback);
+            if (size >= 0) {
+                if (size >= maxRecords) {
+                    flush(batch, true);
+                }
+                return;
+            }
+            // flushed meanwhile
+            batches.remove(deviceId, batch);
+        }
+    }
+
+    public int getPendingBatchesCount() {
+        return batches.size();
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        for (Batch batch : batches.values()) {
+            if (now - batch.createdNanos >= windowNanos) {
+                try {
+                    flush(batch, false);
+                } catch (RuntimeException e) {
+                    log.warn("Failed to submit telemetry batch", e);
+                }
+            }
+        }
+    }
+
+    private void flush(Batch batch, boolean full) {
+        List<Entry> entries = batch.close();
+        batches.remove(batch.deviceId, batch);
+        if (entries == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        PostTelemetryMsg.Builder msg = PostTelemetryMsg.newBuilder();
+        for (Entry entry : entries) {
+            msg.addAllTsKvList(entry.records);
+            metrics.recordBatchWait(now - entry.enqueuedNanos);
+        }
+        metrics.recordBatch(entries.size(), msg.getTsKvListCount(), full);
+        transportContext.getTransportService().process(batch.sessionInfo, msg.build(), new TransportServiceCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                entries.forEach(entry -> entry.callback.onSuccess(result));
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                entries.forEach(entry -> entry.callback.onError(e));
+            }
+        });
+    }
+
+    private static class Entry {
+        private final List<TsKvListProto> records;
+        private final TransportServiceCallback<Void> callback;
+        private final long enqueuedNanos = System.nanoTime();
+
+        Entry(List<TsKvListProto> records, TransportServiceCallback<Void> callback) {
+            this.records = records;
+            this.callback = callback;
+        }
+    }
+
+    private static class Batch {
+        private final UUID deviceId;
+        private final SessionInfoProto sessionInfo;
+        private final long createdNanos = System.nanoTime();
+        private List<Entry> entries = new ArrayList<>(4);
+        private int records;
+
+        Batch(UUID deviceId, SessionInfoProto sessionInfo) {
+            this.deviceId = deviceId;
+            this.sessionInfo = sessionInfo;
+        }
+
+        /**
+         * @return the records in the batch, -1 if it is closed
+         */
+        synchronized int add(List<TsKvListProto> records, TransportServiceCallback<Void> callback) {
+            if (entries == null) {
+                return -1;
+            }
+            entries.add(new Entry(records, callback));
+            this.records += records.size();
+            return this.records;
+        }
+
+        /**
+         * @return the entries, null if already closed
+         */
+        synchronized List<Entry> close() {
+            List<Entry> closed = entries;
+            entries = null;
+            return closed;
+        }
+    }
+}
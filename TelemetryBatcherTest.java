@@ -0,0 +1,192 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.thingsboard.server.common.transport.TransportServiceCallback;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParserTest;
+import org.thingsboard.server.gen.transport.TransportProtos.PostTelemetryMsg;
+import org.thingsboard.server.gen.transport.TransportProtos.SessionInfoProto;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+import org.thingsboard.server.gen.transport.TransportProtos.ValidateDeviceTokenRequestMsg;
+
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Telemetry batches of {@link TelemetryBatcher}, submitted to a {@link RecordingTransportService} answered by the test.
+ */
+public class TelemetryBatcherTest {
+
+    private final RecordingTransportService transportService = new RecordingTransportService(false);
+    private AnnotationConfigApplicationContext context;
+    private TelemetryBatcher batcher;
+
+    @After
+    public void tearDown() {
+        context.close();
+    }
+
+    @Test
+    public void testDisabled() {
+        createContext(false, 60000, 500);
+        batcher.submit(session(1), records("{\"a\":1}"), new Outcome());
+        batcher.submit(session(1), records("{\"a\":2}"), new Outcome());
+        Assert.assertEquals(2, transportService.getCalls(PostTelemetryMsg.class).size());
+        Assert.assertEquals(0, batcher.getPendingBatchesCount());
+    }
+
+    @Test
+    public void testWindow() {
+        createContext(true, 200, 500);
+        Outcome first = new Outcome();
+        Outcome second = new Outcome();
+        Outcome other = new Outcome();
+        batcher.submit(session(1), records("{\"a\":1}"), first);
+        batcher.submit(session(1), records("{\"a\":2}", "{\"a\":3}"), second);
+        batcher.submit(session(2), records("{\"a\":4}"), other);
+        Assert.assertTrue(transportService.getCalls(PostTelemetryMsg.class).isEmpty());
+        Assert.assertEquals(2, batcher.getPendingBatchesCount());
+
+        List<RecordingTransportService.Call> calls = awaitCalls(2);
+        RecordingTransportService.Call device1 = calls.get(0).getSessionInfo().getDeviceIdLSB() == 1 ? calls.get(0) : calls.get(1);
+        PostTelemetryMsg msg = device1.getMsg();
+        Assert.assertEquals(3, msg.getTsKvListCount());
+        Assert.assertEquals(0, batcher.getPendingBatchesCount());
+
+        device1.succeed(null);
+        Assert.assertEquals("success", first.get());
+        Assert.assertEquals("success", second.get());
+        Assert.assertNull(other.get());
+
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        Assert.assertEquals(3.0, registry.get("transport.http.batch.requests").summary().totalAmount(), 0.0);
+        Assert.assertEquals(4.0, registry.get("transport.http.batch.records").summary().totalAmount(), 0.0);
+        Assert.assertEquals(3, registry.get("transport.http.batch.wait").timer().count());
+        Assert.assertEquals(2.0, registry.get("transport.http.batch.flushes").tag("trigger", "window").counter().count(), 0.0);
+    }
+
+    @Test
+    public void testMaxRecords() {
+        createContext(true, 60000, 3);
+        Outcome first = new Outcome();
+        Outcome second = new Outcome();
+        batcher.submit(session(1), records("{\"a\":1}", "{\"a\":2}"), first);
+        Assert.assertTrue(transportService.getCalls(PostTelemetryMsg.class).isEmpty());
+        batcher.submit(session(1), records("{\"a\":3}", "{\"a\":4}"), second);
+        RecordingTransportService.Call call = transportService.getLastCall(PostTelemetryMsg.class);
+        Assert.assertEquals(4, call.<PostTelemetryMsg>getMsg().getTsKvListCount());
+
+        call.fail(new IllegalStateException("test"));
+        Assert.assertEquals("test", first.get());
+        Assert.assertEquals("test", second.get());
+        Assert.assertEquals(1.0, context.getBean(MeterRegistry.class).get("transport.http.batch.flushes").tag("trigger", "size").counter().count(), 0.0);
+
+        // the next request starts a new batch
+        batcher.submit(session(1), records("{\"a\":5}"), new Outcome());
+        Assert.assertEquals(1, batcher.getPendingBatchesCount());
+    }
+
+    @Test
+    public void testPendingBatchesAreSubmittedOnShutdown() {
+        createContext(true, 60000, 500);
+        batcher.submit(session(1), records("{\"a\":1}"), new Outcome());
+        context.close();
+        Assert.assertEquals(1, transportService.getCalls(PostTelemetryMsg.class).size());
+    }
+
+    @Test
+    public void testRequestsAreAnsweredWithTheirBatch() {
+        createContext(true, 1000, 500);
+        DeviceApiController controller = context.getBean(DeviceApiController.class);
+        DeferredResult<ResponseEntity> first = controller.postTelemetry("dev-1", telemetry());
+        DeferredResult<ResponseEntity> second = controller.postTelemetry("dev-1", telemetry());
+        for (RecordingTransportService.Call validation : transportService.getCalls(ValidateDeviceTokenRequestMsg.class)) {
+            validation.succeed(RecordingTransportService.validated("dev-1"));
+        }
+
+        RecordingTransportService.Call call = awaitCalls(1).get(0);
+        Assert.assertEquals(4, call.<PostTelemetryMsg>getMsg().getTsKvListCount());
+        Assert.assertFalse(first.hasResult());
+        call.succeed(null);
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(first).getStatusCode());
+        Assert.assertEquals(HttpStatus.OK, RecordingTransportService.await(second).getStatusCode());
+    }
+
+    private void createContext(boolean enabled, long windowMs, int maxRecords) {
+        Map<String, String> options = new HashMap<>();
+        options.put("transport.http.telemetry_batching.enabled", String.valueOf(enabled));
+        options.put("transport.http.telemetry_batching.window_ms", String.valueOf(windowMs));
+        options.put("transport.http.telemetry_batching.max_records", String.valueOf(maxRecords));
+        context = HttpTransportLoadHarness.createContext(transportService.getService(), options);
+        batcher = context.getBean(TelemetryBatcher.class);
+    }
+
+    private List<RecordingTransportService.Call> awaitCalls(int count) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        List<RecordingTransportService.Call> calls;
+        while ((calls = transportService.getCalls(PostTelemetryMsg.class)).size() < count) {
+            Assert.assertTrue("Batches weren't submitted", System.nanoTime() < deadline);
+            Thread.yield();
+        }
+        return calls;
+    }
+
+    private static SessionInfoProto session(long device) {
+        return SessionInfoProto.newBuilder().setDeviceIdMSB(2).setDeviceIdLSB(device).build();
+    }
+
+    private static List<TsKvListProto> records(String... records) {
+        return JsonDataListParser.parseDataList(new StringReader("{\"data_list\":[" + String.join(",", records) + "]}"), JsonDataListParserTest.TS);
+    }
+
+    private static MockHttpServletRequest telemetry() {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContentType("application/json");
+        request.setContent(JsonDataListParserTest.README_PAYLOAD.getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    /**
+     * "success", or the message of the error the callback got; null until then.
+     */
+    private static class Outcome extends AtomicReference<String> implements TransportServiceCallback<Void> {
+
+        @Override
+        public void onSuccess(Void msg) {
+            set("success");
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            set(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueType;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Report by exception: drops telemetry values that did not change by more than the deadband of their key
+ * since the value last forwarded for the same device.
+ * Deadbands are configured as {@code key:band;prefix*:band;key:band%}, e.g. {@code blc_s:0;sim*:0;vlt:2%};
+ * a band of 0 drops only unchanged values, strings and booleans are dropped when equal whatever the band.
+ * Keys without a deadband are always forwarded and not tracked.
+ * A value is forwarded anyway once {@code heartbeat_sec} passed since the last forwarded one.
+ * <p>
+ * The last forwarded values of a device are kept in an open addressing table of primitive arrays
+ * keyed by the 64 bit hash of the key; string values are compared by their 64 bit hash.
+ */
+@TbHttpTransportComponent
+public class TelemetryDeadbandFilter {
+
+    @Value("${transport.http.deadband.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transport.http.deadband.keys:}")
+    private String keys;
+
+    @Value("${transport.http.deadband.heartbeat_sec:0}")
+    private long heartbeatSec;
+
+    @Value("${transport.http.deadband.max_devices:100000}")
+    private long maxDevices;
+
+    @Value("${transport.http.deadband.max_keys:256}")
+    private int maxKeys;
+
+    @Value("${transport.http.deadband.idle_ttl_sec:3600}")
+    private long idleTtlSec;
+
+    private final Map<String, Deadband> exactBands = new HashMap<>();
+    private final Map<String, Deadband> prefixBands = new LinkedHashMap<>();
+    private long heartbeatMs;
+
+    private Cache<UUID, LastValues> lastValues;
+
+    private final LongAdder forwardedValues = new LongAdder();
+    private final LongAdder suppressedValues = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        if (!StringUtils.isEmpty(keys)) {
+            for (String entry : keys.split(";")) {
+                if (entry.trim().isEmpty()) {
+                    continue;
+                }
+                int colon = entry.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Invalid deadband [" + entry + "], expected key:band");
+                }
+                String key = entry.substring(0, colon).trim();
+                Deadband band = Deadband.parse(entry.substring(colon + 1).trim());
+                if (key.endsWith("*")) {
+                    prefixBands.put(key.substring(0, key.length() - 1), band);
+                } else {
+                    exactBands.put(key, band);
+                }
+            }
+        }
+        heartbeatMs = TimeUnit.SECONDS.toMillis(heartbeatSec);
+        lastValues = CacheBuilder.newBuilder().maximumSize(maxDevices).expireAfterAccess(idleTtlSec, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * @return the records without the suppressed values, records left without values are dropped
+     */
+    public List<TsKvListProto> filter(UUID deviceId, List<TsKvListProto> records) {
+        if (!enabled || records.isEmpty() || (exactBands.isEmpty() && prefixBands.isEmpty())) {
+            return records;
+        }
+        LastValues values;
+        try {
+            values = lastValues.get(deviceId, () -> new LastValues(maxKeys));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        List<TsKvListProto> result = new ArrayList<>(records.size());
+        int forwarded = 0;
+        int suppressed = 0;
+        synchronized (values) {
+            for (TsKvListProto record : records) {
+                List<KeyValueProto> kept = null;
+                for (int i = 0; i < record.getKvCount(); i++) {
+                    KeyValueProto kv = record.getKv(i);
+                    Deadband band = getDeadband(kv.getKey());
+                    if (band == null || values.update(kv, record.getTs(), band, heartbeatMs)) {
+                        if (kept != null) {
+                            kept.add(kv);
+                        }
+                        forwarded++;
+                    } else {
+                        if (kept == null) {
+                            kept = new ArrayList<>(record.getKvList().subList(0, i));
+                        }
+                        suppressed++;
+                    }
+                }
+                if (kept == null) {
+                    result.add(record);
+                } else if (!kept.isEmpty()) {
+                    result.add(TsKvListProto.newBuilder().setTs(record.getTs()).addAllKv(kept).build());
+                }
+            }
+        }
+        forwardedValues.add(forwarded);
+        suppressedValues.add(suppressed);
+        return result;
+    }
+
+    /**
+     * Forgets the last values of the device, e.g. when forwarded values could not be delivered.
+     */
+    public void invalidate(UUID deviceId) {
+        if (enabled) {
+            lastValues.invalidate(deviceId);
+        }
+    }
+
+    public long getForwardedValuesCount() {
+        return forwardedValues.sum();
+    }
+
+    public long getSuppressedValuesCount() {
+        return suppressedValues.sum();
+    }
+
+    public long getDevicesCount() {
+        return lastValues.size();
+    }
+
+    private Deadband getDeadband(String key) {
+        Deadband band = exactBands.get(key);
+        if (band == null && !prefixBands.isEmpty()) {
+            for (Map.Entry<String, Deadband> prefix : prefixBands.entrySet()) {
+                if (key.startsWith(prefix.getKey())) {
+                    return prefix.getValue();
+                }
+            }
+        }
+        return band;
+    }
+
+    private static class Deadband {
+        private final double band;
+        private final boolean percent;
+
+        private Deadband(double band, boolean percent) {
+            this.band = band;
+            this.percent = percent;
+        }
+
+        static Deadband parse(String value) {
+            boolean percent = value.endsWith("%");
+            try {
+                double band = Double.parseDouble(percent ? value.substring(0, value.length() - 1) : value);
+                if (band < 0 || Double.isNaN(band)) {
+                    throw new IllegalArgumentException("Deadband [" + value + "] is negative");
+                }
+                return new Deadband(band, percent);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid deadband [" + value + "]");
+            }
+        }
+
+        boolean contains(double last, double value) {
+            double limit = percent ? Math.abs(last) * band / 100 : band;
+            return Math.abs(value - last) <= limit;
+        }
+    }
+
+    /**
+     * Last forwarded value and its timestamp per key hash. Not thread safe, guarded by the caller.
+     */
+    private static class LastValues {
+        private static final long FREE = 0L;
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final int maxKeys;
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private long[] values = new long[INITIAL_CAPACITY];
+        private long[] timestamps = new long[INITIAL_CAPACITY];
+        private byte[] types = new byte[INITIAL_CAPACITY];
+        private int size;
+
+        LastValues(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        /**
+         * @return whether the value has to be forwarded; if so it becomes the last value
+         */
+        boolean update(KeyValueProto kv, long ts, Deadband band, long heartbeatMs) {
+            long key = hash(kv.getKey());
+            long value = bits(kv);
+            byte type = (byte) kv.getTypeValue();
+            int slot = find(key);
+            if (keys[slot] == key) {
+                if (ts < timestamps[slot]) {
+                    // older than the last forwarded value, e.g. a late data_list record
+                    return true;
+                }
+                if (types[slot] == type && (heartbeatMs <= 0 || ts - timestamps[slot] < heartbeatMs)
+                        && unchanged(kv.getType(), values[slot], value, band)) {
+                    return false;
+                }
+            } else if (size >= maxKeys) {
+                return true;
+            } else {
+                if ((size + 1) * 4 > keys.length * 3) {
+                    grow();
+                    slot = find(key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+            timestamps[slot] = ts;
+            types[slot] = type;
+            return true;
+        }
+
+        private static boolean unchanged(KeyValueType type, long last, long value, Deadband band) {
+            if (last == value) {
+                return true;
+            }
+            switch (type) {
+                case LONG_V:
+                    return band.contains(last, value);
+                case DOUBLE_V:
+                    return band.contains(Double.longBitsToDouble(last), Double.longBitsToDouble(value));
+                default:
+                    return false;
+            }
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) key & mask;
+            while (keys[slot] != FREE && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            long[] oldTimestamps = timestamps;
+            byte[] oldTypes = types;
+            int capacity = oldKeys.length * 2;
+            keys = new long[capacity];
+            values = new long[capacity];
+            timestamps = new long[capacity];
+            types = new byte[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                    timestamps[slot] = oldTimestamps[i];
+                    types[slot] = oldTypes[i];
+                }
+            }
+        }
+
+        private static long bits(KeyValueProto kv) {
+            switch (kv.getType()) {
+                case BOOLEAN_V:
+                    return kv.getBoolV() ? 1 : 0;
+                case LONG_V:
+                    return kv.getLongV();
+                case DOUBLE_V:
+                    return Double.doubleToLongBits(kv.getDoubleV());
+                default:
+                    return hash(kv.getStringV());
+            }
+        }
+
+        private static long hash(String value) {
+            long h = 1125899906842597L;
+            for (int i = 0; i < value.length(); i++) {
+                h = 31 * h + value.charAt(i);
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h == FREE ? 1L : h;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser;
+import org.thingsboard.server.gen.transport.TransportProtos.KeyValueProto;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Values forwarded and suppressed by {@link TelemetryDeadbandFilter}; time is the timestamp of the records.
+ */
+public class TelemetryDeadbandFilterTest {
+
+    private static final UUID DEVICE_1 = new UUID(2, 1);
+    private static final UUID DEVICE_2 = new UUID(2, 2);
+
+    @Test
+    public void testAbsoluteBand() {
+        TelemetryDeadbandFilter filter = filter("tmp:0.5", 0);
+        Assert.assertEquals("[tmp]", keys(filter, DEVICE_1, 1000, "{\"tmp\":20.0}"));
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 2000, "{\"tmp\":20.5}"));
+        Assert.assertEquals("[tmp]", keys(filter, DEVICE_1, 3000, "{\"tmp\":20.6}"));
+        // compared with the last forwarded value, not the last received one
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 4000, "{\"tmp\":21.0}"));
+        Assert.assertEquals("[tmp]", keys(filter, DEVICE_1, 5000, "{\"tmp\":21.2}"));
+        // another device has its own last values
+        Assert.assertEquals("[tmp]", keys(filter, DEVICE_2, 5000, "{\"tmp\":21.2}"));
+        Assert.assertEquals(2, filter.getSuppressedValuesCount());
+    }
+
+    @Test
+    public void testPercentBandOfLongs() {
+        TelemetryDeadbandFilter filter = filter("vlt:2%", 0);
+        keys(filter, DEVICE_1, 1000, "{\"vlt\":100}");
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 2000, "{\"vlt\":102}"));
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 3000, "{\"vlt\":98}"));
+        Assert.assertEquals("[vlt]", keys(filter, DEVICE_1, 4000, "{\"vlt\":103}"));
+    }
+
+    @Test
+    public void testZeroBandAndPrefixes() {
+        TelemetryDeadbandFilter filter = filter("blc_s:0;sim*:0", 0);
+        Assert.assertEquals("[blc_s, sim0, sim1, cur0]", keys(filter, DEVICE_1, 1000, "{\"blc_s\":3,\"sim\":[3,3],\"cur\":[3]}"));
+        // cur has no deadband and is always forwarded
+        Assert.assertEquals("[sim1, cur0]", keys(filter, DEVICE_1, 2000, "{\"blc_s\":3,\"sim\":[3,4],\"cur\":[3]}"));
+    }
+
+    @Test
+    public void testStringsBooleansAndTypeChanges() {
+        TelemetryDeadbandFilter filter = filter("s:100;b:100;v:100", 0);
+        keys(filter, DEVICE_1, 1000, "{\"s\":\"on\",\"b\":true,\"v\":1}");
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 2000, "{\"s\":\"on\",\"b\":true,\"v\":50}"));
+        Assert.assertEquals("[s, b, v]", keys(filter, DEVICE_1, 3000, "{\"s\":\"off\",\"b\":false,\"v\":\"x\"}"));
+    }
+
+    @Test
+    public void testHeartbeat() {
+        TelemetryDeadbandFilter filter = filter("blc_s:0", 60);
+        keys(filter, DEVICE_1, 0, "{\"blc_s\":3}");
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 59999, "{\"blc_s\":3}"));
+        Assert.assertEquals("[blc_s]", keys(filter, DEVICE_1, 60000, "{\"blc_s\":3}"));
+        // the heartbeat counts from the last forwarded value
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 119999, "{\"blc_s\":3}"));
+        Assert.assertEquals("[blc_s]", keys(filter, DEVICE_1, 120000, "{\"blc_s\":3}"));
+    }
+
+    @Test
+    public void testLateRecordsAreForwarded() {
+        TelemetryDeadbandFilter filter = filter("blc_s:0", 0);
+        keys(filter, DEVICE_1, 2000, "{\"blc_s\":3}");
+        Assert.assertEquals("[blc_s]", keys(filter, DEVICE_1, 1000, "{\"blc_s\":3}"));
+        Assert.assertEquals("[]", keys(filter, DEVICE_1, 3000, "{\"blc_s\":3}"));
+    }
+
+    @Test
+    public void testEmptyRecordsAreDropped() {
+        TelemetryDeadbandFilter filter = filter("blc_s:0;od:0", 0);
+        List<TsKvListProto> records = records(1000, "{\"blc_s\":3,\"od\":1}", "{\"blc_s\":3,\"od\":1}", "{\"blc_s\":3,\"od\":2}");
+        List<TsKvListProto> result = filter.filter(DEVICE_1, records);
+        Assert.assertEquals(2, result.size());
+        Assert.assertSame(records.get(0), result.get(0));
+        Assert.assertEquals(1002, result.get(1).getTs());
+        Assert.assertEquals("[od]", result.get(1).getKvList().stream().map(KeyValueProto::getKey).collect(Collectors.toList()).toString());
+    }
+
+    @Test
+    public void testInvalidateForwardsAgain() {
+        TelemetryDeadbandFilter filter = filter("blc_s:0", 0);
+        keys(filter, DEVICE_1, 1000, "{\"blc_s\":3}");
+        filter.invalidate(DEVICE_1);
+        Assert.assertEquals("[blc_s]", keys(filter, DEVICE_1, 2000, "{\"blc_s\":3}"));
+    }
+
+    @Test
+    public void testManyKeysAndMaxKeys() {
+        TelemetryDeadbandFilter filter = filter("k*:0", 0);
+        ReflectionTestUtils.setField(filter, "maxKeys", 100);
+        StringBuilder record = new StringBuilder("{");
+        for (int i = 0; i < 150; i++) {
+            record.append(i == 0 ? "" : ",").append("\"k").append(i).append("\":").append(i);
+        }
+        String json = record.append('}').toString();
+        Assert.assertEquals(150, keys(filter, DEVICE_1, 1000, json).split(",").length);
+        // the first 100 keys are tracked, the others always forwarded
+        Assert.assertEquals(50, keys(filter, DEVICE_1, 2000, json).split(",").length);
+    }
+
+    @Test
+    public void testDisabledFilterForwardsEverything() {
+        TelemetryDeadbandFilter filter = filter("blc_s:0", 0);
+        ReflectionTestUtils.setField(filter, "enabled", false);
+        keys(filter, DEVICE_1, 1000, "{\"blc_s\":3}");
+        Assert.assertEquals("[blc_s]", keys(filter, DEVICE_1, 2000, "{\"blc_s\":3}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBand() {
+        filter("tmp:-1", 0);
+    }
+
+    private static TelemetryDeadbandFilter filter(String keys, long heartbeatSec) {
+        TelemetryDeadbandFilter filter = new TelemetryDeadbandFilter();
+        ReflectionTestUtils.setField(filter, "enabled", true);
+        ReflectionTestUtils.setField(filter, "keys", keys);
+        ReflectionTestUtils.setField(filter, "heartbeatSec", heartbeatSec);
+        ReflectionTestUtils.setField(filter, "maxDevices", 100L);
+        ReflectionTestUtils.setField(filter, "maxKeys", 256);
+        ReflectionTestUtils.setField(filter, "idleTtlSec", 60L);
+        filter.init();
+        return filter;
+    }
+
+    /**
+     * @return the forwarded keys of the record
+     */
+    private static String keys(TelemetryDeadbandFilter filter, UUID deviceId, long ts, String record) {
+        List<String> keys = new ArrayList<>();
+        filter.filter(deviceId, records(ts, record)).forEach(r -> r.getKvList().forEach(kv -> keys.add(kv.getKey())));
+        return keys.toString();
+    }
+
+    private static List<TsKvListProto> records(long ts, String... records) {
+        return JsonDataListParser.parseDataList(new StringReader("{\"data_list\":[" + String.join(",", records) + "]}"), ts);
+    }
+}
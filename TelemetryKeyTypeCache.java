@@ -0,0 +1,82 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.thingsboard.server.common.transport.adaptor.LearnedKeyTypes;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Learned value types of telemetry keys by device type, see {@link LearnedKeyTypes}.
+ * At most {@code max_device_types} device types with {@code max_keys} keys each are kept.
+ */
+@TbHttpTransportComponent
+public class TelemetryKeyTypeCache {
+
+    @Value("${transport.http.type_cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${transport.http.type_cache.max_device_types:1000}")
+    private long maxDeviceTypes;
+
+    @Value("${transport.http.type_cache.max_keys:1000}")
+    private int maxKeys;
+
+    private Cache<String, LearnedKeyTypes> keyTypes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder typeChanges = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        keyTypes = CacheBuilder.newBuilder().maximumSize(maxDeviceTypes).build();
+    }
+
+    /**
+     * @return learned key types of the device type or {@code null} if the cache is disabled
+     */
+    public LearnedKeyTypes get(String deviceType) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            return keyTypes.get(deviceType, () -> new LearnedKeyTypes(maxKeys, hits, typeChanges));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void invalidate(String deviceType) {
+        keyTypes.invalidate(deviceType);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getTypeChangeCount() {
+        return typeChanges.sum();
+    }
+
+    public long getSize() {
+        return keyTypes.asMap().values().stream().mapToLong(LearnedKeyTypes::size).sum();
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright © 2016-2020 The Thingsboard Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.thingsboard.server.transport.http;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.StringUtils;
+import org.thingsboard.server.common.transport.adaptor.DataListOptions;
+import org.thingsboard.server.common.transport.adaptor.DataListSchema;
+import org.thingsboard.server.common.transport.adaptor.JsonDataListParser;
+import org.thingsboard.server.gen.transport.TransportProtos.TsKvListProto;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compiled data_list layouts by device type. The optional schema file maps a device type to its layout:
+ * <pre>{"battery": {"id": "long", "v": "long", "err": "long[2]", "cell_vlt": "long[23]", "t": "long"}}</pre>
+ */
+@Slf4j
+@TbHttpTransportComponent
+public class TelemetrySchemaRegistry {
+
+    @Value("${transport.http.telemetry.schema_file:}")
+    private String schemaFile;
+
+    @Autowired
+    private TelemetryKeyTypeCache keyTypeCache;
+
+    @Autowired
+    private HttpTransportSettings settings;
+
+    private final Map<String, DataListSchema> schemas = new ConcurrentHashMap<>();
+
+    private final LongAdder compiledRequests = new LongAdder();
+    private final LongAdder fallbackRequests = new LongAdder();
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!StringUtils.isEmpty(schemaFile)) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(schemaFile), StandardCharsets.UTF_8)) {
+                JsonObject layouts = new JsonParser().parse(reader).getAsJsonObject();
+                for (Map.Entry<String, JsonElement> entry : layouts.entrySet()) {
+                    register(entry.getKey(), entry.getValue().getAsJsonObject());
+                }
+            }
+            log.info("Loaded {} telemetry schemas from {}", schemas.size(), schemaFile);
+        }
+    }
+
+    public void register(String deviceType, JsonObject layout) {
+        schemas.put(deviceType, DataListSchema.compile(layout));
+    }
+
+    public void unregister(String deviceType) {
+        schemas.remove(deviceType);
+    }
+
+    /**
+     * @param json opens the payload; called a second time if the payload doesn't match the device type layout
+     */
+    public List<TsKvListProto> parseDataList(String deviceType, ReaderSupplier json, long systemTs, int maxRecords) throws JsonParseException {
+        DataListOptions options = settings.getDataListOptions();
+        // compiled layouts only flatten arrays
+        DataListSchema schema = options.hasArrayProcessing() ? null : schemas.get(deviceType);
+        if (schema != null) {
+            List<TsKvListProto> records;
+            try (Reader reader = json.get()) {
+                records = schema.parseDataList(reader, systemTs, maxRecords);
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+            if (records != null) {
+                compiledRequests.increment();
+                return records;
+            }
+            fallbackRequests.increment();
+        }
+        try (Reader reader = json.get()) {
+            return JsonDataListParser.parseDataList(reader, systemTs, maxRecords, keyTypeCache.get(deviceType), options);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    public long getCompiledRequestsCount() {
+        return compiledRequests.sum();
+    }
+
+    public long getFallbackRequestsCount() {
+        return fallbackRequests.sum();
+    }
+
+    public interface ReaderSupplier {
+        Reader get() throws IOException;
+    }
+}